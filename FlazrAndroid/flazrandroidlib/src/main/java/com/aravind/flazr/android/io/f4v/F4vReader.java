@@ -57,6 +57,7 @@ public class F4vReader implements RtmpReader {
 
     private int cursor;
     private int aggregateDuration;
+    private ChannelBuffer aggregateBuffer;
 
     public F4vReader(final String path) {
         in = new FileChannelReader(path);
@@ -128,7 +129,13 @@ public class F4vReader implements RtmpReader {
         if(aggregateDuration <= 0) {
             return getMessage(samples.get(cursor++));
         }
-        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        // one buffer per reader, the encoder has copied the previous aggregate
+        // into chunks on the publisher thread before the next one is read
+        if(aggregateBuffer == null) {
+            aggregateBuffer = ChannelBuffers.buffer(AGGREGATE_SIZE_LIMIT);
+        }
+        final ChannelBuffer out = aggregateBuffer;
+        out.clear();
         int startSampleTime = -1;
         while(cursor < samples.size()) {
             final Sample sample = samples.get(cursor++);
@@ -140,6 +147,9 @@ public class F4vReader implements RtmpReader {
             final FlvAtom flvAtom = new FlvAtom(header.getMessageType(), header.getTime(), message.encode());
             final ChannelBuffer temp = flvAtom.write();
             if(out.readableBytes() + temp.readableBytes() > AGGREGATE_SIZE_LIMIT) {
+                if(!out.readable()) { // too big to aggregate, goes out on its own
+                    return message;
+                }
                 cursor--;
                 break;
             }
@@ -41,6 +41,7 @@ public class FlvReader implements RtmpReader {
     private final long mediaStartPosition;
     private final Metadata metadata;
     private int aggregateDuration;    
+    private ChannelBuffer aggregateBuffer;
 
     public FlvReader(final String path) {
         in = new FileChannelReader(path);
@@ -169,7 +170,13 @@ public class FlvReader implements RtmpReader {
         if(aggregateDuration <= 0) {
             return new FlvAtom(in);
         }
-        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        // one buffer per reader, the encoder has copied the previous aggregate
+        // into chunks on the publisher thread before the next one is read
+        if(aggregateBuffer == null) {
+            aggregateBuffer = ChannelBuffers.buffer(AGGREGATE_SIZE_LIMIT);
+        }
+        final ChannelBuffer out = aggregateBuffer;
+        out.clear();
         int firstAtomTime = -1;
         while(hasNext()) {
             final FlvAtom flvAtom = new FlvAtom(in);
@@ -179,6 +186,9 @@ public class FlvReader implements RtmpReader {
             }
             final ChannelBuffer temp = flvAtom.write();
             if(out.readableBytes() + temp.readableBytes() > AGGREGATE_SIZE_LIMIT) {
+                if(!out.readable()) { // too big to aggregate, goes out on its own
+                    return flvAtom;
+                }
                 prev();
                 break;
             }
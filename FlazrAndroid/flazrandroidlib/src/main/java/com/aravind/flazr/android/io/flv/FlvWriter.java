@@ -19,6 +19,7 @@
 
 package com.aravind.flazr.android.io.flv;
 
+import com.aravind.flazr.android.rtmp.ChunkStreams;
 import com.aravind.flazr.android.rtmp.RtmpHeader;
 import com.aravind.flazr.android.rtmp.RtmpMessage;
 import com.aravind.flazr.android.rtmp.RtmpWriter;
@@ -36,7 +37,7 @@ public class FlvWriter implements RtmpWriter {
     private static final Logger logger = LoggerFactory.getLogger(FlvWriter.class.getSimpleName());
 
     private final FileChannel out;
-    private final int[] channelTimes = new int[RtmpHeader.MAX_CHANNEL_ID];
+    private final ChunkStreams<int[]> channelTimes = new ChunkStreams<int[]>();
     private int primaryChannel = -1;
     private int lastLoggedSeconds;
     private final int seekTime;
@@ -80,12 +81,21 @@ public class FlvWriter implements RtmpWriter {
         }
         logger.info("finished in {} seconds, media duration: {} seconds (seek time: {})",
                 (System.currentTimeMillis() - startTime) / 1000,
-                (channelTimes[primaryChannel] - seekTime) / 1000,
+                (channelTime(primaryChannel)[0] - seekTime) / 1000,
                 seekTime / 1000);
     }
 
+    private int[] channelTime(final int channelId) {
+        int[] time = channelTimes.get(channelId);
+        if(time == null) {
+            time = new int[1];
+            channelTimes.put(channelId, time);
+        }
+        return time;
+    }
+
     private void logWriteProgress() {
-        final int seconds = (channelTimes[primaryChannel] - seekTime) / 1000;
+        final int seconds = (channelTime(primaryChannel)[0] - seekTime) / 1000;
         if (seconds >= lastLoggedSeconds + 10) {
             logger.info("write progress: " + seconds + " seconds");
             lastLoggedSeconds = seconds - (seconds % 10);
@@ -100,14 +110,14 @@ public class FlvWriter implements RtmpWriter {
             while (in.readable()) {
                 final FlvAtom flvAtom = new FlvAtom(in);
                 final int absoluteTime = flvAtom.getHeader().getTime();
-                channelTimes[primaryChannel] = absoluteTime;
+                channelTime(primaryChannel)[0] = absoluteTime;
                 write(flvAtom);
                 // logger.debug("aggregate atom: {}", flvAtom);
                 logWriteProgress();
             }
         } else { // METADATA / AUDIO / VIDEO
             final int channelId = header.getChannelId();
-            channelTimes[channelId] = seekTime + header.getTime();
+            channelTime(channelId)[0] = seekTime + header.getTime();
             if(primaryChannel == -1 && (header.isAudio() || header.isVideo())) {
                 logger.info("first media packet for channel: {}", header);
                 primaryChannel = channelId;
@@ -115,7 +125,7 @@ public class FlvWriter implements RtmpWriter {
             if(header.getSize() <= 2) {
                 return;
             }
-            write(new FlvAtom(header.getMessageType(), channelTimes[channelId], message.encode()));
+            write(new FlvAtom(header.getMessageType(), channelTime(channelId)[0], message.encode()));
             if (channelId == primaryChannel) {
                 logWriteProgress();
             }
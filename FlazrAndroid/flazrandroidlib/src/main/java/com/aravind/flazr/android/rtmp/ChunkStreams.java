@@ -0,0 +1,68 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aravind.flazr.android.rtmp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * per connection state of each chunk stream, in place of arrays sized for
+ * every possible chunk stream id. ids below 64 (a one byte chunk header,
+ * which is what flash and flazr use) are held in a small array, the rare
+ * higher ids go to a map that is only created when one shows up
+ */
+public class ChunkStreams<T> {
+
+    private static final int SMALL_ID_LIMIT = 64;
+
+    private final Object[] small = new Object[SMALL_ID_LIMIT];
+    private Map<Integer, T> large;
+
+    @SuppressWarnings("unchecked")
+    public T get(final int channelId) {
+        if(channelId < SMALL_ID_LIMIT) {
+            return (T) small[channelId];
+        }
+        return large == null ? null : large.get(channelId);
+    }
+
+    public void put(final int channelId, final T value) {
+        if(channelId < SMALL_ID_LIMIT) {
+            small[channelId] = value;
+            return;
+        }
+        if(large == null) {
+            large = new HashMap<Integer, T>();
+        }
+        if(value == null) {
+            large.remove(channelId);
+        } else {
+            large.put(channelId, value);
+        }
+    }
+
+    public void clear() {
+        for(int i = 0; i < small.length; i++) {
+            small[i] = null;
+        }
+        large = null;
+    }
+
+}
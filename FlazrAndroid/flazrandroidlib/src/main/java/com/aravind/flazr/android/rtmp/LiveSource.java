@@ -0,0 +1,553 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.aravind.flazr.android.rtmp;
+
+import com.aravind.flazr.android.rtmp.message.ChunkSize;
+import com.aravind.flazr.android.rtmp.message.Command;
+import com.aravind.flazr.android.rtmp.message.Metadata;
+import com.aravind.flazr.android.rtmp.message.MessageType;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * publishes frames pushed by a real time producer such as a MediaCodec
+ * encoder, without allocating per frame. frames are copied into a fixed set
+ * of pooled buffers, already split into chunks with room left in front for
+ * the chunk header, which is filled in when the frame is written. buffers go
+ * back to the pool once netty has written them. when the network can't keep
+ * up the oldest frames are dropped so what goes out stays close to real time,
+ * video resumes at the next keyframe
+ */
+public class LiveSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveSource.class.getSimpleName());
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_FRAME_SIZE = 65536;
+    public static final int DEFAULT_MAX_LATENCY = 500;
+    public static final int CHUNK_SIZE = 4096;
+
+    // own chunk streams, the encoder never sees these so header state is ours
+    private static final int AUDIO_CHANNEL_ID = 6;
+    private static final int VIDEO_CHANNEL_ID = 7;
+    private static final int HEADROOM = RtmpHeader.MAX_ENCODED_SIZE;
+
+    private final class Frame implements ChannelFutureListener {
+
+        private final ChannelBuffer buffer;
+        private final boolean pooled;
+        private boolean video;
+        private boolean keyframe;
+        private boolean afterGap;
+        private int time;
+        private int size;
+        private long pushTime;
+
+        public Frame(final int capacity, final boolean pooled) {
+            buffer = ChannelBuffers.buffer(capacity);
+            this.pooled = pooled;
+        }
+
+        private void fill(final boolean video, final int time, final byte[] bytes, final int offset, final int length,
+                final boolean keyframe, final long pushTime) {
+            this.video = video;
+            this.time = time;
+            this.size = length;
+            this.keyframe = keyframe;
+            this.pushTime = pushTime;
+            afterGap = false;
+            final byte tinyHeader = (byte) (RtmpHeader.Type.TINY.intValue() << 6
+                    | (video ? VIDEO_CHANNEL_ID : AUDIO_CHANNEL_ID));
+            buffer.clear();
+            buffer.writerIndex(HEADROOM);
+            for(int done = 0; done < length; done += CHUNK_SIZE) {
+                if(done > 0) {
+                    buffer.writeByte(tinyHeader);
+                }
+                buffer.writeBytes(bytes, offset + done, Math.min(CHUNK_SIZE, length - done));
+            }
+        }
+
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            if(future.isSuccess()) {
+                recordLatency(System.currentTimeMillis() - pushTime);
+            }
+            release(this);
+        }
+
+    }
+
+    private final int frameSize;
+    private final int maxLatency;
+    private final AtomicReferenceArray<Frame> pool;
+    // bounded ring of queued frames, any thread may add, one at a time takes
+    private final AtomicReferenceArray<Frame> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean videoGap = new AtomicBoolean();
+    private final AtomicLong baseTime = new AtomicLong(Long.MIN_VALUE);
+
+    private volatile Channel channel;
+    private volatile int streamId;
+    private volatile boolean closed;
+    private volatile Metadata metadata;
+    // sequence headers are kept aside, never dropped and re-sent on start
+    private volatile byte[] videoConfig;
+    private volatile byte[] audioConfig;
+    private final AtomicBoolean videoConfigPending = new AtomicBoolean();
+    private final AtomicBoolean audioConfigPending = new AtomicBoolean();
+
+    // state below is only touched while draining
+    private boolean waitingForKeyframe = true;
+    private final RtmpHeader[] headers = new RtmpHeader[2];
+    private final boolean[] started = new boolean[2];
+    private final int[] prevTimes = new int[2];
+    private final int[] prevSizes = new int[2];
+    private final ChannelBuffer headerBuffer = ChannelBuffers.buffer(RtmpHeader.MAX_ENCODED_SIZE);
+    private volatile long writtenCount;
+    private volatile long timePosition;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong oversizeCount = new AtomicLong();
+    private final AtomicLong latencyCount = new AtomicLong();
+    private final AtomicLong latencySum = new AtomicLong();
+    private final AtomicLong latencyMax = new AtomicLong();
+
+    public LiveSource() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_FRAME_SIZE, DEFAULT_MAX_LATENCY);
+    }
+
+    /**
+     * @param poolSize frames held in memory, i.e. queued or being written
+     * @param frameSize bytes per pooled frame, larger frames are allocated one off
+     * @param maxLatency frames queued for longer than this many milliseconds are dropped
+     */
+    public LiveSource(final int poolSize, final int frameSize, final int maxLatency) {
+        this.frameSize = frameSize;
+        this.maxLatency = maxLatency;
+        pool = new AtomicReferenceArray<Frame>(poolSize);
+        for(int i = 0; i < poolSize; i++) {
+            pool.set(i, new Frame(frameSize, true));
+        }
+        final int ringSize = Integer.highestOneBit(poolSize * 2 - 1) << 1;
+        ring = new AtomicReferenceArray<Frame>(ringSize);
+        mask = ringSize - 1;
+        headers[0] = new RtmpHeader(MessageType.AUDIO);
+        headers[0].setChannelId(AUDIO_CHANNEL_ID);
+        headers[1] = new RtmpHeader(MessageType.VIDEO);
+        headers[1].setChannelId(VIDEO_CHANNEL_ID);
+        logger.info("live source pool: {} frames of {} bytes", poolSize, frameSize);
+    }
+
+    /** sent before the first frame on start */
+    public void setMetadata(final Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    public void pushVideo(final long time, final byte[] bytes, final boolean keyframe) {
+        pushVideo(time, bytes, 0, bytes.length, keyframe);
+    }
+
+    /**
+     * @param time milliseconds, any origin, the first frame pushed becomes time zero
+     * @param bytes flv video tag body starting with the frame type / codec byte,
+     * copied so the caller can re-use the array
+     */
+    public void pushVideo(final long time, final byte[] bytes, final int offset, final int length,
+            final boolean keyframe) {
+        push(true, time, bytes, offset, length, keyframe);
+    }
+
+    public void pushAudio(final long time, final byte[] bytes) {
+        pushAudio(time, bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param time milliseconds, same origin as video
+     * @param bytes flv audio tag body starting with the sound format byte,
+     * copied so the caller can re-use the array
+     */
+    public void pushAudio(final long time, final byte[] bytes, final int offset, final int length) {
+        push(false, time, bytes, offset, length, false);
+    }
+
+    /** avc (codec 7) and aac (sound format 10) send their decoder config as packet type 0 */
+    private static boolean isSequenceHeader(final boolean video, final byte[] bytes, final int offset, final int length) {
+        if(length < 2 || bytes[offset + 1] != 0) {
+            return false;
+        }
+        return video ? (bytes[offset] & 0x0f) == 7 : (bytes[offset] & 0xf0) >> 4 == 10;
+    }
+
+    private int rebase(final long time) {
+        baseTime.compareAndSet(Long.MIN_VALUE, time);
+        return (int) Math.max(0, time - baseTime.get());
+    }
+
+    private void push(final boolean video, final long time, final byte[] bytes, final int offset, final int length,
+            final boolean keyframe) {
+        if(closed) {
+            return;
+        }
+        final int frameTime = rebase(time);
+        if(isSequenceHeader(video, bytes, offset, length)) { // rare, so copying is fine
+            final byte[] config = Arrays.copyOfRange(bytes, offset, offset + length);
+            if(video) {
+                videoConfig = config;
+                videoConfigPending.set(true);
+            } else {
+                audioConfig = config;
+                audioConfigPending.set(true);
+            }
+            drain();
+            return;
+        }
+        Frame frame = newFrame(length);
+        if(frame == null) { // every pooled frame is queued or being written
+            reclaimOldest();
+            frame = newFrame(length);
+        }
+        if(frame == null) {
+            dropIncoming(video);
+            return;
+        }
+        frame.fill(video, frameTime, bytes, offset, length, keyframe, System.currentTimeMillis());
+        frame.afterGap = video && videoGap.getAndSet(false);
+        if(!offer(frame)) {
+            release(frame);
+            dropIncoming(video);
+            return;
+        }
+        drain();
+    }
+
+    //========================== POOL AND RING =================================
+
+    private Frame newFrame(final int length) {
+        final int required = HEADROOM + length + (length > 0 ? (length - 1) / CHUNK_SIZE : 0);
+        if(required <= frameSize) {
+            return acquire();
+        }
+        if(oversizeCount.getAndIncrement() == 0) {
+            logger.warn("frame of {} bytes is larger than pooled frames of {}, allocating", length, frameSize);
+        }
+        return new Frame(required, false);
+    }
+
+    private Frame acquire() {
+        for(int i = 0; i < pool.length(); i++) {
+            final Frame frame = pool.get(i);
+            if(frame != null && pool.compareAndSet(i, frame, null)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private void release(final Frame frame) {
+        if(!frame.pooled) {
+            return;
+        }
+        for(int i = 0; i < pool.length(); i++) {
+            if(pool.get(i) == null && pool.compareAndSet(i, null, frame)) {
+                return;
+            }
+        }
+    }
+
+    private boolean offer(final Frame frame) {
+        while(true) {
+            final long position = tail.get();
+            if(position - head >= ring.length()) {
+                return false;
+            }
+            if(tail.compareAndSet(position, position + 1)) {
+                ring.set((int) (position & mask), frame);
+                return true;
+            }
+        }
+    }
+
+    /** only while draining, null also when a producer has not finished adding */
+    private Frame peek() {
+        return ring.get((int) (head & mask));
+    }
+
+    private Frame poll() {
+        final Frame frame = peek();
+        if(frame != null) {
+            ring.set((int) (head & mask), null);
+            head++;
+        }
+        return frame;
+    }
+
+    public int getQueuedCount() {
+        return (int) (tail.get() - head);
+    }
+
+    //=============================== DRAIN ====================================
+
+    /**
+     * sets the chunk size the frames were split with, then writes metadata,
+     * decoder config and whatever is queued and still fresh
+     */
+    public void start(final Channel channel, final int streamId) {
+        this.streamId = streamId;
+        channel.write(new ChunkSize(CHUNK_SIZE));
+        if(metadata != null) {
+            metadata.getHeader().setStreamId(streamId);
+            channel.write(metadata);
+        }
+        videoConfigPending.set(videoConfig != null);
+        audioConfigPending.set(audioConfig != null);
+        logger.info("live publish start, stream id: {}, queued frames: {}", streamId, getQueuedCount());
+        this.channel = channel;
+        drain();
+    }
+
+    public boolean isStarted() {
+        return channel != null;
+    }
+
+    /**
+     * takes frames off the queue while the channel is writable, called on every
+     * push and should also be called when the channel becomes writable again
+     */
+    public void drain() {
+        while(draining.compareAndSet(false, true)) {
+            try {
+                drainQueue();
+            } finally {
+                draining.set(false);
+            }
+            // a push may have raced with us releasing the queue
+            if(tail.get() == head && !videoConfigPending.get() && !audioConfigPending.get()
+                    || !isWritable()) {
+                return;
+            }
+        }
+    }
+
+    private boolean isWritable() {
+        final Channel current = channel;
+        return current != null && current.isWritable();
+    }
+
+    private void reclaimOldest() {
+        if(!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final Frame oldest = poll();
+            if(oldest != null) {
+                dropQueued(oldest);
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    private void drainQueue() {
+        final Channel current = channel;
+        if(current != null && current.isWritable()) {
+            writeConfig(current);
+        }
+        final long now = System.currentTimeMillis();
+        Frame frame;
+        while((frame = peek()) != null) {
+            if(now - frame.pushTime > maxLatency) {
+                dropQueued(poll());
+                continue;
+            }
+            if(current == null || !current.isWritable()) {
+                return;
+            }
+            poll();
+            if(frame.afterGap) {
+                waitingForKeyframe = true;
+            }
+            if(frame.video) {
+                if(waitingForKeyframe && !frame.keyframe) {
+                    dropQueued(frame);
+                    continue;
+                }
+                waitingForKeyframe = false;
+            }
+            write(current, frame);
+        }
+    }
+
+    private void dropIncoming(final boolean video) {
+        if(video) {
+            videoGap.set(true);
+        }
+        droppedCount.incrementAndGet();
+    }
+
+    private void dropQueued(final Frame frame) {
+        if(frame.video) {
+            waitingForKeyframe = true;
+        }
+        droppedCount.incrementAndGet();
+        release(frame);
+    }
+
+    private void writeConfig(final Channel current) {
+        if(videoConfigPending.get() && writeConfig(current, true, videoConfig)) {
+            videoConfigPending.set(false);
+            // frames encoded before the new config can't be decoded with it
+            waitingForKeyframe = true;
+        }
+        if(audioConfigPending.get() && writeConfig(current, false, audioConfig)) {
+            audioConfigPending.set(false);
+        }
+    }
+
+    private boolean writeConfig(final Channel current, final boolean video, final byte[] config) {
+        final Frame frame = newFrame(config.length);
+        if(frame == null) { // try again when frames have been written
+            return false;
+        }
+        final int time = (int) Math.max(0, timePosition);
+        frame.fill(video, time, config, 0, config.length, true, System.currentTimeMillis());
+        write(current, frame);
+        return true;
+    }
+
+    private void write(final Channel current, final Frame frame) {
+        final int track = frame.video ? 1 : 0;
+        final RtmpHeader header = headers[track];
+        header.setStreamId(streamId);
+        header.setTime(frame.time);
+        header.setSize(frame.size);
+        if(!started[track] || frame.time < prevTimes[track]) {
+            header.setHeaderType(RtmpHeader.Type.LARGE);
+        } else {
+            header.setHeaderType(frame.size == prevSizes[track] ? RtmpHeader.Type.SMALL : RtmpHeader.Type.MEDIUM);
+            header.setDeltaTime(frame.time - prevTimes[track]);
+        }
+        started[track] = true;
+        prevTimes[track] = frame.time;
+        prevSizes[track] = frame.size;
+        headerBuffer.clear();
+        header.encode(headerBuffer);
+        final int headerSize = headerBuffer.readableBytes();
+        frame.buffer.setBytes(HEADROOM - headerSize, headerBuffer, 0, headerSize);
+        frame.buffer.readerIndex(HEADROOM - headerSize);
+        timePosition = frame.time;
+        writtenCount++;
+        current.write(frame.buffer).addListener(frame);
+    }
+
+    //=============================== STATS ====================================
+
+    private void recordLatency(final long latency) {
+        latencyCount.incrementAndGet();
+        latencySum.addAndGet(latency);
+        long max;
+        while(latency > (max = latencyMax.get()) && !latencyMax.compareAndSet(max, latency)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return mean milliseconds from push until the frame was written to the socket
+     */
+    public double getLatencyMean() {
+        final long count = latencyCount.get();
+        return count == 0 ? 0 : (double) latencySum.get() / count;
+    }
+
+    public long getLatencyMax() {
+        return latencyMax.get();
+    }
+
+    /**
+     * @return media time of the last frame written
+     */
+    public long getTimePosition() {
+        return timePosition;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return frames that did not fit a pooled buffer and were allocated
+     */
+    public long getOversizeCount() {
+        return oversizeCount.get();
+    }
+
+    /**
+     * stops accepting frames and unpublishes the stream after whatever the
+     * channel still accepts from the queue
+     */
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        drain();
+        final Channel current = channel;
+        if(current != null && current.isConnected()) {
+            logger.info("live publish stop, written: {}, dropped: {}", writtenCount, droppedCount);
+            current.write(Command.unpublish(streamId));
+        }
+    }
+
+    /** the channel went away, nothing queued can be sent any more */
+    public void channelClosed() {
+        channel = null;
+        closed = true;
+        while(!draining.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+        try {
+            Frame frame;
+            while((frame = poll()) != null) {
+                release(frame);
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+
+}
@@ -49,9 +49,9 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
     private ChannelBuffer payload;
     private int chunkSize = 128;
 
-    private final RtmpHeader[] incompleteHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
-    private final ChannelBuffer[] incompletePayloads = new ChannelBuffer[RtmpHeader.MAX_CHANNEL_ID];
-    private final RtmpHeader[] completedHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+    private final ChunkStreams<RtmpHeader> incompleteHeaders = new ChunkStreams<RtmpHeader>();
+    private final ChunkStreams<ChannelBuffer> incompletePayloads = new ChunkStreams<ChannelBuffer>();
+    private final ChunkStreams<RtmpHeader> completedHeaders = new ChunkStreams<RtmpHeader>();
 
     @Override
     protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in, final DecoderState state) {
@@ -59,22 +59,20 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
             case GET_HEADER:
                 header = new RtmpHeader(in, incompleteHeaders);
                 channelId = header.getChannelId();
-                if (incompletePayloads[channelId] == null) { // new chunk stream
-                    incompleteHeaders[channelId] = header;
-                    incompletePayloads[channelId] = ChannelBuffers.buffer(header.getSize());
+                if (incompletePayloads.get(channelId) == null) { // new chunk stream
+                    incompleteHeaders.put(channelId, header);
+                    incompletePayloads.put(channelId, ChannelBuffers.buffer(header.getSize()));
                 }
-                payload = incompletePayloads[channelId];
+                payload = incompletePayloads.get(channelId);
                 checkpoint(DecoderState.GET_PAYLOAD);
             case GET_PAYLOAD:
-                final byte[] bytes = new byte[Math.min(payload.writableBytes(), chunkSize)];
-                in.readBytes(bytes);
-                payload.writeBytes(bytes);
+                payload.writeBytes(in, Math.min(payload.writableBytes(), chunkSize));
                 checkpoint(DecoderState.GET_HEADER);
                 if (payload.writable()) { // more chunks remain
                     return null;
                 }
-                incompletePayloads[channelId] = null;
-                final RtmpHeader prevHeader = completedHeaders[channelId];
+                incompletePayloads.put(channelId, null);
+                final RtmpHeader prevHeader = completedHeaders.get(channelId);
                 if (!header.isLarge() && prevHeader != null) {
                     header.setTime(prevHeader.getTime() + header.getDeltaTime());
                 }
@@ -88,7 +86,7 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
 //                    logger.debug("decoder new chunk size: {}", csMessage);
                     chunkSize = csMessage.getChunkSize();
                 }
-                completedHeaders[channelId] = header;
+                completedHeaders.put(channelId, header);
                 return message;
             default:
                 throw new RuntimeException("unexpected decoder state: " + state);
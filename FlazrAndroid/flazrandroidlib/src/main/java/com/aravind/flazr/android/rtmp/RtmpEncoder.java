@@ -38,15 +38,19 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
     private static final Logger logger = LoggerFactory.getLogger(RtmpEncoder.class.getSimpleName());
 
     private int chunkSize = 128;    
-    private RtmpHeader[] channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];    
+    private final ChunkStreams<RtmpHeader> channelPrevHeaders = new ChunkStreams<RtmpHeader>();
 
     private void clearPrevHeaders() {
         logger.debug("clearing prev stream headers");
-        channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+        channelPrevHeaders.clear();
     }
 
     @Override
     public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {        
+        if(e.getMessage() instanceof ChannelBuffer) { // already chunked, see LiveSource
+            ctx.sendDownstream(e);
+            return;
+        }
         Channels.write(ctx, e.getFuture(), encode((RtmpMessage) e.getMessage()));
     }
 
@@ -65,7 +69,7 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
         }
         final int channelId = header.getChannelId();
         header.setSize(in.readableBytes());
-        final RtmpHeader prevHeader = channelPrevHeaders[channelId];       
+        final RtmpHeader prevHeader = channelPrevHeaders.get(channelId);       
         if(prevHeader != null // first stream message is always large
                 && header.getStreamId() > 0 // all control messages always large
                 && header.getTime() > 0) { // if time is zero, always large
@@ -85,12 +89,13 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
 			// otherwise force to LARGE
             header.setHeaderType(RtmpHeader.Type.LARGE);
         }
-        channelPrevHeaders[channelId] = header;        
+        channelPrevHeaders.put(channelId, header);        
         if(logger.isDebugEnabled()) {
 //            logger.debug(">> {}", message);
         }                
         final ChannelBuffer out = ChannelBuffers.buffer(
                 RtmpHeader.MAX_ENCODED_SIZE + header.getSize() + header.getSize() / chunkSize);
+        final byte[] tinyHeader = header.getTinyHeader();
         boolean first = true;
         while(in.readable()) {
             final int size = Math.min(chunkSize, in.readableBytes());
@@ -98,7 +103,7 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
                 header.encode(out);
                 first = false;
             } else {                
-                out.writeBytes(header.getTinyHeader());
+                out.writeBytes(tinyHeader);
             }
             in.readBytes(out, size);
         }
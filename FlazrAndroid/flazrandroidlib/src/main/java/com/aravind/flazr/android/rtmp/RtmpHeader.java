@@ -66,7 +66,7 @@ public class RtmpHeader {
     private MessageType messageType;
     private int streamId;
 
-    public RtmpHeader(ChannelBuffer in, RtmpHeader[] incompleteHeaders) {
+    public RtmpHeader(ChannelBuffer in, ChunkStreams<RtmpHeader> incompleteHeaders) {
         //=================== TYPE AND CHANNEL (1 - 3 bytes) ===================
         final int firstByteInt = in.readByte();
         final int typeAndChannel;
@@ -86,7 +86,7 @@ public class RtmpHeader {
         }
         headerType = Type.valueToEnum(headerTypeInt);
         //========================= REMAINING HEADER ===========================
-        final RtmpHeader prevHeader = incompleteHeaders[channelId];
+        final RtmpHeader prevHeader = incompleteHeaders.get(channelId);
 
         // logger.debug("so far: {}, prev {}", this, prevHeader);
         switch(headerType) {
@@ -243,7 +243,7 @@ public class RtmpHeader {
     }
 
     public void encode(ChannelBuffer out) {
-        out.writeBytes(encodeHeaderTypeAndChannel(headerType.value, channelId));
+        writeHeaderTypeAndChannel(out, headerType.value, channelId);
         if(headerType == Type.TINY) {
             return;
         }     
@@ -274,6 +274,20 @@ public class RtmpHeader {
         return encodeHeaderTypeAndChannel(Type.TINY.intValue(), channelId);
     }
 
+    // same as below without the array, headers are written for every message
+    private static void writeHeaderTypeAndChannel(final ChannelBuffer out, final int headerType, final int channelId) {
+        if (channelId <= 63) {
+            out.writeByte((byte) ((headerType << 6) + channelId));
+        } else if (channelId <= 320) {
+            out.writeByte((byte) (headerType << 6));
+            out.writeByte((byte) (channelId - 64));
+        } else {
+            out.writeByte((byte) ((headerType << 6) | 1));
+            out.writeByte((byte) ((channelId - 64) & 0xff));
+            out.writeByte((byte) ((channelId - 64) >> 8));
+        }
+    }
+
     private static byte[] encodeHeaderTypeAndChannel(final int headerType, final int channelId) {
         if (channelId <= 63) {
             return new byte[] {(byte) ((headerType << 6) + channelId)};
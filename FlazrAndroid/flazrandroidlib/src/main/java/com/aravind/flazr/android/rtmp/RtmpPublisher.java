@@ -72,10 +72,19 @@ public abstract class RtmpPublisher {
 
     public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration, 
             boolean useSharedTimer, boolean aggregateModeEnabled) {
+        this(reader, streamId, bufferDuration, useSharedTimer ? RtmpServer.TIMER : null, aggregateModeEnabled);
+    }
+
+    /**
+     * @param sharedTimer used for pacing and not stopped on close, e.g. one
+     * timer for the whole app, if null the publisher has its own timer thread
+     */
+    public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration,
+            final Timer sharedTimer, boolean aggregateModeEnabled) {
         this.aggregateModeEnabled = aggregateModeEnabled;
-        this.usingSharedTimer = useSharedTimer;
-        if(useSharedTimer) {
-            timer = RtmpServer.TIMER;
+        this.usingSharedTimer = sharedTimer != null;
+        if(sharedTimer != null) {
+            timer = sharedTimer;
         } else {
             timer = new HashedWheelTimer(RtmpConfig.TIMER_TICK_SIZE, TimeUnit.MILLISECONDS);
         }
@@ -20,6 +20,7 @@
 package com.aravind.flazr.android.rtmp.client;
 
 import com.aravind.flazr.android.io.flv.FlvWriter;
+import com.aravind.flazr.android.rtmp.LiveSource;
 import com.aravind.flazr.android.rtmp.LoopedReader;
 import com.aravind.flazr.android.rtmp.RtmpMessage;
 import com.aravind.flazr.android.rtmp.RtmpPublisher;
@@ -68,6 +69,7 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
     private int bytesWrittenWindow = 2500000;
     
     private RtmpPublisher publisher;
+    private LiveSource liveSource;
     private int streamId;    
 
     public void setSwfvBytes(byte[] swfvBytes) {
@@ -109,8 +111,19 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
         if(publisher != null) {
             publisher.close();
         }
+        if(liveSource != null) {
+            liveSource.channelClosed();
+        }
         super.channelClosed(ctx, e);
     }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if(liveSource != null && liveSource.isStarted()) {
+            liveSource.drain();
+        }
+        super.channelInterestChanged(ctx, e);
+    }
     
     @Override
     public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent me) {
@@ -191,7 +204,11 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                     } else if(resultFor.equals("createStream")) {
                         streamId = ((Double) command.getArg(0)).intValue();
                         logger.debug("streamId to use: {}", streamId);
-                        if(options.getPublishType() != null) { // TODO append, record                            
+                        if(options.getPublishType() != null && options.getLiveSource() != null) {
+                            liveSource = options.getLiveSource();
+                            channel.write(Command.publish(streamId, options));
+                            return;
+                        } else if(options.getPublishType() != null) { // TODO append, record                            
                             RtmpReader reader;
                             if(options.getFileToPublish() != null) {
                                 reader = RtmpPublisher.getReader(options.getFileToPublish());
@@ -201,7 +218,8 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                             if(options.getLoop() > 1) {
                                 reader = new LoopedReader(reader, options.getLoop());
                             }
-                            publisher = new RtmpPublisher(reader, streamId, options.getBuffer(), false, false) {
+                            publisher = new RtmpPublisher(reader, streamId, options.getBuffer(),
+                                    options.isLowMemory() ? RtmpClient.getSharedTimer() : null, false) {
                                 @Override protected RtmpMessage[] getStopMessages(long timePosition) {
                                     return new RtmpMessage[]{Command.unpublish(streamId)};
                                 }
@@ -231,13 +249,18 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                         channel.close();
                         return;
                     }
+                    if(code.equals("NetStream.Publish.Start")
+                            && liveSource != null && !liveSource.isStarted()) {
+                        liveSource.start(channel, streamId);
+                        return;
+                    }
                     if(code.equals("NetStream.Publish.Start")
                             && publisher != null && !publisher.isStarted()) {
                             publisher.start(channel, options.getStart(),
                                     options.getLength(), new ChunkSize(4096));
                         return;
                     }
-                    if (publisher != null && code.equals("NetStream.Unpublish.Success")) {
+                    if ((publisher != null || liveSource != null) && code.equals("NetStream.Unpublish.Success")) {
                         logger.info("unpublish success, closing channel");
                         ChannelFuture future = channel.write(Command.closeStream(streamId));
                         future.addListener(ChannelFutureListener.CLOSE);
@@ -19,6 +19,7 @@
 
 package com.aravind.flazr.android.rtmp.client;
 
+import com.aravind.flazr.android.rtmp.LiveSource;
 import com.aravind.flazr.android.rtmp.RtmpHandshake;
 import com.aravind.flazr.android.rtmp.RtmpReader;
 import com.aravind.flazr.android.rtmp.RtmpWriter;
@@ -74,6 +75,8 @@ public class ClientOptions {
     private int load = 1;
     private int loop = 1;
     private int threads = 10;
+    private boolean lowMemory;
+    private LiveSource liveSource;
     private List<ClientOptions> clientOptionsList;
 
     public static void main(String[] args) {
@@ -191,6 +194,7 @@ public class ClientOptions {
         options.addOption(OptionBuilder.withArgName("threads").hasArg()
                 .withDescription("for load testing (load) mode, thread pool size").create("threads"));
         options.addOption(new Option("file", "spawn connections listed in file (load testing)"));
+        options.addOption(new Option("lowmem", "low memory profile, one small i/o thread and shared timer"));
         return options;
     }
 
@@ -254,6 +258,9 @@ public class ClientOptions {
             if(line.hasOption("threads")) {
                 threads = Integer.valueOf(line.getOptionValue("threads"));
             }
+            if(line.hasOption("lowmem")) {
+                lowMemory = true;
+            }
             if(line.hasOption("loop")) {
                 loop = Integer.valueOf(line.getOptionValue("loop"));
                 if(publishType == null && loop > 1) {
@@ -496,6 +503,24 @@ public class ClientOptions {
         this.threads = threads;
     }
 
+    public boolean isLowMemory() {
+        return lowMemory;
+    }
+
+    /** for phones and other embedded use, see RtmpClient */
+    public void setLowMemory(boolean lowMemory) {
+        this.lowMemory = lowMemory;
+    }
+
+    public LiveSource getLiveSource() {
+        return liveSource;
+    }
+
+    /** publish frames pushed by an in-process producer, e.g. a camera encoder */
+    public void setLiveSource(LiveSource liveSource) {
+        this.liveSource = liveSource;
+    }
+
     public RtmpWriter getWriterToSave() {
         return writerToSave;
     }
@@ -533,6 +558,7 @@ public class ClientOptions {
         sb.append(" load: ").append(load);
         sb.append(" loop: ").append(loop);
         sb.append(" threads: ").append(threads);
+        sb.append(" lowMemory: ").append(lowMemory);
         sb.append(']');
         return sb.toString();
     }
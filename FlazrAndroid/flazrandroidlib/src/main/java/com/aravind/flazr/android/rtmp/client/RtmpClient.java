@@ -19,18 +19,23 @@
 
 package com.aravind.flazr.android.rtmp.client;
 
+import com.aravind.flazr.android.rtmp.RtmpConfig;
 import com.aravind.flazr.android.util.Utils;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class RtmpClient {
 
@@ -85,8 +90,50 @@ public class RtmpClient {
         // TODO graceful shutdown
     }
 
+    private static Timer sharedTimer;
+
+    /**
+     * @return one pacing timer for every file publisher in the low memory
+     * profile, instead of a timer thread each
+     */
+    public static synchronized Timer getSharedTimer() {
+        if(sharedTimer == null) {
+            sharedTimer = new HashedWheelTimer(new SmallThreadFactory("flazr-timer"),
+                    RtmpConfig.TIMER_TICK_SIZE, TimeUnit.MILLISECONDS);
+        }
+        return sharedTimer;
+    }
+
+    /** daemon threads with a small stack, for the low memory profile */
+    private static class SmallThreadFactory implements ThreadFactory {
+
+        private static final long STACK_SIZE = 128 * 1024;
+
+        private final String name;
+
+        public SmallThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(null, runnable, name, STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
     public static void connect(final ClientOptions options) {  
-        final ClientBootstrap bootstrap = getBootstrap(Executors.newCachedThreadPool(), options);
+        final ClientBootstrap bootstrap;
+        if(options.isLowMemory()) {
+            // one i/o thread does everything, the boss only lives while connecting
+            final Executor executor = Executors.newCachedThreadPool(new SmallThreadFactory("flazr-io"));
+            bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(executor, executor, 1));
+            configure(bootstrap, options);
+        } else {
+            bootstrap = getBootstrap(Executors.newCachedThreadPool(), options);
+        }
         final ChannelFuture future = bootstrap.connect(new InetSocketAddress(options.getHost(), options.getPort()));
         future.awaitUninterruptibly();
         if(!future.isSuccess()) {
@@ -100,10 +147,14 @@ public class RtmpClient {
     private static ClientBootstrap getBootstrap(final Executor executor, final ClientOptions options) {
         final ChannelFactory factory = new NioClientSocketChannelFactory(executor, executor);
         final ClientBootstrap bootstrap = new ClientBootstrap(factory);
+        configure(bootstrap, options);
+        return bootstrap;
+    }
+
+    private static void configure(final ClientBootstrap bootstrap, final ClientOptions options) {
         bootstrap.setPipelineFactory(new ClientPipelineFactory(options));
         bootstrap.setOption("tcpNoDelay" , true);
         bootstrap.setOption("keepAlive", true);
-        return bootstrap;
     }
 
 }
@@ -0,0 +1,191 @@
+package com.aravind.flazr.android.rtmp;
+
+import com.aravind.flazr.android.rtmp.message.ChunkSize;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LiveSourceTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveSourceTest.class.getSimpleName());
+
+    private static final byte[] VIDEO_CONFIG = new byte[]{0x17, 0, 0, 0, 0, 1, 0x42, 0, 0x1e};
+
+    private static MockChannel newChannel(final boolean keepWritten) {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("encoder", new RtmpEncoder());
+        final MockChannel channel = new MockChannel(pipeline);
+        channel.setKeepWritten(keepWritten);
+        return channel;
+    }
+
+    private static List<RtmpMessage> decode(final MockChannel channel) {
+        final DecoderEmbedder<RtmpMessage> decoder = new DecoderEmbedder<RtmpMessage>(new RtmpDecoder());
+        for(final Object buffer : channel.getWritten()) {
+            decoder.offer(buffer);
+        }
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        RtmpMessage message;
+        while((message = decoder.poll()) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void fillVideo(final byte[] frame, final boolean keyframe, final int sequence) {
+        frame[0] = (byte) (keyframe ? 0x17 : 0x27);
+        frame[1] = 1;
+        frame[5] = (byte) sequence;
+    }
+
+    @Test
+    public void testFramesDecodeAsRtmpMessages() {
+        final MockChannel mock = newChannel(true);
+        final LiveSource source = new LiveSource();
+        source.pushVideo(5000, VIDEO_CONFIG, true);
+        source.start(mock, 1);
+        final byte[] video = new byte[10000]; // more than two chunks
+        final byte[] audio = new byte[]{(byte) 0xaf, 1, 0x21, 0x10, 0x04};
+        for(int i = 0; i < 20; i++) {
+            fillVideo(video, i % 10 == 0, i);
+            video[100 * i] = 0x27; // the array is re-used and sent from varying offsets
+            video[100 * i + 1] = 1;
+            video[100 * i + 5] = (byte) i;
+            source.pushVideo(5000 + i * 33, video, 100 * i, 5000 + i * 100, i % 10 == 0);
+            source.pushAudio(5000 + i * 23, audio);
+        }
+        final List<RtmpMessage> messages = decode(mock);
+        assertTrue(messages.get(0) instanceof ChunkSize);
+        assertEquals(42, messages.size());
+        final RtmpHeader config = messages.get(1).getHeader();
+        assertTrue(config.isVideo());
+        assertEquals(VIDEO_CONFIG.length, config.getSize());
+        int videoCount = 0;
+        int audioCount = 0;
+        for(final RtmpMessage message : messages.subList(2, messages.size())) {
+            final RtmpHeader header = message.getHeader();
+            assertEquals(1, header.getStreamId());
+            if(header.isVideo()) {
+                assertEquals(videoCount * 33, header.getTime());
+                assertEquals(5000 + videoCount * 100, header.getSize());
+                final ChannelBuffer data = message.encode();
+                assertEquals(videoCount, data.getByte(data.readerIndex() + 5));
+                videoCount++;
+            } else {
+                assertTrue(header.isAudio());
+                assertEquals(audioCount * 23, header.getTime());
+                assertEquals(audio.length, header.getSize());
+                audioCount++;
+            }
+        }
+        assertEquals(20, videoCount);
+        assertEquals(20, audioCount);
+        assertEquals(0, source.getDroppedCount());
+        assertEquals(0, source.getOversizeCount());
+    }
+
+    @Test
+    public void testOldestDroppedWhenPoolRunsOut() {
+        final MockChannel mock = newChannel(true);
+        final LiveSource source = new LiveSource(8, 4096, 60000);
+        source.start(mock, 1);
+        mock.setWritable(false);
+        final byte[] video = new byte[100];
+        for(int i = 0; i < 20; i++) {
+            fillVideo(video, i == 0 || i == 15, i);
+            source.pushVideo(i * 33, video, i == 0 || i == 15);
+            assertTrue(source.getQueuedCount() <= 8);
+        }
+        assertEquals(12, source.getDroppedCount());
+        mock.setWritable(true);
+        source.drain();
+        final List<RtmpMessage> messages = decode(mock);
+        // frames 12 - 14 depend on the dropped keyframe, so go as well
+        assertEquals(1 + 5, messages.size());
+        assertEquals(15 * 33, messages.get(1).getHeader().getTime());
+        assertEquals(15, source.getDroppedCount());
+    }
+
+    @Test
+    public void testBuffersReturnToPoolWhenWritten() {
+        final MockChannel mock = newChannel(false);
+        mock.setCompleteLater(true);
+        final LiveSource source = new LiveSource(4, 4096, 60000);
+        source.start(mock, 1);
+        final byte[] video = new byte[100];
+        for(int i = 0; i < 4; i++) {
+            fillVideo(video, true, i);
+            source.pushVideo(i * 33, video, true);
+        }
+        assertEquals(4, source.getWrittenCount());
+        fillVideo(video, true, 4);
+        source.pushVideo(4 * 33, video, true); // all four still in flight
+        assertEquals(1, source.getDroppedCount());
+        mock.completePending();
+        source.pushVideo(5 * 33, video, true);
+        assertEquals(5, source.getWrittenCount());
+        assertEquals(1, source.getDroppedCount());
+    }
+
+    @Test
+    public void testSteadyStateAllocationPerSecondOfPublishing() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final MockChannel mock = newChannel(false);
+        final LiveSource source = new LiveSource();
+        source.pushVideo(0, VIDEO_CONFIG, true);
+        source.start(mock, 1);
+        // re-used like MediaCodec output buffers, 30 fps video at ~1 mbps and 44.1 khz aac
+        final byte[] video = new byte[40000];
+        final byte[] audio = new byte[400];
+        audio[0] = (byte) 0xaf;
+        audio[1] = 1;
+        final int warmupSeconds = 20;
+        final int seconds = 10;
+        long mediaBytes = 0;
+        long allocatedBefore = 0;
+        for(int second = 0; second < warmupSeconds + seconds; second++) {
+            if(second == warmupSeconds) {
+                allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                mediaBytes = 0;
+            }
+            for(int i = 0; i < 30; i++) {
+                final boolean keyframe = i == 0;
+                final int size = keyframe ? 40000 : 3500;
+                fillVideo(video, keyframe, i);
+                source.pushVideo(second * 1000 + i * 33, video, 0, size, keyframe);
+                mediaBytes += size;
+            }
+            for(int i = 0; i < 43; i++) {
+                source.pushAudio(second * 1000 + i * 23, audio);
+                mediaBytes += audio.length;
+            }
+        }
+        final long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        final long perSecond = allocated / seconds;
+        final long writesPerSecond = mock.getWriteCount() / (warmupSeconds + seconds);
+        logger.info("allocated per second of publishing: {} bytes, {} writes, {} media bytes",
+                perSecond, writesPerSecond, mediaBytes / seconds);
+        assertEquals(0, source.getDroppedCount());
+        assertEquals(0, source.getOversizeCount());
+        // what remains is netty's own per write event and future, copying frames
+        // into fresh buffers would cost more than the media bytes themselves
+        assertTrue("allocated per second: " + perSecond, perSecond < 100 * writesPerSecond);
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.benchmark;
+
+import com.flazr.amf.Amf0Value;
+import com.flazr.rtmp.client.ClientOptions;
+import com.flazr.rtmp.message.AbstractMessage;
+import com.flazr.rtmp.message.Command;
+import com.flazr.rtmp.message.MetadataAmf0;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * a client connect command and the onMetaData of a typical h.264 + aac
+ * recording, encoded and decoded through Amf0Value
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Amf0Benchmark {
+
+    private Command connect;
+    private MetadataAmf0 metadata;
+    private ChannelBuffer connectEncoded;
+    private ChannelBuffer metadataEncoded;
+
+    @Setup
+    public void setup() {
+        final ClientOptions options = new ClientOptions("localhost", "vod", "sample", null);
+        connect = Command.connect(options);
+        final List<Double> times = new ArrayList<Double>();
+        final List<Double> positions = new ArrayList<Double>();
+        for(int i = 0; i < 200; i++) {
+            times.add(i * 2.0);
+            positions.add(i * 250000.0);
+        }
+        metadata = new MetadataAmf0("onMetaData", AbstractMessage.map(
+            AbstractMessage.pair("duration", 400.0),
+            AbstractMessage.pair("width", 1280.0),
+            AbstractMessage.pair("height", 720.0),
+            AbstractMessage.pair("videodatarate", 1000.0),
+            AbstractMessage.pair("framerate", 30.0),
+            AbstractMessage.pair("videocodecid", 7.0),
+            AbstractMessage.pair("audiodatarate", 128.0),
+            AbstractMessage.pair("audiosamplerate", 44100.0),
+            AbstractMessage.pair("stereo", true),
+            AbstractMessage.pair("audiocodecid", 10.0),
+            AbstractMessage.pair("encoder", "Lavf52.31.0"),
+            AbstractMessage.pair("keyframes", AbstractMessage.object(
+                AbstractMessage.pair("times", times.toArray()),
+                AbstractMessage.pair("filepositions", positions.toArray())))));
+        connectEncoded = connect.encode();
+        metadataEncoded = metadata.encode();
+    }
+
+    private static int decodeAll(final ChannelBuffer in) {
+        int count = 0;
+        while(in.readable()) {
+            Amf0Value.decode(in);
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeConnect() {
+        return connect.encode();
+    }
+
+    @Benchmark
+    public int decodeConnect() {
+        return decodeAll(connectEncoded.duplicate());
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeMetadata() {
+        return metadata.encode();
+    }
+
+    @Benchmark
+    public int decodeMetadata() {
+        return decodeAll(metadataEncoded.duplicate());
+    }
+
+}
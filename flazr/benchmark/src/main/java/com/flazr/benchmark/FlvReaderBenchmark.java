@@ -0,0 +1,81 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.benchmark;
+
+import com.flazr.io.MediaGenerator;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.RtmpMessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlvReaderBenchmark {
+
+    private static final int SECONDS = 120;
+
+    private File file;
+    private FlvReader reader;
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("flazr-benchmark", ".flv");
+        new MediaGenerator(SECONDS, 1000).writeFlv(file.getPath());
+        reader = new FlvReader(file.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        reader.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public RtmpMessage next() {
+        if(!reader.hasNext()) {
+            reader.seek(0);
+        }
+        return reader.next();
+    }
+
+    @Benchmark
+    public long seek() {
+        return reader.seek(random.nextInt(SECONDS * 1000));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.benchmark;
+
+import com.flazr.io.MediaGenerator;
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.ChunkSize;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * encoder and decoder throughput over 10 seconds of 1 mbps h.264 + aac,
+ * one operation is the whole stream, divide by getMessageCount() for per
+ * message figures
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpCodecBenchmark {
+
+    @Param({"128", "4096", "65536"})
+    public int chunkSize;
+
+    private List<RtmpMessage> messages;
+    private ChannelBuffer encoded;
+
+    @Setup
+    public void setup() {
+        messages = new MediaGenerator(10, 1000).messages();
+        final RtmpEncoder encoder = newEncoder();
+        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        out.writeBytes(encoder.encode(new ChunkSize(chunkSize)));
+        for(RtmpMessage message : messages) {
+            out.writeBytes(encoder.encode(message));
+        }
+        encoded = out;
+    }
+
+    private RtmpEncoder newEncoder() {
+        final RtmpEncoder encoder = new RtmpEncoder();
+        encoder.encode(new ChunkSize(chunkSize));
+        return encoder;
+    }
+
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    @Benchmark
+    public void encode(final Blackhole blackhole) {
+        final RtmpEncoder encoder = newEncoder();
+        for(RtmpMessage message : messages) {
+            blackhole.consume(encoder.encode(message));
+        }
+    }
+
+    @Benchmark
+    public void decode(final Blackhole blackhole) {
+        final DecoderEmbedder<RtmpMessage> decoder = new DecoderEmbedder<RtmpMessage>(new RtmpDecoder());
+        decoder.offer(encoded.duplicate());
+        RtmpMessage message;
+        while((message = decoder.poll()) != null) {
+            blackhole.consume(message);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.benchmark;
+
+import com.flazr.rtmp.RtmpHandshake;
+import com.flazr.rtmp.client.ClientOptions;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * a complete client / server exchange, rtmpe adds the diffie-hellman key
+ * agreement and the rc4 cipher setup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpHandshakeBenchmark {
+
+    @Param({"false", "true"})
+    public boolean rtmpe;
+
+    private ClientOptions options;
+
+    @Setup
+    public void setup() {
+        options = new ClientOptions("localhost", 1935, "vod", "sample", null, rtmpe, null);
+    }
+
+    @Benchmark
+    public RtmpHandshake handshake() {
+        final RtmpHandshake client = new RtmpHandshake(options);
+        final RtmpHandshake server = new RtmpHandshake();
+        server.decodeClient0And1(ChannelBuffers.wrappedBuffer(client.encodeClient0(), client.encodeClient1()));
+        client.decodeServerAll(ChannelBuffers.wrappedBuffer(
+                server.encodeServer0(), server.encodeServer1(), server.encodeServer2()));
+        server.decodeClient2(client.encodeClient2());
+        return server;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.benchmark;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.message.MessageType;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtmpHeaderBenchmark {
+
+    @Param({"LARGE", "MEDIUM", "SMALL", "TINY"})
+    public RtmpHeader.Type headerType;
+
+    private RtmpHeader header;
+    private ChannelBuffer out;
+    private ChannelBuffer encoded;
+    private RtmpHeader[] prevHeaders;
+
+    @Setup
+    public void setup() {
+        header = new RtmpHeader(MessageType.VIDEO, 40000, 4321);
+        header.setStreamId(1);
+        header.setDeltaTime(33);
+        header.setHeaderType(headerType);
+        out = ChannelBuffers.buffer(RtmpHeader.MAX_ENCODED_SIZE);
+        encoded = ChannelBuffers.buffer(RtmpHeader.MAX_ENCODED_SIZE);
+        header.encode(encoded);
+        prevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+        final RtmpHeader prev = new RtmpHeader(MessageType.VIDEO, 39967, 4321);
+        prev.setStreamId(1);
+        prev.setDeltaTime(33);
+        prev.setHeaderType(RtmpHeader.Type.MEDIUM);
+        prevHeaders[header.getChannelId()] = prev;
+    }
+
+    @Benchmark
+    public ChannelBuffer encode() {
+        out.clear();
+        header.encode(out);
+        return out;
+    }
+
+    @Benchmark
+    public RtmpHeader parse() {
+        encoded.readerIndex(0);
+        return new RtmpHeader(encoded, prevHeaders);
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpConfig;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * process wide cache of fixed size file blocks held in direct buffers, with
+ * 2Q eviction: blocks enter a small fifo and are only promoted to the lru
+ * part when seen again after falling out of it, so one viewer streaming
+ * through a file does not flush blocks that many viewers are reading
+ */
+public class BlockCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockCache.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private static volatile BlockCache instance;
+
+    private final int blockSize;
+    private final int capacity; // in blocks
+    private final int probationCapacity;
+    private final int ghostCapacity;
+
+    // insertion order = fifo
+    private final LinkedHashMap<BlockKey, Block> probation = new LinkedHashMap<BlockKey, Block>();
+    // access order = lru
+    private final LinkedHashMap<BlockKey, Block> protectedBlocks = new LinkedHashMap<BlockKey, Block>(16, 0.75f, true);
+    // keys recently evicted from probation, no data
+    private final LinkedHashMap<BlockKey, Boolean> ghosts = new LinkedHashMap<BlockKey, Boolean>();
+    private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+    private int allocated;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class BlockKey {
+
+        private final String fileId;
+        private final long number;
+
+        public BlockKey(final String fileId, final long number) {
+            this.fileId = fileId;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if(!(o instanceof BlockKey)) {
+                return false;
+            }
+            final BlockKey key = (BlockKey) o;
+            return number == key.number && fileId.equals(key.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileId.hashCode() * 31 + (int) (number ^ (number >>> 32));
+        }
+
+    }
+
+    private static class Block {
+
+        private final ByteBuffer buffer;
+        private final int length;
+        // bumped when the buffer is reused, readers copy without the lock and check this after
+        private volatile long generation;
+
+        public Block(final ByteBuffer buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * @return the shared instance sized by RtmpConfig.SERVER_CACHE_SIZE, null if disabled
+     */
+    public static BlockCache getInstance() {
+        if(instance == null && RtmpConfig.SERVER_CACHE_SIZE > 0) {
+            synchronized(BlockCache.class) {
+                if(instance == null) {
+                    instance = new BlockCache(RtmpConfig.SERVER_CACHE_SIZE, DEFAULT_BLOCK_SIZE);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public BlockCache(final long capacityBytes, final int blockSize) {
+        this.blockSize = blockSize;
+        capacity = (int) Math.max(4, capacityBytes / blockSize);
+        probationCapacity = Math.max(1, capacity / 4);
+        ghostCapacity = capacity * 2;
+        logger.info("block cache capacity: {} blocks of {} bytes", capacity, blockSize);
+    }
+
+    /**
+     * file id has to change when the file content changes, see {@link #fileId}
+     */
+    public void read(final FileChannel channel, final String fileId,
+            long position, final byte[] bytes, int offset, int length) {
+        while(length > 0) {
+            final long number = position / blockSize;
+            final int blockOffset = (int) (position % blockSize);
+            final int count = Math.min(length, blockSize - blockOffset);
+            copy(channel, new BlockKey(fileId, number), blockOffset, bytes, offset, count);
+            bytesServed.addAndGet(count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public static String fileId(final String path, final long size, final long lastModified) {
+        return path + ':' + size + ':' + lastModified;
+    }
+
+    private void copy(final FileChannel channel, final BlockKey key,
+            final int blockOffset, final byte[] bytes, final int offset, final int count) {
+        while(true) {
+            Block block;
+            long generation = 0;
+            synchronized(this) {
+                block = protectedBlocks.get(key);
+                if(block == null) {
+                    block = probation.get(key);
+                }
+                if(block != null) {
+                    generation = block.generation;
+                }
+            }
+            if(block == null) {
+                misses.incrementAndGet();
+                block = load(channel, key);
+                if(block == null) { // everything in flight, read around the cache
+                    readFully(channel, ByteBuffer.wrap(bytes, offset, count), key.number * blockSize + blockOffset);
+                    return;
+                }
+                generation = block.generation;
+            } else {
+                hits.incrementAndGet();
+            }
+            final int available = Math.min(count, block.length - blockOffset);
+            if(available > 0) {
+                final ByteBuffer view = block.buffer.duplicate();
+                view.position(blockOffset);
+                view.get(bytes, offset, available);
+            }
+            if(block.generation == generation) {
+                return;
+            }
+            logger.debug("block reused while copying, retrying");
+        }
+    }
+
+    private Block load(final FileChannel channel, final BlockKey key) {
+        final ByteBuffer buffer;
+        synchronized(this) {
+            buffer = allocate();
+        }
+        if(buffer == null) {
+            return null;
+        }
+        buffer.clear();
+        final int length = readFully(channel, buffer, key.number * blockSize);
+        bytesLoaded.addAndGet(length);
+        final Block loaded = new Block(buffer, length);
+        synchronized(this) {
+            final Block existing = protectedBlocks.containsKey(key) ? protectedBlocks.get(key) : probation.get(key);
+            if(existing != null) { // loaded concurrently
+                free.add(buffer);
+                return existing;
+            }
+            if(ghosts.remove(key) != null) {
+                protectedBlocks.put(key, loaded);
+            } else {
+                probation.put(key, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    private ByteBuffer allocate() {
+        if(!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        if(allocated < capacity) {
+            allocated++;
+            return ByteBuffer.allocateDirect(blockSize);
+        }
+        final Block victim;
+        if(!probation.isEmpty() && (probation.size() > probationCapacity || protectedBlocks.isEmpty())) {
+            final Iterator<Map.Entry<BlockKey, Block>> iterator = probation.entrySet().iterator();
+            final Map.Entry<BlockKey, Block> eldest = iterator.next();
+            iterator.remove();
+            ghosts.put(eldest.getKey(), Boolean.TRUE);
+            if(ghosts.size() > ghostCapacity) {
+                final Iterator<BlockKey> ghostIterator = ghosts.keySet().iterator();
+                ghostIterator.next();
+                ghostIterator.remove();
+            }
+            victim = eldest.getValue();
+        } else if(!protectedBlocks.isEmpty()) {
+            final Iterator<Block> iterator = protectedBlocks.values().iterator();
+            victim = iterator.next();
+            iterator.remove();
+        } else {
+            return null;
+        }
+        victim.generation++;
+        evictions.incrementAndGet();
+        return victim.buffer;
+    }
+
+    private static int readFully(final FileChannel channel, final ByteBuffer buffer, final long position) {
+        final int start = buffer.position();
+        try {
+            while(buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position + buffer.position() - start);
+                if(read == -1) {
+                    break;
+                }
+            }
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+        return buffer.position() - start;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        final long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    public long getBytesLoaded() {
+        return bytesLoaded.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytesCached() {
+        return (long) (probation.size() + protectedBlocks.size()) * blockSize;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[hits: ").append(hits);
+        sb.append(" misses: ").append(misses);
+        sb.append(" ratio: ").append(String.format("%.3f", getHitRatio()));
+        sb.append(" served: ").append(bytesServed);
+        sb.append(" loaded: ").append(bytesLoaded);
+        sb.append(" evictions: ").append(evictions);
+        sb.append(" cached: ").append(getBytesCached());
+        sb.append(']');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * end of the last complete tag of a file that is still being written, shared
+ * in-process so that readers can follow a recording without ever seeing a
+ * half written tag, and wait for more instead of hitting end of file
+ */
+public class CommitWatermark {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommitWatermark.class);
+
+    private static final ConcurrentMap<String, CommitWatermark> WATERMARKS =
+            new ConcurrentHashMap<String, CommitWatermark>();
+
+    private final String path;
+    private volatile long position;
+    private volatile boolean closed;
+
+    private CommitWatermark(final String path, final long position) {
+        this.path = path;
+        this.position = position;
+    }
+
+    private static String key(final File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch(Exception e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * called by the writer, replaces any watermark left over for the same file
+     */
+    public static CommitWatermark open(final File file, final long position) {
+        final CommitWatermark watermark = new CommitWatermark(key(file), position);
+        final CommitWatermark old = WATERMARKS.put(watermark.path, watermark);
+        if(old != null) {
+            logger.warn("replacing watermark of file still open for writing: {}", old);
+            old.close();
+        }
+        logger.debug("opened watermark: {}", watermark);
+        return watermark;
+    }
+
+    /**
+     * @return null if the file is not being written in this process
+     */
+    public static CommitWatermark get(final File file) {
+        return WATERMARKS.get(key(file));
+    }
+
+    public synchronized void commit(final long position) {
+        this.position = position;
+        notifyAll();
+    }
+
+    /**
+     * the writer is done, readers can use the real file size from now on
+     */
+    public synchronized void close() {
+        closed = true;
+        WATERMARKS.remove(path, this);
+        notifyAll();
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return true if data beyond the given position was committed or the
+     * writer was closed before the timeout
+     */
+    public synchronized boolean await(final long beyond, final long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(position <= beyond && !closed) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[path: ").append(path);
+        sb.append(" position: ").append(position);
+        sb.append(" closed: ").append(closed);
+        sb.append(']');
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * sink that only counts what it is given, looking at nothing but the
+ * message header, so it works on payloads skipped by the decoder and never
+ * splits aggregates the way {@link com.flazr.io.flv.FlvWriter} does
+ */
+public class DiscardWriter implements RtmpWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiscardWriter.class);
+
+    private final long startTime = System.currentTimeMillis();
+    private long messages;
+    private long bytes;
+    private int firstTime = -1;
+    private int lastTime;
+
+    @Override
+    public void write(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        messages++;
+        bytes += header.getSize();
+        if(!header.isMedia()) {
+            return;
+        }
+        final int time = header.getTime();
+        if(firstTime == -1) {
+            firstTime = time;
+        }
+        if(time > lastTime) {
+            lastTime = time;
+        }
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** milliseconds of media between the first and latest timestamp seen */
+    public int getDuration() {
+        return firstTime == -1 ? 0 : lastTime - firstTime;
+    }
+
+    @Override
+    public void close() {
+        logger.info("finished in {} seconds, media duration: {} seconds, messages: {}, bytes: {}",
+                new Object[]{(System.currentTimeMillis() - startTime) / 1000,
+                getDuration() / 1000, messages, bytes});
+    }
+
+}
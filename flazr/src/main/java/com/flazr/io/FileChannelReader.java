@@ -19,6 +19,7 @@
 
 package com.flazr.io;
 
+import com.flazr.rtmp.RtmpConfig;
 import java.io.File;
 import java.io.FileInputStream;
 import java.nio.ByteBuffer;
@@ -34,7 +35,14 @@ public class FileChannelReader implements BufferReader {
 
     private final String absolutePath;
     private final FileChannel in;
-    private final long fileSize;
+    private long fileSize;
+    private long position;
+    // not null while the file is being written in this process
+    private CommitWatermark watermark;
+    // null if the block cache is disabled or the file is still growing
+    private final BlockCache cache;
+    private final String fileId;
+    private ReadAhead readAhead;
 
     public FileChannelReader(final String path) {
         this(new File(path));
@@ -43,35 +51,51 @@ public class FileChannelReader implements BufferReader {
     public FileChannelReader(final File file) {
         absolutePath = file.getAbsolutePath();
         try {
+            watermark = CommitWatermark.get(file);
             in = new FileInputStream(file).getChannel();
             fileSize = in.size();
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
+        cache = watermark == null ? BlockCache.getInstance() : null;
+        fileId = cache == null ? null : BlockCache.fileId(absolutePath, fileSize, file.lastModified());
         logger.info("opened file: {}", absolutePath);
     }
 
+    /**
+     * for a file still being written this is the end of the last complete tag
+     */
     @Override
     public long size() {
+        if(watermark != null) {
+            if(!watermark.isClosed()) {
+                return watermark.getPosition();
+            }
+            watermark = null;
+            try {
+                fileSize = in.size();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
         return fileSize;
     }
 
+    /**
+     * @return the watermark if the file is still being written, else null
+     */
+    public CommitWatermark getWatermark() {
+        return watermark;
+    }
+
     @Override
     public long position() {
-        try {
-            return in.position();
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
+        return position;
     }
 
     @Override
     public void position(final long newPosition) {
-        try {
-            in.position(newPosition);
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
+        position = newPosition;
     }
 
     @Override
@@ -92,17 +116,58 @@ public class FileChannelReader implements BufferReader {
     @Override
     public byte[] readBytes(final int size) {
         final byte[] bytes = new byte[size];
-        final ByteBuffer bb = ByteBuffer.wrap(bytes);
+        if(readAhead == null || !readAhead.read(position, bytes, 0, size)) {
+            readDirect(position, bytes, 0, size);
+        }
+        position += size;
+        if(readAhead != null) {
+            readAhead.advance(position);
+        }
+        return bytes;
+    }
+
+    /**
+     * reads through the block cache if enabled, does not move the position,
+     * safe to call from other threads
+     */
+    void readDirect(final long from, final byte[] bytes, final int offset, final int length) {
+        if(cache != null) {
+            cache.read(in, fileId, from, bytes, offset, length);
+            return;
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(bytes, offset, length);
         try {
-            in.read(bb);
+            while(bb.hasRemaining()) {
+                if(in.read(bb, from + bb.position() - offset) == -1) {
+                    break;
+                }
+            }
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
-        return bytes;
+    }
+
+    /**
+     * prefetch ahead of sequential reads, no-op for a file still being written
+     * or when RtmpConfig.SERVER_READ_AHEAD_SECONDS is 0
+     */
+    public void enableReadAhead(final int windowSize) {
+        if(RtmpConfig.SERVER_READ_AHEAD_SECONDS <= 0 || watermark != null) {
+            return;
+        }
+        readAhead = new ReadAhead(this, fileSize, windowSize);
+        logger.debug("read ahead enabled, window: {} bytes", windowSize);
+    }
+
+    public void cancelReadAhead() {
+        if(readAhead != null) {
+            readAhead.cancel();
+        }
     }
 
     @Override
     public void close() {
+        cancelReadAhead();
         try {
             in.close();
         } catch(Exception e) {
@@ -0,0 +1,650 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.MetadataAmf0;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.flazr.rtmp.message.AbstractMessage.*;
+
+/**
+ * writes h.264 + aac shaped flv and mp4 files with dummy (zero) payloads,
+ * valid as far as the containers go, so that benchmarks and soak tests need
+ * no real media. frame sizes are random but repeatable for the same seed,
+ * and files are streamed out so multi-gigabyte assets only cost the sample
+ * tables in memory
+ */
+public class MediaGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaGenerator.class);
+
+    public static enum Tracks {
+
+        AUDIO_VIDEO, VIDEO, AUDIO;
+
+        public boolean hasVideo() {
+            return this != AUDIO;
+        }
+
+        public boolean hasAudio() {
+            return this != VIDEO;
+        }
+
+    }
+
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 360;
+
+    /** a key frame is this many times the size of an average inter frame */
+    private static final int KEY_FRAME_RATIO = 8;
+    private static final int VIDEO_TIME_SCALE = 90000;
+    private static final int WRITE_BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte[] AVC_CONFIG = Utils.fromHex("0142c01effe100046742c01e01000468ce3c80");
+    private static final byte[] AAC_CONFIG = Utils.fromHex("1210");
+    private static final byte[] AVC_CONFIG_PREFIX = Utils.fromHex("1700000000");
+    private static final byte[] AAC_CONFIG_PREFIX = Utils.fromHex("af00");
+    private static final byte[] AVC_KEY_FRAME_PREFIX = Utils.fromHex("1701");
+    private static final byte[] AVC_PREFIX = Utils.fromHex("2701");
+    private static final byte[] AAC_PREFIX = Utils.fromHex("af01");
+
+    private int duration = 60;
+    private int videoBitrate = 1000;
+    private int audioBitrate = 128;
+    private int frameRate = 30;
+    private int gopFrames = 60;
+    private int audioSampleRate = 44100;
+    private int audioFrameSamples = 1024;
+    private Tracks tracks = Tracks.AUDIO_VIDEO;
+    private long seed = 42;
+
+    public MediaGenerator() {
+    }
+
+    public MediaGenerator(final int duration, final int videoBitrate) {
+        this.duration = duration;
+        this.videoBitrate = videoBitrate;
+    }
+
+    /** receives the frames in time order, sizes are payload bytes without the flv prefix */
+    private static abstract class Frames {
+
+        public abstract void audio(int time, int size);
+
+        public abstract void video(int time, int size, boolean keyFrame);
+
+    }
+
+    private void generate(final Frames frames) {
+        final Random random = new Random(seed);
+        final long videoFrames = getVideoFrameCount();
+        final long audioFrames = getAudioFrameCount();
+        final int averageVideo = (int) ((long) videoBitrate * 1000 / 8 / frameRate);
+        final int interVideo = averageVideo * gopFrames / (gopFrames + KEY_FRAME_RATIO - 1);
+        final int averageAudio = (int) ((long) audioBitrate * 1000 / 8 * audioFrameSamples / audioSampleRate);
+        long video = 0;
+        long audio = 0;
+        while(video < videoFrames || audio < audioFrames) {
+            final int audioTime = (int) (audio * audioFrameSamples * 1000 / audioSampleRate);
+            final int videoTime = (int) (video * 1000 / frameRate);
+            if(audio < audioFrames && (video == videoFrames || audioTime <= videoTime)) {
+                frames.audio(audioTime, averageAudio * 19 / 20 + random.nextInt(averageAudio / 10 + 1));
+                audio++;
+            } else {
+                if(video % gopFrames == 0) {
+                    frames.video(videoTime, interVideo * KEY_FRAME_RATIO, true);
+                } else {
+                    frames.video(videoTime, interVideo * 3 / 4 + random.nextInt(interVideo / 2 + 1), false);
+                }
+                video++;
+            }
+        }
+    }
+
+    public long getVideoFrameCount() {
+        return tracks.hasVideo() ? (long) duration * frameRate : 0;
+    }
+
+    public long getAudioFrameCount() {
+        return tracks.hasAudio() ? (long) duration * audioSampleRate / audioFrameSamples : 0;
+    }
+
+    /** the decoder configuration messages that go before any frame */
+    public List<RtmpMessage> getStartMessages() {
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        if(tracks.hasVideo()) {
+            messages.add(new Video(AVC_CONFIG_PREFIX, AVC_CONFIG));
+        }
+        if(tracks.hasAudio()) {
+            messages.add(new Audio(AAC_CONFIG_PREFIX, AAC_CONFIG));
+        }
+        return messages;
+    }
+
+    /** start messages and frames as an rtmp publisher would send them, all in memory */
+    public List<RtmpMessage> messages() {
+        final List<RtmpMessage> messages = getStartMessages();
+        generate(new Frames() {
+            @Override public void audio(int time, int size) {
+                messages.add(new Audio(time, AAC_PREFIX, new byte[size]));
+            }
+            @Override public void video(int time, int size, boolean keyFrame) {
+                messages.add(new Video(time, keyFrame ? AVC_KEY_FRAME_PREFIX : AVC_PREFIX, 0, new byte[size]));
+            }
+        });
+        return messages;
+    }
+
+    public MetadataAmf0 getMetadata() {
+        final Map<String, Object> map = map(pair("duration", (double) duration));
+        if(tracks.hasVideo()) {
+            map(map,
+                pair("width", (double) WIDTH),
+                pair("height", (double) HEIGHT),
+                pair("framerate", (double) frameRate),
+                pair("videodatarate", (double) videoBitrate),
+                pair("videocodecid", 7.0));
+        }
+        if(tracks.hasAudio()) {
+            map(map,
+                pair("audiodatarate", (double) audioBitrate),
+                pair("audiosamplerate", (double) audioSampleRate),
+                pair("stereo", true),
+                pair("audiocodecid", 10.0));
+        }
+        return new MetadataAmf0("onMetaData", map);
+    }
+
+    /** written through FlvWriter, so the file gets its keyframe index and duration */
+    public void writeFlv(final String path) {
+        final FlvWriter writer = new FlvWriter(path);
+        writer.write(getMetadata());
+        for(RtmpMessage message : getStartMessages()) {
+            writer.write(message);
+        }
+        generate(new Frames() {
+            @Override public void audio(int time, int size) {
+                writer.write(new Audio(time, AAC_PREFIX, new byte[size]));
+            }
+            @Override public void video(int time, int size, boolean keyFrame) {
+                writer.write(new Video(time, keyFrame ? AVC_KEY_FRAME_PREFIX : AVC_PREFIX, 0, new byte[size]));
+            }
+        });
+        writer.close();
+    }
+
+    //============================== MP4 =======================================
+
+    private static ChannelBuffer box(final String type, final ChannelBuffer... payloads) {
+        int size = 8;
+        for(ChannelBuffer payload : payloads) {
+            size += payload.readableBytes();
+        }
+        final ChannelBuffer out = ChannelBuffers.buffer(size);
+        out.writeInt(size);
+        out.writeBytes(type.getBytes());
+        for(ChannelBuffer payload : payloads) {
+            out.writeBytes(payload);
+        }
+        return out;
+    }
+
+    private static ChannelBuffer fullBox(final String type, final ChannelBuffer payload) {
+        return box(type, ChannelBuffers.wrappedBuffer(new byte[4]), payload); // version + flags
+    }
+
+    private static void writeMatrix(final ChannelBuffer out) {
+        final int[] matrix = {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+        for(int value : matrix) {
+            out.writeInt(value);
+        }
+    }
+
+    /** one sample per chunk, samples of both tracks interleaved in time order in the mdat */
+    private class Track {
+
+        private final boolean video;
+        private final int timeScale;
+        private final int sampleDuration;
+        private final int[] sizes;
+        private final long[] offsets;
+        private final List<Integer> syncSamples = new ArrayList<Integer>();
+        private int count;
+
+        public Track(final boolean video, final long sampleCount) {
+            this.video = video;
+            if(video) {
+                timeScale = VIDEO_TIME_SCALE;
+                sampleDuration = VIDEO_TIME_SCALE / frameRate;
+            } else {
+                timeScale = audioSampleRate;
+                sampleDuration = audioFrameSamples;
+            }
+            sizes = new int[(int) sampleCount];
+            offsets = new long[(int) sampleCount];
+        }
+
+        public void add(final long offset, final int size, final boolean sync) {
+            sizes[count] = size;
+            offsets[count] = offset;
+            count++;
+            if(sync) {
+                syncSamples.add(count);
+            }
+        }
+
+        public ChannelBuffer trak(final int trackId) {
+            final ChannelBuffer tkhd = ChannelBuffers.buffer(84);
+            tkhd.writeInt(0); // creation
+            tkhd.writeInt(0); // modification
+            tkhd.writeInt(trackId);
+            tkhd.writeInt(0);
+            tkhd.writeInt(duration * 1000);
+            tkhd.writeZero(8);
+            tkhd.writeShort((short) 0); // layer
+            tkhd.writeShort((short) 0); // alternate group
+            tkhd.writeShort((short) (video ? 0 : 0x100)); // volume
+            tkhd.writeShort((short) 0);
+            writeMatrix(tkhd);
+            tkhd.writeInt(video ? WIDTH << 16 : 0);
+            tkhd.writeInt(video ? HEIGHT << 16 : 0);
+            final ChannelBuffer mdhd = ChannelBuffers.buffer(20);
+            mdhd.writeInt(0);
+            mdhd.writeInt(0);
+            mdhd.writeInt(timeScale);
+            mdhd.writeInt(count * sampleDuration);
+            mdhd.writeShort((short) 0x55c4); // 'und'
+            mdhd.writeShort((short) 0);
+            final ChannelBuffer hdlr = ChannelBuffers.buffer(21);
+            hdlr.writeInt(0);
+            hdlr.writeBytes((video ? "vide" : "soun").getBytes());
+            hdlr.writeZero(12);
+            hdlr.writeByte((byte) 0); // empty name
+            final ChannelBuffer mediaHeader = video
+                    ? fullBox("vmhd", ChannelBuffers.wrappedBuffer(new byte[8]))
+                    : fullBox("smhd", ChannelBuffers.wrappedBuffer(new byte[4]));
+            final ChannelBuffer dinf = box("dinf", fullBox("dref",
+                    ChannelBuffers.wrappedBuffer(Utils.fromHex("000000010000000c75726c2000000001"))));
+            final ChannelBuffer stbl = box("stbl", stsd(), stts(), stsc(), stsz(), stco(), stss());
+            return box("trak", fullBox("tkhd", tkhd), box("mdia", fullBox("mdhd", mdhd),
+                    fullBox("hdlr", hdlr), box("minf", mediaHeader, dinf, stbl)));
+        }
+
+        private ChannelBuffer stsd() {
+            final ChannelBuffer entry;
+            if(video) {
+                final ChannelBuffer avc1 = ChannelBuffers.buffer(78);
+                avc1.writeZero(6);
+                avc1.writeShort((short) 1); // data reference index
+                avc1.writeZero(16);
+                avc1.writeShort((short) WIDTH);
+                avc1.writeShort((short) HEIGHT);
+                avc1.writeInt(0x480000); // 72 dpi
+                avc1.writeInt(0x480000);
+                avc1.writeInt(0);
+                avc1.writeShort((short) 1); // frame count
+                avc1.writeZero(32); // compressor name
+                avc1.writeShort((short) 0x18); // depth
+                avc1.writeShort((short) -1);
+                entry = box("avc1", avc1, box("avcC", ChannelBuffers.wrappedBuffer(AVC_CONFIG)));
+            } else {
+                final ChannelBuffer mp4a = ChannelBuffers.buffer(28);
+                mp4a.writeZero(6);
+                mp4a.writeShort((short) 1); // data reference index
+                mp4a.writeZero(8); // version, revision, vendor
+                mp4a.writeShort((short) 2); // channels
+                mp4a.writeShort((short) 16); // sample size
+                mp4a.writeZero(4); // compression id, packet size
+                mp4a.writeInt(audioSampleRate << 16);
+                // es descriptor > decoder config (aac, audio stream) > aac config, then sl config
+                final ChannelBuffer esds = ChannelBuffers.wrappedBuffer(
+                        Utils.fromHex("03190000000411401500000000000000000000000502"), AAC_CONFIG, Utils.fromHex("060102"));
+                entry = box("mp4a", mp4a, fullBox("esds", esds));
+            }
+            final ChannelBuffer out = ChannelBuffers.buffer(4);
+            out.writeInt(1);
+            return fullBox("stsd", ChannelBuffers.wrappedBuffer(out, entry));
+        }
+
+        private ChannelBuffer stts() {
+            final ChannelBuffer out = ChannelBuffers.buffer(12);
+            out.writeInt(1);
+            out.writeInt(count);
+            out.writeInt(sampleDuration);
+            return fullBox("stts", out);
+        }
+
+        private ChannelBuffer stsc() {
+            final ChannelBuffer out = ChannelBuffers.buffer(16);
+            out.writeInt(1);
+            out.writeInt(1); // first chunk
+            out.writeInt(1); // samples per chunk
+            out.writeInt(1); // sample description index
+            return fullBox("stsc", out);
+        }
+
+        private ChannelBuffer stsz() {
+            final ChannelBuffer out = ChannelBuffers.buffer(8 + count * 4);
+            out.writeInt(0);
+            out.writeInt(count);
+            for(int i = 0; i < count; i++) {
+                out.writeInt(sizes[i]);
+            }
+            return fullBox("stsz", out);
+        }
+
+        /** co64 only when the file goes past 4 gb */
+        private ChannelBuffer stco() {
+            final boolean co64 = count > 0 && offsets[count - 1] > 0xFFFFFFFFL;
+            final ChannelBuffer out = ChannelBuffers.buffer(4 + count * (co64 ? 8 : 4));
+            out.writeInt(count);
+            for(int i = 0; i < count; i++) {
+                if(co64) {
+                    out.writeLong(offsets[i]);
+                } else {
+                    out.writeInt((int) offsets[i]);
+                }
+            }
+            return fullBox(co64 ? "co64" : "stco", out);
+        }
+
+        private ChannelBuffer stss() {
+            if(!video) { // absent means every sample is a sync sample
+                return ChannelBuffers.EMPTY_BUFFER;
+            }
+            final ChannelBuffer out = ChannelBuffers.buffer(4 + syncSamples.size() * 4);
+            out.writeInt(syncSamples.size());
+            for(int sample : syncSamples) {
+                out.writeInt(sample);
+            }
+            return fullBox("stss", out);
+        }
+
+    }
+
+    /**
+     * ftyp, mdat then moov, the sample tables are worked out first so that
+     * the mdat (with a 64 bit size if needed) can be streamed straight to disk
+     */
+    public void writeMp4(final String path) {
+        final long startTime = System.currentTimeMillis();
+        final Track video = tracks.hasVideo() ? new Track(true, getVideoFrameCount()) : null;
+        final Track audio = tracks.hasAudio() ? new Track(false, getAudioFrameCount()) : null;
+        final ChannelBuffer ftyp = box("ftyp", ChannelBuffers.wrappedBuffer(
+                "isom".getBytes(), new byte[4], "isomavc1mp42".getBytes()));
+        final long[] mdatSize = new long[1];
+        generate(new Frames() {
+            @Override public void audio(int time, int size) {
+                audio.add(mdatSize[0], size, false);
+                mdatSize[0] += size;
+            }
+            @Override public void video(int time, int size, boolean keyFrame) {
+                video.add(mdatSize[0], size, keyFrame);
+                mdatSize[0] += size;
+            }
+        });
+        final boolean largeMdat = mdatSize[0] + 8 > 0xFFFFFFFFL;
+        final ChannelBuffer mdatHeader = ChannelBuffers.buffer(16);
+        if(largeMdat) {
+            mdatHeader.writeInt(1);
+            mdatHeader.writeBytes("mdat".getBytes());
+            mdatHeader.writeLong(mdatSize[0] + 16);
+        } else {
+            mdatHeader.writeInt((int) (mdatSize[0] + 8));
+            mdatHeader.writeBytes("mdat".getBytes());
+        }
+        final long dataOffset = ftyp.readableBytes() + mdatHeader.readableBytes();
+        final List<ChannelBuffer> moov = new ArrayList<ChannelBuffer>();
+        final ChannelBuffer mvhd = ChannelBuffers.buffer(96);
+        mvhd.writeInt(0);
+        mvhd.writeInt(0);
+        mvhd.writeInt(1000);
+        mvhd.writeInt(duration * 1000);
+        mvhd.writeInt(0x10000); // rate
+        mvhd.writeShort((short) 0x100); // volume
+        mvhd.writeZero(10);
+        writeMatrix(mvhd);
+        mvhd.writeZero(24);
+        mvhd.writeInt(3); // next track id
+        moov.add(fullBox("mvhd", mvhd));
+        int trackId = 1;
+        for(Track track : new Track[] {video, audio}) {
+            if(track == null) {
+                continue;
+            }
+            for(int i = 0; i < track.count; i++) {
+                track.offsets[i] += dataOffset;
+            }
+            moov.add(track.trak(trackId++));
+        }
+        try {
+            final FileOutputStream fos = new FileOutputStream(path);
+            final FileChannel out = fos.getChannel();
+            try {
+                write(out, ftyp.toByteBuffer());
+                write(out, mdatHeader.toByteBuffer());
+                final ByteBuffer zeros = ByteBuffer.allocateDirect(WRITE_BLOCK_SIZE);
+                long remaining = mdatSize[0];
+                while(remaining > 0) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(remaining, WRITE_BLOCK_SIZE));
+                    remaining -= zeros.remaining();
+                    write(out, zeros);
+                }
+                write(out, box("moov", moov.toArray(new ChannelBuffer[moov.size()])).toByteBuffer());
+            } finally {
+                fos.close();
+            }
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("wrote {}, media duration: {} seconds, mdat bytes: {}, took {} ms", new Object[]{
+            path, duration, mdatSize[0], System.currentTimeMillis() - startTime});
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    //==========================================================================
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    public void setVideoBitrate(int videoBitrate) {
+        this.videoBitrate = videoBitrate;
+    }
+
+    public int getAudioBitrate() {
+        return audioBitrate;
+    }
+
+    public void setAudioBitrate(int audioBitrate) {
+        this.audioBitrate = audioBitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public int getGopFrames() {
+        return gopFrames;
+    }
+
+    public void setGopFrames(int gopFrames) {
+        this.gopFrames = gopFrames;
+    }
+
+    public int getAudioSampleRate() {
+        return audioSampleRate;
+    }
+
+    public void setAudioSampleRate(int audioSampleRate) {
+        this.audioSampleRate = audioSampleRate;
+    }
+
+    public int getAudioFrameSamples() {
+        return audioFrameSamples;
+    }
+
+    public void setAudioFrameSamples(int audioFrameSamples) {
+        this.audioFrameSamples = audioFrameSamples;
+    }
+
+    public Tracks getTracks() {
+        return tracks;
+    }
+
+    public void setTracks(Tracks tracks) {
+        this.tracks = tracks;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** video bitrate (kbps) that makes the file roughly the given size */
+    public void setVideoBitrateForSize(final long bytes) {
+        final long audioBytes = tracks.hasAudio() ? (long) audioBitrate * 1000 / 8 * duration : 0;
+        videoBitrate = (int) Math.max(1, (bytes - audioBytes) * 8 / 1000 / duration);
+    }
+
+    //==========================================================================
+
+    protected static Options getCliOptions() {
+        final Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("duration, default 60").create("duration"));
+        options.addOption(OptionBuilder.withArgName("kbps").hasArg()
+                .withDescription("video bitrate, default 1000").create("video"));
+        options.addOption(OptionBuilder.withArgName("kbps").hasArg()
+                .withDescription("audio bitrate, default 128").create("audio"));
+        options.addOption(OptionBuilder.withArgName("bytes").hasArg()
+                .withDescription("approximate file size, overrides the video bitrate").create("size"));
+        options.addOption(OptionBuilder.withArgName("fps").hasArg()
+                .withDescription("video frame rate, default 30").create("fps"));
+        options.addOption(OptionBuilder.withArgName("frames").hasArg()
+                .withDescription("key frame interval, default 60").create("gop"));
+        options.addOption(OptionBuilder.withArgName("hz").hasArg()
+                .withDescription("aac sample rate, default 44100").create("rate"));
+        options.addOption(OptionBuilder.withArgName("samples").hasArg()
+                .withDescription("samples per aac frame, default 1024").create("samples"));
+        options.addOption(OptionBuilder.withArgName("tracks").hasArg()
+                .withDescription("AUDIO_VIDEO (default), VIDEO or AUDIO").create("tracks"));
+        options.addOption(OptionBuilder.withArgName("seed").hasArg()
+                .withDescription("random seed for frame sizes").create("seed"));
+        return options;
+    }
+
+    public static void main(String[] args) {
+        final Options options = getCliOptions();
+        final CommandLine line;
+        try {
+            line = new GnuParser().parse(options, args);
+        } catch(Exception e) {
+            System.err.println("parsing failed: " + e.getMessage());
+            return;
+        }
+        if(line.hasOption("help") || line.getArgs().length == 0) {
+            new HelpFormatter().printHelp("generate [options] file.flv | file.mp4", options);
+            return;
+        }
+        final MediaGenerator generator = new MediaGenerator();
+        if(line.hasOption("duration")) {
+            generator.setDuration(Integer.valueOf(line.getOptionValue("duration")));
+        }
+        if(line.hasOption("video")) {
+            generator.setVideoBitrate(Integer.valueOf(line.getOptionValue("video")));
+        }
+        if(line.hasOption("audio")) {
+            generator.setAudioBitrate(Integer.valueOf(line.getOptionValue("audio")));
+        }
+        if(line.hasOption("fps")) {
+            generator.setFrameRate(Integer.valueOf(line.getOptionValue("fps")));
+        }
+        if(line.hasOption("gop")) {
+            generator.setGopFrames(Integer.valueOf(line.getOptionValue("gop")));
+        }
+        if(line.hasOption("rate")) {
+            generator.setAudioSampleRate(Integer.valueOf(line.getOptionValue("rate")));
+        }
+        if(line.hasOption("samples")) {
+            generator.setAudioFrameSamples(Integer.valueOf(line.getOptionValue("samples")));
+        }
+        if(line.hasOption("tracks")) {
+            generator.setTracks(Tracks.valueOf(line.getOptionValue("tracks").toUpperCase()));
+        }
+        if(line.hasOption("seed")) {
+            generator.setSeed(Long.valueOf(line.getOptionValue("seed")));
+        }
+        if(line.hasOption("size")) {
+            generator.setVideoBitrateForSize(Long.valueOf(line.getOptionValue("size")));
+        }
+        final String path = line.getArgs()[0];
+        if(path.toLowerCase().endsWith(".flv")) {
+            generator.writeFlv(path);
+        } else {
+            generator.writeMp4(path);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io;
+
+import com.flazr.rtmp.RtmpConfig;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * asynchronous prefetch of the bytes ahead of a sequential reader into a
+ * window that later reads are served from, the memory held by all windows
+ * in the process is bounded by RtmpConfig.SERVER_READ_AHEAD_MEMORY
+ */
+public class ReadAhead {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadAhead.class);
+
+    private static final int MIN_WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private static final AtomicLong RESERVED = new AtomicLong();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static ExecutorService executor;
+
+    private final FileChannelReader reader;
+    private final long fileSize;
+    private final int windowSize;
+    private boolean reserved;
+
+    private byte[] window;
+    private long windowStart;
+    private int windowLength;
+    private boolean loading;
+    private long generation;
+    private long lastPosition = -1;
+    private int sequentialReads;
+
+    public ReadAhead(final FileChannelReader reader, final long fileSize, final int windowSize) {
+        this.reader = reader;
+        this.fileSize = fileSize;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return RtmpConfig.SERVER_READ_AHEAD_SECONDS of media at the given rate, within sane bounds
+     */
+    public static int windowSize(final double bytesPerSecond) {
+        final double size = bytesPerSecond * RtmpConfig.SERVER_READ_AHEAD_SECONDS;
+        return (int) Math.max(MIN_WINDOW_SIZE, Math.min(MAX_WINDOW_SIZE, size));
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, RtmpConfig.SERVER_READ_AHEAD_THREADS),
+                    new ThreadFactory() {
+                @Override public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "read-ahead-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return false if the range is not (yet) in the window
+     */
+    public synchronized boolean read(final long position, final byte[] bytes, final int offset, final int length) {
+        if(window == null || position < windowStart || position + length > windowStart + windowLength) {
+            if(sequentialReads > 1) {
+                MISSES.incrementAndGet();
+            }
+            return false;
+        }
+        System.arraycopy(window, (int) (position - windowStart), bytes, offset, length);
+        HITS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * called after every read with the position after it, starts a prefetch
+     * once reads look sequential and less than half a window is left ahead
+     */
+    public synchronized void advance(final long position) {
+        if(lastPosition != -1 && position > lastPosition && position - lastPosition <= windowSize) {
+            sequentialReads++;
+        } else {
+            sequentialReads = 0;
+        }
+        lastPosition = position;
+        if(loading || sequentialReads < 2) {
+            return;
+        }
+        final long windowEnd = window == null ? position : windowStart + windowLength;
+        if(windowEnd - position > windowSize / 2 || windowEnd >= fileSize) {
+            return;
+        }
+        if(!reserved && !reserve()) {
+            return;
+        }
+        loading = true;
+        final long expected = generation;
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                fill(expected, position);
+            }
+        });
+    }
+
+    private void fill(final long expected, final long start) {
+        final byte[] old;
+        final long oldStart;
+        final int oldLength;
+        synchronized(this) {
+            if(expected != generation) {
+                return;
+            }
+            old = window;
+            oldStart = windowStart;
+            oldLength = windowLength;
+        }
+        final byte[] bytes = new byte[windowSize];
+        int length = 0;
+        if(old != null && start >= oldStart && start < oldStart + oldLength) {
+            length = (int) (oldStart + oldLength - start);
+            System.arraycopy(old, (int) (start - oldStart), bytes, 0, length);
+        }
+        final int toRead = (int) Math.min(windowSize - length, fileSize - start - length);
+        try {
+            if(toRead > 0) {
+                reader.readDirect(start + length, bytes, length, toRead);
+                length += toRead;
+            }
+        } catch(Exception e) {
+            logger.debug("read ahead failed: {}", e.getMessage());
+            synchronized(this) {
+                if(expected == generation) {
+                    loading = false;
+                }
+            }
+            return;
+        }
+        synchronized(this) {
+            if(expected != generation) {
+                return;
+            }
+            window = bytes;
+            windowStart = start;
+            windowLength = length;
+            loading = false;
+        }
+    }
+
+    private boolean reserve() {
+        while(true) {
+            final long current = RESERVED.get();
+            if(current + windowSize > RtmpConfig.SERVER_READ_AHEAD_MEMORY) {
+                logger.debug("read ahead memory exhausted, reserved: {}", current);
+                return false;
+            }
+            if(RESERVED.compareAndSet(current, current + windowSize)) {
+                reserved = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * drops the window and any prefetch in flight, for e.g. on seek
+     */
+    public synchronized void cancel() {
+        generation++;
+        window = null;
+        windowLength = 0;
+        loading = false;
+        sequentialReads = 0;
+        lastPosition = -1;
+        if(reserved) {
+            RESERVED.addAndGet(-windowSize);
+            reserved = false;
+        }
+    }
+
+    public static long getReservedBytes() {
+        return RESERVED.get();
+    }
+
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+}
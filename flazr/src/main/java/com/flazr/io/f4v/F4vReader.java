@@ -19,8 +19,8 @@
 
 package com.flazr.io.f4v;
 
-import com.flazr.io.BufferReader;
 import com.flazr.io.FileChannelReader;
+import com.flazr.io.ReadAhead;
 import com.flazr.io.flv.FlvAtom;
 import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
@@ -30,6 +30,7 @@ import com.flazr.rtmp.message.Audio;
 import com.flazr.rtmp.message.Metadata;
 import com.flazr.rtmp.message.Video;
 import com.flazr.util.Utils;
+import java.util.ArrayList;
 import java.util.List;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -40,6 +41,8 @@ public class F4vReader implements RtmpReader {
 
     private static final Logger logger = LoggerFactory.getLogger(F4vReader.class);
 
+    public static final int DEFAULT_AGGREGATE_SIZE_LIMIT = 65536;
+
     private static final byte[] MP4A_BEGIN_PREFIX = Utils.fromHex("af00");
     private static final byte[] MP4A_PREFIX = Utils.fromHex("af01");
     private static final byte[] AVC1_BEGIN_PREFIX = Utils.fromHex("1700000000");
@@ -49,23 +52,31 @@ public class F4vReader implements RtmpReader {
     private byte[] AVC1_BEGIN;
     private byte[] MP4A_BEGIN;
 
-    private final BufferReader in;
+    private final FileChannelReader in;
     private final List<Sample> samples;
     private final Metadata metadata;
 
     private int cursor;
     private int aggregateDuration;
+    private int aggregateSizeLimit = DEFAULT_AGGREGATE_SIZE_LIMIT;
 
     public F4vReader(final String path) {
         in = new FileChannelReader(path);
         final MovieInfo movie = new MovieInfo(in);
         in.position(0);
-        AVC1_BEGIN = movie.getVideoDecoderConfig();
-        MP4A_BEGIN = movie.getAudioDecoderConfig();
-        logger.debug("video decoder config inited: {}", Utils.toHex(AVC1_BEGIN));
+        // either track may be missing, e.g. audio only recordings
+        if(movie.getVideoTrack() != null) {
+            AVC1_BEGIN = movie.getVideoDecoderConfig();
+            logger.debug("video decoder config inited: {}", Utils.toHex(AVC1_BEGIN));
+        }
+        if(movie.getAudioTrack() != null) {
+            MP4A_BEGIN = movie.getAudioDecoderConfig();
+        }
         metadata = Metadata.onMetaData(movie);
         samples = movie.getSamples();
         cursor = 0;
+        final double duration = movie.getDuration();
+        in.enableReadAhead(ReadAhead.windowSize(duration > 0 ? in.size() / duration : 0));
     }
 
     @Override
@@ -75,11 +86,15 @@ public class F4vReader implements RtmpReader {
 
     @Override
     public RtmpMessage[] getStartMessages() {
-        return new RtmpMessage[] {
-            getMetadata(),
-            new Video(AVC1_BEGIN_PREFIX, AVC1_BEGIN),
-            new Audio(MP4A_BEGIN_PREFIX, MP4A_BEGIN)
-        };
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        messages.add(getMetadata());
+        if(AVC1_BEGIN != null) {
+            messages.add(new Video(AVC1_BEGIN_PREFIX, AVC1_BEGIN));
+        }
+        if(MP4A_BEGIN != null) {
+            messages.add(new Audio(MP4A_BEGIN_PREFIX, MP4A_BEGIN));
+        }
+        return messages.toArray(new RtmpMessage[messages.size()]);
     }
 
     @Override
@@ -87,6 +102,11 @@ public class F4vReader implements RtmpReader {
         this.aggregateDuration = targetDuration;
     }
 
+    @Override
+    public void setAggregateSizeLimit(int maxBytes) {
+        this.aggregateSizeLimit = maxBytes;
+    }
+
     @Override
     public long getTimePosition() {
         final int index;
@@ -100,6 +120,7 @@ public class F4vReader implements RtmpReader {
 
     @Override
     public long seek(long timePosition) {
+        in.cancelReadAhead();
         cursor = 0;
         while(cursor < samples.size()) {
             final Sample sample = samples.get(cursor);
@@ -108,7 +129,8 @@ public class F4vReader implements RtmpReader {
             }
             cursor++;
         }
-        while(!samples.get(cursor).isSyncSample() && cursor > 0) {
+        // without a video track there are no sync samples to go back to
+        while(AVC1_BEGIN != null && !samples.get(cursor).isSyncSample() && cursor > 0) {
             cursor--;
         }
         return samples.get(cursor).getTime();
@@ -119,8 +141,6 @@ public class F4vReader implements RtmpReader {
         return cursor < samples.size();
     }
 
-    private static final int AGGREGATE_SIZE_LIMIT = 65536;
-
     @Override
     public RtmpMessage next() {
         if(aggregateDuration <= 0) {
@@ -137,7 +157,7 @@ public class F4vReader implements RtmpReader {
             final RtmpHeader header = message.getHeader();
             final FlvAtom flvAtom = new FlvAtom(header.getMessageType(), header.getTime(), message.encode());
             final ChannelBuffer temp = flvAtom.write();
-            if(out.readableBytes() + temp.readableBytes() > AGGREGATE_SIZE_LIMIT) {
+            if(out.readable() && out.readableBytes() + temp.readableBytes() > aggregateSizeLimit) {
                 cursor--;
                 break;
             }
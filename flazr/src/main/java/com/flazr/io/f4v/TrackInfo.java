@@ -70,7 +70,8 @@ public class TrackInfo {
                 case CTTS: ctts = (CTTS) pay; break;
                 case STSC: stsc = (STSC) pay; break;
                 case STSZ: stsz = (STSZ) pay; break;
-                case STCO: stco = (STCO) pay; break;
+                case STCO:
+                case CO64: stco = (STCO) pay; break;
                 case STSS: stss = (STSS) pay; break;
             }
         }
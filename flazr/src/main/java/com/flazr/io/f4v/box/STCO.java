@@ -59,7 +59,7 @@ public class STCO implements Payload {
         logger.debug("no of chunk offsets: {}", count);
         offsets = new ArrayList<Long>(count);
         for (int i = 0; i < count; i++) {
-            final Long offset = co64 ? in.readLong() : in.readInt();
+            final Long offset = co64 ? in.readLong() : in.readUnsignedInt();
             // logger.debug("#{} offset: {}", new Object[]{i, offset});
             offsets.add(offset);
         }
@@ -0,0 +1,239 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.io.flv;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.MetadataAmf0;
+import com.flazr.rtmp.message.Video;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * write-behind wrapper around {@link FlvWriter}, the caller (typically the
+ * publisher's i/o thread) only snapshots the message into a bounded queue,
+ * a dedicated thread drains the queue, coalesces tags into direct buffers
+ * and writes them out with gathering writes
+ */
+public class AsyncFlvWriter implements RtmpWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFlvWriter.class);
+
+    public static enum StallPolicy {
+
+        /** caller waits for room in the queue, nothing is lost */
+        BLOCK,
+        /** message is discarded and video is skipped until the next keyframe */
+        DROP;
+
+        public static StallPolicy parse(final String raw) {
+            return StallPolicy.valueOf(raw.toUpperCase());
+        }
+
+    }
+
+    private static final int COALESCE_BUFFER_COUNT = 4;
+    private static final int COALESCE_BUFFER_SIZE = 256 * 1024;
+
+    private static final RtmpMessage CLOSE = new FlvAtom(new RtmpHeader(MessageType.AUDIO), null);
+
+    private final FlvWriter writer;
+    private final BlockingQueue<RtmpMessage> queue;
+    private final StallPolicy stallPolicy;
+    private final Thread thread;
+    private boolean waitingForKeyFrame;
+    private long droppedCount;
+    private long episodeDroppedCount;
+    private volatile boolean closed;
+
+    public AsyncFlvWriter(final String fileName, final int queueSize, final StallPolicy stallPolicy) {
+        this(0, fileName, false, queueSize, stallPolicy);
+    }
+
+    public AsyncFlvWriter(final int seekTime, final String fileName, final boolean append,
+            final int queueSize, final StallPolicy stallPolicy) {
+        writer = new FlvWriter(seekTime, fileName, append, COALESCE_BUFFER_COUNT, COALESCE_BUFFER_SIZE);
+        queue = new ArrayBlockingQueue<RtmpMessage>(queueSize);
+        this.stallPolicy = stallPolicy;
+        thread = new Thread(new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        }, "flv-writer-" + fileName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public void write(final RtmpMessage message) {
+        if(closed) {
+            return;
+        }
+        final RtmpHeader header = message.getHeader();
+        if(waitingForKeyFrame && header.isVideo()) {
+            if(!FlvAtom.isKeyFrame(message.encode())) {
+                droppedCount++;
+                episodeDroppedCount++;
+                return;
+            }
+            logger.warn("resuming after keyframe, dropped in this stall: {}, so far: {}",
+                    episodeDroppedCount, droppedCount);
+            waitingForKeyFrame = false;
+            episodeDroppedCount = 0;
+        }
+        final RtmpMessage snapshot = snapshot(message);
+        if(stallPolicy == StallPolicy.BLOCK) {
+            try {
+                queue.put(snapshot);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        } else if(!queue.offer(snapshot)) {
+            if(!waitingForKeyFrame) {
+                logger.warn("disk not keeping up, dropping until next keyframe: {}", header);
+            }
+            droppedCount++;
+            episodeDroppedCount++;
+            waitingForKeyFrame = true;
+        }
+    }
+
+    /**
+     * the original message may be re-used by the caller (e.g. encoded again
+     * for a subscriber), so hand over an independent header and payload view
+     */
+    private static RtmpMessage snapshot(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        final RtmpHeader copy = new RtmpHeader(header.getMessageType(), header.getTime(), header.getSize());
+        copy.setChannelId(header.getChannelId());
+        return new FlvAtom(copy, message.encode().slice());
+    }
+
+    private void drain() {
+        final List<RtmpMessage> batch = new ArrayList<RtmpMessage>();
+        try {
+            while(true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for(final RtmpMessage message : batch) {
+                    if(message == CLOSE) {
+                        writer.flush();
+                        return;
+                    }
+                    writer.write(message);
+                }
+                batch.clear();
+                if(queue.isEmpty()) {
+                    writer.flush();
+                }
+            }
+        } catch(InterruptedException e) {
+            closed = true;
+            queue.clear();
+            logger.warn("writer thread interrupted, recording incomplete");
+        } catch(Exception e) {
+            closed = true;
+            queue.clear();
+            logger.error("writer thread failed, recording stopped: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if(!closed) {
+            closed = true;
+            try {
+                // the writer thread may have stopped on its own and will never take CLOSE
+                while(thread.isAlive() && !queue.offer(CLOSE, 100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writer.close();
+        if(droppedCount > 0) {
+            logger.warn("recording closed, messages dropped: {}", droppedCount);
+        }
+    }
+
+    //==========================================================================
+
+    /**
+     * rough throughput and caller side latency check with synthetic media,
+     * compares the plain synchronous writer against the write-behind one
+     */
+    public static void main(String[] args) {
+        final String fileName = args.length > 0 ? args[0] : "target/temp/async-writer.flv";
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        run(new FlvWriter(fileName), seconds, "sync");
+        run(new AsyncFlvWriter(fileName, 4096, StallPolicy.BLOCK), seconds, "async");
+    }
+
+    private static void run(final RtmpWriter writer, final int seconds, final String label) {
+        final byte[] videoFrame = new byte[12 * 1024];
+        final byte[] keyFrame = new byte[96 * 1024];
+        keyFrame[0] = 0x17;
+        videoFrame[0] = 0x27;
+        final byte[] audioFrame = new byte[400];
+        audioFrame[0] = (byte) 0xaf;
+        final long start = System.nanoTime();
+        long maxNanos = 0;
+        long bytes = 0;
+        int count = 0;
+        writer.write(new MetadataAmf0("onMetaData"));
+        for(int time = 0; time < seconds * 1000; time += 10) {
+            final RtmpMessage message;
+            if(time % 40 == 0) {
+                message = new Video(time % 2000 == 0 ? keyFrame : videoFrame);
+            } else if(time % 20 == 0) {
+                message = new Audio(audioFrame);
+            } else {
+                continue;
+            }
+            message.getHeader().setTime(time);
+            final long before = System.nanoTime();
+            writer.write(message);
+            maxNanos = Math.max(maxNanos, System.nanoTime() - before);
+            bytes += message.getHeader().getSize();
+            count++;
+        }
+        final long callerNanos = System.nanoTime() - start;
+        writer.close();
+        final long totalNanos = System.nanoTime() - start;
+        logger.info("{}: {} messages, {} MB/s, caller avg {} us / max {} us", new Object[]{label, count,
+                bytes * 1000 / totalNanos, callerNanos / count / 1000, maxNanos / 1000});
+    }
+
+}
@@ -59,6 +59,11 @@ public class FlvAtom implements RtmpMessage {
         in.position(in.position() + 4); // prev offset
     }
 
+    public FlvAtom(final RtmpHeader header, final ChannelBuffer in) {
+        this.header = header;
+        data = in;
+    }
+
     public FlvAtom(final MessageType messageType, final int time, final ChannelBuffer in) {
         header = new RtmpHeader(messageType, time, in.readableBytes());
         data = in;
@@ -75,11 +80,19 @@ public class FlvAtom implements RtmpMessage {
         return out;
     }
 
+    public boolean isKeyFrame() {
+        return header.isVideo() && isKeyFrame(data);
+    }
+
+    public static boolean isKeyFrame(final ChannelBuffer data) {
+        return data.readable() && (data.getByte(data.readerIndex()) & 0xF0) == 0x10;
+    }
+
     public static RtmpHeader readHeader(final ChannelBuffer in) {
         final MessageType messageType = MessageType.valueToEnum(in.readByte());
-        final int size = in.readMedium();
-        final int time = in.readMedium();
-        in.skipBytes(4); // 0 - reserved
+        final int size = in.readUnsignedMedium();
+        final int time = in.readUnsignedMedium() | (in.readByte() & 0xFF) << 24; // extended
+        in.skipBytes(3); // stream id, always 0
         return new RtmpHeader(messageType, time, size);
     }
 
@@ -19,14 +19,16 @@
 
 package com.flazr.io.flv;
 
-import com.flazr.io.BufferReader;
+import com.flazr.io.CommitWatermark;
 import com.flazr.io.FileChannelReader;
+import com.flazr.io.ReadAhead;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.message.Aggregate;
 import com.flazr.rtmp.message.MessageType;
 import com.flazr.rtmp.message.Metadata;
 import com.flazr.rtmp.message.MetadataAmf0;
+import java.util.Map;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
@@ -35,14 +37,26 @@ import org.slf4j.LoggerFactory;
 public class FlvReader implements RtmpReader {
 
     private static final Logger logger = LoggerFactory.getLogger(FlvReader.class);
+
+    public static final int DEFAULT_AGGREGATE_SIZE_LIMIT = 65536;
     
-    private final BufferReader in;
+    private final FileChannelReader in;
+    private final CommitWatermark watermark;
     private final long mediaStartPosition;
     private final Metadata metadata;
     private int aggregateDuration;    
+    private int aggregateSizeLimit = DEFAULT_AGGREGATE_SIZE_LIMIT;
+
+    // from the 'keyframes' metadata property if present, times in milliseconds
+    private long[] keyFrameTimes;
+    private long[] keyFramePositions;
 
     public FlvReader(final String path) {
         in = new FileChannelReader(path);
+        watermark = in.getWatermark();
+        if(watermark != null) {
+            logger.info("file is still being written, following: {}", watermark);
+        }
         in.position(13); // skip flv header
         final RtmpMessage metadataAtom = next();
         final RtmpMessage metadataTemp = 
@@ -50,6 +64,7 @@ public class FlvReader implements RtmpReader {
         if(metadataTemp.getHeader().isMetadata()) {
             metadata = (Metadata) metadataTemp;
             mediaStartPosition = in.position();
+            readKeyFrameIndex();
         } else {
             logger.warn("flv file does not start with 'onMetaData', using empty one");
             metadata = new MetadataAmf0("onMetaData");
@@ -57,6 +72,103 @@ public class FlvReader implements RtmpReader {
             mediaStartPosition = 13;
         }
         logger.debug("flv file metadata: {}", metadata);
+        in.enableReadAhead(ReadAhead.windowSize(getBytesPerSecond()));
+    }
+
+    private void readKeyFrameIndex() {
+        final Map<String, Object> map = metadata.getMap(0);
+        if(map == null) {
+            return;
+        }
+        map.remove("padding"); // reserved space left by FlvWriter
+        final Object keyframes = map.get("keyframes");
+        if(!(keyframes instanceof Map)) {
+            return;
+        }
+        final Object times = ((Map) keyframes).get("times");
+        final Object positions = ((Map) keyframes).get("filepositions");
+        if(!(times instanceof Object[]) || !(positions instanceof Object[])) {
+            return;
+        }
+        final Object[] timesArray = (Object[]) times;
+        final Object[] positionsArray = (Object[]) positions;
+        if(timesArray.length == 0 || timesArray.length != positionsArray.length) {
+            logger.warn("ignoring invalid keyframe index in metadata");
+            return;
+        }
+        final int count = timesArray.length;
+        keyFrameTimes = new long[count];
+        keyFramePositions = new long[count];
+        try {
+            for(int i = 0; i < count; i++) {
+                keyFrameTimes[i] = Math.round(((Number) timesArray[i]).doubleValue() * 1000);
+                keyFramePositions[i] = ((Number) positionsArray[i]).longValue();
+            }
+        } catch(ClassCastException e) {
+            logger.warn("ignoring invalid keyframe index in metadata: {}", e.getMessage());
+            keyFrameTimes = null;
+            keyFramePositions = null;
+            return;
+        }
+        logger.debug("keyframe index entries: {}", count);
+    }
+
+    /**
+     * uses the keyframe index to position on the closest keyframe at or
+     * before the requested time, returns -1 if the index cannot be used
+     */
+    private long seekUsingIndex(final long time) {
+        if(keyFrameTimes == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = keyFrameTimes.length - 1;
+        int found = -1;
+        while(low <= high) {
+            final int mid = (low + high) >>> 1;
+            if(keyFrameTimes[mid] <= time) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if(found == -1) {
+            return -1;
+        }
+        final long position = keyFramePositions[found];
+        if(position < mediaStartPosition || position >= in.size()) {
+            logger.warn("keyframe index position out of range: {}", position);
+            return -1;
+        }
+        final long oldPosition = in.position();
+        in.position(position);
+        final FlvAtom cursor = new FlvAtom(in);
+        if(!cursor.getHeader().isVideo() || !cursor.isKeyFrame()) {
+            logger.warn("keyframe index does not point to a keyframe: {}", position);
+            in.position(oldPosition);
+            return -1;
+        }
+        in.position(position);
+        logger.debug("returned seek frame / position using index: {}", cursor);
+        return cursor.getHeader().getTime();
+    }
+
+    private double getBytesPerSecond() {
+        final Map<String, Object> map = metadata.getMap(0);
+        if(map != null) {
+            double kbps = 0;
+            for(final String key : new String[]{"videodatarate", "audiodatarate"}) {
+                if(map.get(key) instanceof Number) {
+                    kbps += ((Number) map.get(key)).doubleValue();
+                }
+            }
+            if(kbps > 0) {
+                return kbps * 1000 / 8;
+            }
+        }
+        final double duration = metadata.getDuration();
+        return duration > 0 ? in.size() / duration : 0;
     }
 
     @Override
@@ -74,6 +186,11 @@ public class FlvReader implements RtmpReader {
         this.aggregateDuration = targetDuration;
     }
 
+    @Override
+    public void setAggregateSizeLimit(int maxBytes) {
+        this.aggregateSizeLimit = maxBytes;
+    }
+
     @Override
     public long getTimePosition() {
         final int time;
@@ -100,6 +217,7 @@ public class FlvReader implements RtmpReader {
     @Override
     public long seek(final long time) {
         logger.debug("trying to seek to: {}", time);
+        in.cancelReadAhead();
         if(time == 0) { // special case
             try {
                 in.position(mediaStartPosition);
@@ -108,6 +226,10 @@ public class FlvReader implements RtmpReader {
                 throw new RuntimeException(e);
             }
         }
+        final long indexed = seekUsingIndex(time);
+        if(indexed != -1) {
+            return indexed;
+        }
         final long start = getTimePosition();        
         if(time > start) {
             while(hasNext()) {
@@ -150,6 +272,27 @@ public class FlvReader implements RtmpReader {
     }
 
 
+    /**
+     * @return false while the file is still being recorded, in which case
+     * hasNext() returning false only means no more data yet
+     */
+    public boolean isComplete() {
+        return watermark == null || watermark.isClosed();
+    }
+
+    /**
+     * blocks until there is a complete tag after the current position or the
+     * recording is finished, for callers that can afford to block
+     * @return true if hasNext() may now return true
+     */
+    public boolean await(final long timeoutMillis) {
+        if(watermark == null) {
+            return hasNext();
+        }
+        watermark.await(in.position(), timeoutMillis);
+        return hasNext();
+    }
+
     protected boolean hasPrev() {        
         return in.position() > mediaStartPosition;
     }
@@ -164,8 +307,6 @@ public class FlvReader implements RtmpReader {
         return flvAtom;
     }
 
-    private static final int AGGREGATE_SIZE_LIMIT = 65536;
-
     @Override
     public RtmpMessage next() {
         if(aggregateDuration <= 0) {
@@ -180,7 +321,7 @@ public class FlvReader implements RtmpReader {
                 firstAtomTime = currentAtomTime;
             }
             final ChannelBuffer temp = flvAtom.write();
-            if(out.readableBytes() + temp.readableBytes() > AGGREGATE_SIZE_LIMIT) {
+            if(out.readable() && out.readableBytes() + temp.readableBytes() > aggregateSizeLimit) {
                 prev();
                 break;
             }
@@ -21,34 +21,103 @@ package com.flazr.io.flv;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.flazr.io.CommitWatermark;
 import com.flazr.rtmp.RtmpHeader;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 public class FlvWriter implements RtmpWriter {
 
     private static final Logger logger = LoggerFactory.getLogger(FlvWriter.class);
 
+    /**
+     * size of the 'onMetaData' payload reserved right after the flv header,
+     * patched on close with duration, file size and the keyframe index
+     */
+    public static final int METADATA_SLOT_SIZE = 32000;
+    private static final int METADATA_SLOT_OFFSET = 13 + 11;
+    private static final String METADATA_PADDING = "padding";
+    // how far back to look for the previous tag of the same type when appending
+    private static final int FRAME_INTERVAL_SCAN_TAGS = 32;
+
     private final FileChannel out;
     private final int[] channelTimes = new int[RtmpHeader.MAX_CHANNEL_ID];
     private int primaryChannel = -1;
     private int lastLoggedSeconds;
     private final int seekTime;
+    // non zero when appending, added to all incoming timestamps
+    private int timeOffset;
+    // false when appending to a file that has no reserved metadata slot
+    private boolean metadataSlot = true;
+    // lets readers of this file in the same process follow complete tags only
+    private CommitWatermark watermark;
     private final long startTime;  
 
+    // re-used for every tag, the payload goes out as the middle of a gathering write
+    private final ByteBuffer tagHeader = ByteBuffer.allocateDirect(11);
+    private final ByteBuffer tagTrailer = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer[] tagBuffers = new ByteBuffer[3];
+
+    // when not null, tags are coalesced here and only written on flush
+    private final ByteBuffer[] coalesceBuffers;
+    private int coalesceIndex;
+
+    private long filePosition;
+    private int lastTime;
+    private final Map<String, Object> metadataValues = new LinkedHashMap<String, Object>();
+    private final List<Double> keyFrameTimes = new ArrayList<Double>();
+    private final List<Double> keyFramePositions = new ArrayList<Double>();
+
     public FlvWriter(final String fileName) {
         this(0, fileName);
     }
 
     public FlvWriter(final int seekTime, final String fileName) {
+        this(seekTime, fileName, 0, 0);
+    }
+
+    /**
+     * @param coalesceBufferCount if > 0, tags are copied into this many direct
+     * buffers of coalesceBufferSize bytes each and written with one gathering
+     * write when they are all full or when {@link #flush()} is called
+     */
+    public FlvWriter(final int seekTime, final String fileName,
+            final int coalesceBufferCount, final int coalesceBufferSize) {
+        this(seekTime, fileName, false, coalesceBufferCount, coalesceBufferSize);
+    }
+
+    /**
+     * @param append if true and the file exists, new tags are added after the
+     * last complete tag and timestamps continue from where the file ends
+     */
+    public FlvWriter(final int seekTime, final String fileName, final boolean append,
+            final int coalesceBufferCount, final int coalesceBufferSize) {
         this.seekTime = seekTime < 0 ? 0 : seekTime;
         this.startTime = System.currentTimeMillis();
+        if(coalesceBufferCount > 0) {
+            coalesceBuffers = new ByteBuffer[coalesceBufferCount];
+            for(int i = 0; i < coalesceBufferCount; i++) {
+                coalesceBuffers[i] = ByteBuffer.allocateDirect(coalesceBufferSize);
+            }
+        } else {
+            coalesceBuffers = null;
+        }
         if(fileName == null) {
             logger.info("save file notspecified, will only consume stream");
             out = null;
@@ -56,20 +125,186 @@ public class FlvWriter implements RtmpWriter {
         }
         try {
             File file = new File(fileName);
+            // registered before the file is truncated or written, so readers
+            // following it in this process never see the old or a torn end
+            if(append && file.exists() && file.length() > 13) {
+                watermark = CommitWatermark.open(file, 13);
+                out = new RandomAccessFile(file, "rw").getChannel();
+                openForAppend();
+                watermark.commit(filePosition);
+                logger.info("opened file for appending: {}, position: {}, time offset: {}",
+                        new Object[]{file.getAbsolutePath(), filePosition, timeOffset});
+                return;
+            }
+            watermark = CommitWatermark.open(file, 0);
             FileOutputStream fos = new FileOutputStream(file);
             out = fos.getChannel();
-            out.write(FlvAtom.flvHeader().toByteBuffer());
+            writeFlvHeader();
+            flush();
             logger.info("opened file for writing: {}", file.getAbsolutePath());
         } catch (Exception e) {
+            if(watermark != null) {
+                watermark.close();
+            }
             throw new RuntimeException(e);
         }        
     }
 
+    private void writeFlvHeader() throws Exception {
+        out.write(FlvAtom.flvHeader().toByteBuffer());
+        filePosition = 13;
+        watermark.commit(filePosition);
+        write(new FlvAtom(MessageType.METADATA_AMF0, 0, encodeMetadataSlot()));
+    }
+
+    private void openForAppend() throws Exception {
+        final long size = out.size();
+        final ByteBuffer flvHeader = readFully(0, 13);
+        if(flvHeader.get(0) != 'F' || flvHeader.get(1) != 'L' || flvHeader.get(2) != 'V') {
+            out.close();
+            throw new RuntimeException("not an flv file, cannot append");
+        }
+        // the trailing previous-tag-size field points straight at the last tag
+        final int lastTagSize = readFully(size - 4, 4).getInt();
+        long end = size;
+        long lastTagPosition = size - 4 - lastTagSize;
+        int lastTagTime = tagTimeAt(lastTagPosition, lastTagSize - 11, size);
+        if(lastTagTime == -1) {
+            logger.warn("last tag is incomplete, scanning for last complete tag");
+            end = 13;
+            lastTagPosition = -1;
+            lastTagTime = 0;
+            long position = 13;
+            while(position + 11 + 4 <= size) {
+                final int dataSize = readFully(position, 4).getInt() & 0xFFFFFF;
+                final int time = tagTimeAt(position, dataSize, size);
+                if(time == -1) {
+                    break;
+                }
+                lastTagPosition = position;
+                lastTagTime = time;
+                position += 11 + dataSize + 4;
+                end = position;
+            }
+            logger.warn("truncating torn tag, file size: {}, last complete tag ends at: {}", size, end);
+            out.truncate(end);
+        }
+        filePosition = end;
+        lastTime = lastTagTime;
+        readMetadataSlot(end);
+        // the appended media starts one frame after the last tag, not on top of it
+        timeOffset = lastTagTime + frameInterval(lastTagPosition, lastTagTime, end);
+        out.position(end);
+    }
+
+    /**
+     * from the frame rate in the metadata if known, else the gap between the
+     * last tag and the one before it of the same type, else 1 ms
+     */
+    private int frameInterval(final long lastTagPosition, final int lastTagTime, final long end) throws Exception {
+        final Object frameRate = metadataValues.get("framerate");
+        if(frameRate instanceof Number && ((Number) frameRate).doubleValue() > 0) {
+            return Math.max(1, (int) Math.round(1000 / ((Number) frameRate).doubleValue()));
+        }
+        if(lastTagPosition < 13) {
+            return 1;
+        }
+        final int type = readFully(lastTagPosition, 1).get() & 0x1F;
+        long position = lastTagPosition;
+        for(int i = 0; i < FRAME_INTERVAL_SCAN_TAGS && position > 13; i++) {
+            final int tagSize = readFully(position - 4, 4).getInt();
+            position -= 4 + tagSize;
+            final int time = tagTimeAt(position, tagSize - 11, end);
+            if(time == -1) {
+                break;
+            }
+            if((readFully(position, 1).get() & 0x1F) == type && time < lastTagTime) {
+                return lastTagTime - time;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the tag timestamp if a complete and consistent tag with the
+     * given data size exists at the position, else -1
+     */
+    private int tagTimeAt(final long position, final int dataSize, final long size) throws Exception {
+        if(position < 13 || dataSize < 0 || position + 11 + dataSize + 4 > size) {
+            return -1;
+        }
+        final ByteBuffer tag = readFully(position, 11);
+        final int type = tag.get(0) & 0x1F;
+        if(type != 8 && type != 9 && type != 18) {
+            return -1;
+        }
+        final int tagDataSize = (tag.get(1) & 0xFF) << 16 | (tag.get(2) & 0xFF) << 8 | tag.get(3) & 0xFF;
+        if(tagDataSize != dataSize) {
+            return -1;
+        }
+        if(readFully(position + 11 + dataSize, 4).getInt() != dataSize + 11) {
+            return -1;
+        }
+        return (tag.get(7) & 0xFF) << 24 | (tag.get(4) & 0xFF) << 16
+                | (tag.get(5) & 0xFF) << 8 | tag.get(6) & 0xFF;
+    }
+
+    private void readMetadataSlot(final long end) throws Exception {
+        if(tagTimeAt(13, METADATA_SLOT_SIZE, end) == -1 || (readFully(13, 1).get() & 0x1F) != 18) {
+            logger.warn("no reserved metadata slot, metadata will not be updated on close");
+            metadataSlot = false;
+            return;
+        }
+        final ByteBuffer data = readFully(METADATA_SLOT_OFFSET, METADATA_SLOT_SIZE);
+        final RtmpHeader header = new RtmpHeader(MessageType.METADATA_AMF0, 0, METADATA_SLOT_SIZE);
+        final Metadata metadata = (Metadata) MessageType.decode(header, ChannelBuffers.wrappedBuffer(data));
+        mergeMetadata(metadata);
+        final Map<String, Object> map = metadata.getMap(0);
+        final Object keyframes = map == null ? null : map.get("keyframes");
+        if(!(keyframes instanceof Map)) {
+            return;
+        }
+        final Object times = ((Map) keyframes).get("times");
+        final Object positions = ((Map) keyframes).get("filepositions");
+        if(!(times instanceof Object[]) || !(positions instanceof Object[])
+                || ((Object[]) times).length != ((Object[]) positions).length) {
+            return;
+        }
+        final Object[] timesArray = (Object[]) times;
+        final Object[] positionsArray = (Object[]) positions;
+        for(int i = 0; i < timesArray.length; i++) {
+            final double position = ((Number) positionsArray[i]).doubleValue();
+            if(position < end) { // skip entries of a truncated tail
+                keyFrameTimes.add(((Number) timesArray[i]).doubleValue());
+                keyFramePositions.add(position);
+            }
+        }
+        logger.debug("merged existing keyframe index, entries: {}", keyFrameTimes.size());
+    }
+
+    private ByteBuffer readFully(final long position, final int size) throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while(buffer.hasRemaining()) {
+            if(out.read(buffer, position + buffer.position()) == -1) {
+                throw new RuntimeException("unexpected end of file at: " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     @Override
     public void close() {
         if(out != null) {
             try {
+                flush();
+                if(metadataSlot) {
+                    out.write(encodeMetadataSlot().toByteBuffer(), METADATA_SLOT_OFFSET);
+                }
                 out.close();
+                if(watermark != null) {
+                    watermark.close();
+                }
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -96,10 +331,15 @@ public class FlvWriter implements RtmpWriter {
     public void write(final RtmpMessage message) {
         final RtmpHeader header = message.getHeader();
         if(header.isAggregate()) {
+            if(primaryChannel == -1) {
+                logger.info("first media packet for channel: {}", header);
+                primaryChannel = header.getChannelId();
+            }
             final ChannelBuffer in = message.encode();
             while (in.readable()) {
                 final FlvAtom flvAtom = new FlvAtom(in);
-                final int absoluteTime = flvAtom.getHeader().getTime();
+                final int absoluteTime = timeOffset + flvAtom.getHeader().getTime();
+                flvAtom.getHeader().setTime(absoluteTime);
                 channelTimes[primaryChannel] = absoluteTime;
                 write(flvAtom);
                 // logger.debug("aggregate atom: {}", flvAtom);
@@ -107,7 +347,7 @@ public class FlvWriter implements RtmpWriter {
             }
         } else { // METADATA / AUDIO / VIDEO
             final int channelId = header.getChannelId();
-            channelTimes[channelId] = seekTime + header.getTime();
+            channelTimes[channelId] = seekTime + timeOffset + header.getTime();
             if(primaryChannel == -1 && (header.isAudio() || header.isVideo())) {
                 logger.info("first media packet for channel: {}", header);
                 primaryChannel = channelId;
@@ -115,6 +355,13 @@ public class FlvWriter implements RtmpWriter {
             if(header.getSize() <= 2) {
                 return;
             }
+            if(header.getMessageType() == MessageType.METADATA_AMF0 && out != null) {
+                final Metadata metadata = (Metadata) MessageType.decode(header, message.encode().duplicate());
+                if(metadata.getName().equals("onMetaData")) {
+                    mergeMetadata(metadata);
+                    return;
+                }
+            }
             write(new FlvAtom(header.getMessageType(), channelTimes[channelId], message.encode()));
             if (channelId == primaryChannel) {
                 logWriteProgress();
@@ -129,11 +376,167 @@ public class FlvWriter implements RtmpWriter {
         if(out == null) {
             return;
         }
+        final RtmpHeader header = flvAtom.getHeader();
+        final ChannelBuffer data = flvAtom.getData();
+        final int size = data.readableBytes();
+        if(header.isMedia()) {
+            lastTime = Math.max(lastTime, header.getTime());
+        }
+        if(flvAtom.isKeyFrame()) {
+            keyFrameTimes.add(header.getTime() / 1000.0);
+            keyFramePositions.add((double) filePosition);
+        }
+        filePosition += 11 + size + 4;
+        tagHeader.clear();
+        tagHeader.put((byte) header.getMessageType().intValue());
+        putMedium(tagHeader, size);
+        putMedium(tagHeader, header.getTime());
+        tagHeader.putInt(0); // 4 bytes of zeros (reserved)
+        tagHeader.flip();
+        tagTrailer.clear();
+        tagTrailer.putInt(size + 11); // previous tag size
+        tagTrailer.flip();
+        tagBuffers[0] = tagHeader;
+        tagBuffers[1] = data.toByteBuffer();
+        tagBuffers[2] = tagTrailer;
+        try {
+            if(coalesceBuffers == null) {
+                writeFully(tagBuffers, 3);
+                if(watermark != null) {
+                    watermark.commit(filePosition);
+                }
+            } else {
+                for(final ByteBuffer bb : tagBuffers) {
+                    coalesce(bb);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            tagBuffers[1] = null;
+        }
+    }
+
+    private void mergeMetadata(final Metadata metadata) {
+        final Map<String, Object> map = metadata.getMap(0);
+        if(map == null) {
+            return;
+        }
+        for(final Map.Entry<String, Object> entry : map.entrySet()) {
+            final String key = entry.getKey();
+            if(!key.equals("duration") && !key.equals("filesize")
+                    && !key.equals("keyframes") && !key.equals(METADATA_PADDING)) {
+                metadataValues.put(key, entry.getValue());
+            }
+        }
+        logger.debug("merged onMetaData into reserved slot: {}", metadataValues);
+    }
+
+    /**
+     * always exactly METADATA_SLOT_SIZE bytes, the keyframe index is thinned
+     * out if it does not fit and the remainder is filled with a padding string
+     */
+    private ChannelBuffer encodeMetadataSlot() {
+        List<Double> times = keyFrameTimes;
+        List<Double> positions = keyFramePositions;
+        while(true) {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>(metadataValues);
+            map.put("duration", lastTime / 1000.0);
+            map.put("filesize", (double) filePosition);
+            if(!times.isEmpty()) {
+                final Map<String, Object> keyframes = Metadata.object(
+                        Metadata.pair("times", times.toArray()),
+                        Metadata.pair("filepositions", positions.toArray()));
+                map.put("keyframes", keyframes);
+            }
+            map.put(METADATA_PADDING, "");
+            final int unpadded = new MetadataAmf0("onMetaData", map).encode().readableBytes();
+            final int padding = METADATA_SLOT_SIZE - unpadded;
+            if(padding >= 0) {
+                map.put(METADATA_PADDING, new String(new char[padding]).replace('\0', ' '));
+                return new MetadataAmf0("onMetaData", map).encode();
+            }
+            if(times.isEmpty()) {
+                throw new RuntimeException("metadata does not fit reserved slot: " + unpadded);
+            }
+            logger.info("thinning keyframe index to fit metadata slot, entries: {}", times.size());
+            times = everyOther(times);
+            positions = everyOther(positions);
+        }
+    }
+
+    private static List<Double> everyOther(final List<Double> list) {
+        final List<Double> result = new ArrayList<Double>(list.size() / 2 + 1);
+        for(int i = 0; i < list.size(); i += 2) {
+            result.add(list.get(i));
+        }
+        return result;
+    }
+
+    private void coalesce(final ByteBuffer in) throws Exception {
+        while(in.hasRemaining()) {
+            final ByteBuffer target = coalesceBuffers[coalesceIndex];
+            if(!target.hasRemaining()) {
+                if(coalesceIndex == coalesceBuffers.length - 1) {
+                    writeCoalesced();
+                } else {
+                    coalesceIndex++;
+                }
+                continue;
+            }
+            if(in.remaining() <= target.remaining()) {
+                target.put(in);
+            } else {
+                final int limit = in.limit();
+                in.limit(in.position() + target.remaining());
+                target.put(in);
+                in.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * writes out any coalesced tags, no-op when not coalescing
+     */
+    public void flush() {
+        if(coalesceBuffers == null || out == null) {
+            return;
+        }
+        writeCoalesced();
+        if(watermark != null) { // only complete tags are buffered at this point
+            watermark.commit(filePosition);
+        }
+    }
+
+    private void writeCoalesced() {
+        for(int i = 0; i <= coalesceIndex; i++) {
+            coalesceBuffers[i].flip();
+        }
         try {
-            out.write(flvAtom.write().toByteBuffer());
+            writeFully(coalesceBuffers, coalesceIndex + 1);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        for(int i = 0; i <= coalesceIndex; i++) {
+            coalesceBuffers[i].clear();
+        }
+        coalesceIndex = 0;
+    }
+
+    private void writeFully(final ByteBuffer[] buffers, final int length) throws Exception {
+        long remaining = 0;
+        for(int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        while(remaining > 0) {
+            remaining -= out.write(buffers, 0, length);
+        }
+    }
+
+    private static void putMedium(final ByteBuffer bb, final int value) {
+        bb.put((byte) (value >>> 16));
+        bb.put((byte) (value >>> 8));
+        bb.put((byte) value);
     }
     
 }
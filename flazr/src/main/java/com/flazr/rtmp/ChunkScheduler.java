@@ -0,0 +1,244 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * interleaves the chunks of messages queued on different chunk streams so
+ * that a large video frame does not hold up control messages and audio,
+ * chunks leave in batches of about 'quantum' bytes and the next chunk is
+ * always taken from the highest priority chunk stream that has data
+ */
+public abstract class ChunkScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkScheduler.class);
+
+    private static final int MAX_BATCHES_IN_FLIGHT = 2;
+
+    private static class Pending {
+
+        private final RtmpHeader header;
+        private final ChannelBuffer in;
+        private final ChannelFuture future;
+        private final int newChunkSize;
+        private final int priority;
+        private final long sequence;
+        private boolean started;
+
+        public Pending(RtmpHeader header, ChannelBuffer in, ChannelFuture future, int newChunkSize, long sequence) {
+            this.header = header;
+            this.in = in;
+            this.future = future;
+            this.newChunkSize = newChunkSize;
+            this.priority = getPriority(header);
+            this.sequence = sequence;
+        }
+
+    }
+
+    private final int quantum;
+    private final Map<Integer, LinkedList<Pending>> chunkStreams = new HashMap<Integer, LinkedList<Pending>>();
+    private int chunkSize = 128;
+    private long sequence;
+    private int batchesInFlight;
+    private boolean draining;
+    private boolean drainAgain;
+    private long queuedBytes;
+    private long headerBytes;
+
+    public ChunkScheduler(final int quantum) {
+        this.quantum = quantum;
+    }
+
+    /**
+     * lower is more urgent: control and commands, then audio,
+     * then video and metadata, then aggregates
+     */
+    public static int getPriority(final RtmpHeader header) {
+        switch(header.getMessageType()) {
+            case AUDIO:
+                return 1;
+            case VIDEO:
+            case METADATA_AMF0:
+            case METADATA_AMF3:
+            case SHARED_OBJECT_AMF0:
+            case SHARED_OBJECT_AMF3:
+                return 2;
+            case AGGREGATE:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /** writes one batch of chunks, the returned future completes when it is on the wire */
+    protected abstract ChannelFuture write(ChannelBuffer out);
+
+    /**
+     * queues a message whose header has already been prepared for its
+     * chunk stream, messages must be added in the order they were prepared,
+     * call schedule() afterwards to start writing
+     */
+    public synchronized void add(final RtmpHeader header, final ChannelBuffer in,
+            final ChannelFuture future, final int newChunkSize) {
+        LinkedList<Pending> queue = chunkStreams.get(header.getChannelId());
+        if(queue == null) {
+            queue = new LinkedList<Pending>();
+            chunkStreams.put(header.getChannelId(), queue);
+        }
+        queue.add(new Pending(header, in, future, newChunkSize, sequence++));
+        queuedBytes += in.readableBytes();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** writes batches until the link is busy or nothing is left */
+    public void schedule() {
+        synchronized(this) {
+            if(draining) {
+                drainAgain = true;
+                return;
+            }
+            draining = true;
+        }
+        while(true) {
+            final ChannelBuffer out;
+            final List<Pending> written = new ArrayList<Pending>();
+            final List<Pending> finished = new ArrayList<Pending>();
+            synchronized(this) {
+                drainAgain = false;
+                out = batchesInFlight < MAX_BATCHES_IN_FLIGHT ? nextBatch(written, finished) : null;
+                if(out == null) {
+                    if(!drainAgain) {
+                        draining = false;
+                        return;
+                    }
+                    continue;
+                }
+                batchesInFlight++;
+            }
+            final ChannelFuture future;
+            try {
+                future = write(out);
+            } catch(RuntimeException e) {
+                synchronized(this) {
+                    batchesInFlight--;
+                    draining = false;
+                }
+                for(Pending pending : written) {
+                    pending.future.setFailure(e);
+                }
+                throw e;
+            }
+            future.addListener(new ChannelFutureListener() {
+                @Override public void operationComplete(final ChannelFuture cf) {
+                    synchronized(ChunkScheduler.this) {
+                        batchesInFlight--;
+                    }
+                    if(cf.isSuccess()) {
+                        for(Pending pending : finished) {
+                            pending.future.setSuccess();
+                        }
+                    } else {
+                        logger.debug("chunk batch failed: {}", cf.getCause());
+                        for(Pending pending : written) {
+                            pending.future.setFailure(cf.getCause());
+                        }
+                    }
+                    schedule();
+                }
+            });
+        }
+    }
+
+    private Pending nextPending() {
+        Pending next = null;
+        for(LinkedList<Pending> queue : chunkStreams.values()) {
+            final Pending head = queue.getFirst();
+            if(next == null || head.priority < next.priority
+                    || head.priority == next.priority && head.sequence < next.sequence) {
+                next = head;
+            }
+        }
+        return next;
+    }
+
+    private ChannelBuffer nextBatch(final List<Pending> written, final List<Pending> finished) {
+        ChannelBuffer out = null;
+        while(out == null || out.writerIndex() < quantum) {
+            final Pending pending = nextPending();
+            if(pending == null) {
+                break;
+            }
+            if(out == null) {
+                out = ChannelBuffers.dynamicBuffer(quantum + chunkSize + RtmpHeader.MAX_ENCODED_SIZE);
+            }
+            final int size = Math.min(chunkSize, pending.in.readableBytes());
+            final int headerStart = out.writerIndex();
+            if(!pending.started) {
+                pending.header.encode(out);
+                pending.started = true;
+            } else {
+                out.writeBytes(pending.header.getTinyHeader());
+            }
+            headerBytes += out.writerIndex() - headerStart;
+            pending.in.readBytes(out, size);
+            queuedBytes -= size;
+            if(written.isEmpty() || written.get(written.size() - 1) != pending) {
+                written.add(pending);
+            }
+            if(!pending.in.readable()) {
+                final LinkedList<Pending> queue = chunkStreams.get(pending.header.getChannelId());
+                queue.removeFirst();
+                if(queue.isEmpty()) {
+                    chunkStreams.remove(pending.header.getChannelId());
+                }
+                finished.add(pending);
+                if(pending.newChunkSize > 0) {
+                    logger.debug("scheduler new chunk size: {}", pending.newChunkSize);
+                    chunkSize = pending.newChunkSize;
+                }
+            }
+        }
+        return out;
+    }
+
+}
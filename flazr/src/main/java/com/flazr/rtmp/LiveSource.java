@@ -0,0 +1,358 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp;
+
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.Command;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+import com.flazr.util.Metrics;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * publishes media that is produced in real time, e.g. by a camera encoder,
+ * instead of pulling it from an {@link RtmpReader} and pacing it with a timer.
+ * producers push frames from any thread, frames are queued in a bounded
+ * lock-free queue and written to the channel as fast as it accepts them.
+ * when the network can't keep up, the oldest frames are dropped so that what
+ * does go out stays close to real time, video resumes at the next keyframe
+ */
+public class LiveSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveSource.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    public static final int DEFAULT_MAX_LATENCY = 500;
+
+    private static final Counter PUSHED = Metrics.getInstance().counter("rtmp_live_pushed");
+    private static final Counter DROPPED = Metrics.getInstance().counter("rtmp_live_dropped");
+
+    private static class Frame {
+
+        private final RtmpMessage message;
+        private final boolean keyframe;
+        private final long pushTime;
+
+        public Frame(final RtmpMessage message, final boolean keyframe, final long pushTime) {
+            this.message = message;
+            this.keyframe = keyframe;
+            this.pushTime = pushTime;
+        }
+
+    }
+
+    private final int queueSize;
+    private final int maxLatency;
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // only one thread at a time takes frames off the queue
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong baseTime = new AtomicLong(Long.MIN_VALUE);
+
+    private volatile Channel channel;
+    private volatile int streamId;
+    private volatile boolean closed;
+    private volatile Metadata metadata;
+    // sequence headers are kept aside, never dropped and re-sent on start
+    private volatile Video videoConfig;
+    private volatile Audio audioConfig;
+    private final AtomicBoolean videoConfigPending = new AtomicBoolean();
+    private final AtomicBoolean audioConfigPending = new AtomicBoolean();
+
+    // state below is only touched while draining
+    private boolean waitingForKeyframe = true;
+    private long writtenCount;
+    private long droppedCount;
+    private long timePosition;
+
+    // milliseconds from push until the frame was written to the socket
+    private Histogram latencyHistogram = Metrics.getInstance().histogram("rtmp_live_latency_ms");
+
+    public LiveSource() {
+        this(DEFAULT_QUEUE_SIZE, DEFAULT_MAX_LATENCY);
+    }
+
+    /**
+     * @param queueSize frames held while the channel is busy, older ones are dropped
+     * @param maxLatency frames queued for longer than this many milliseconds are dropped
+     */
+    public LiveSource(final int queueSize, final int maxLatency) {
+        this.queueSize = queueSize;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * where end to end latency is recorded, e.g. one histogram per application
+     */
+    public void setLatencyHistogram(final Histogram latencyHistogram) {
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public Histogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /** sent before the first frame on start */
+    public void setMetadata(final Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * @param time milliseconds, any origin, the first frame pushed becomes time zero
+     * @param bytes flv video tag body starting with the frame type / codec byte,
+     * not copied so must not be re-used by the caller
+     */
+    public void pushVideo(final long time, final byte[] bytes, final boolean keyframe) {
+        final Video video = new Video(bytes);
+        video.getHeader().setTime(rebase(time));
+        if(isSequenceHeader(bytes, 7)) {
+            videoConfig = video;
+            videoConfigPending.set(true);
+            drain();
+            return;
+        }
+        push(new Frame(video, keyframe, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param time milliseconds, same origin as video
+     * @param bytes flv audio tag body starting with the sound format byte,
+     * not copied so must not be re-used by the caller
+     */
+    public void pushAudio(final long time, final byte[] bytes) {
+        final Audio audio = new Audio(bytes);
+        audio.getHeader().setTime(rebase(time));
+        if(isSequenceHeader(bytes, 10)) {
+            audioConfig = audio;
+            audioConfigPending.set(true);
+            drain();
+            return;
+        }
+        push(new Frame(audio, false, System.currentTimeMillis()));
+    }
+
+    /** avc (codec 7) and aac (sound format 10) send their decoder config as packet type 0 */
+    private static boolean isSequenceHeader(final byte[] bytes, final int codec) {
+        if(bytes.length < 2 || bytes[1] != 0) {
+            return false;
+        }
+        return codec == 7 ? (bytes[0] & 0x0f) == 7 : (bytes[0] & 0xf0) >> 4 == 10;
+    }
+
+    private int rebase(final long time) {
+        baseTime.compareAndSet(Long.MIN_VALUE, time);
+        return (int) Math.max(0, time - baseTime.get());
+    }
+
+    private void push(final Frame frame) {
+        if(closed) {
+            return;
+        }
+        PUSHED.increment();
+        queue.offer(frame);
+        queued.incrementAndGet();
+        drain();
+    }
+
+    /**
+     * @param messages written ahead of the media, e.g. chunk size
+     */
+    public void start(final Channel channel, final int streamId, final RtmpMessage ... messages) {
+        this.streamId = streamId;
+        for(final RtmpMessage message : messages) {
+            channel.write(message);
+        }
+        if(metadata != null) {
+            writeToStream(channel, metadata);
+        }
+        videoConfigPending.set(videoConfig != null);
+        audioConfigPending.set(audioConfig != null);
+        logger.info("live publish start, stream id: {}, queued frames: {}", streamId, queued.get());
+        this.channel = channel;
+        drain();
+    }
+
+    public boolean isStarted() {
+        return channel != null;
+    }
+
+    /**
+     * takes frames off the queue while the channel is writable, called on every
+     * push and should also be called when the channel becomes writable again
+     */
+    public void drain() {
+        while(draining.compareAndSet(false, true)) {
+            try {
+                drainQueue();
+            } finally {
+                draining.set(false);
+            }
+            // a push may have raced with us releasing the queue
+            if(queued.get() <= queueSize && (queue.isEmpty() || !isWritable())) {
+                return;
+            }
+        }
+    }
+
+    private boolean isWritable() {
+        final Channel current = channel;
+        return current != null && current.isWritable();
+    }
+
+    private void drainQueue() {
+        while(queued.get() > queueSize) {
+            drop(poll());
+        }
+        final Channel current = channel;
+        if(current != null && current.isWritable()) {
+            writeConfig(current);
+        }
+        final long now = System.currentTimeMillis();
+        Frame frame;
+        while((frame = queue.peek()) != null) {
+            if(now - frame.pushTime > maxLatency) {
+                drop(poll());
+                continue;
+            }
+            if(current == null || !current.isWritable()) {
+                return;
+            }
+            poll();
+            if(frame.message.getHeader().isVideo()) {
+                if(waitingForKeyframe && !frame.keyframe) {
+                    drop(frame);
+                    continue;
+                }
+                waitingForKeyframe = false;
+            }
+            write(current, frame);
+        }
+    }
+
+    private Frame poll() {
+        final Frame frame = queue.poll();
+        if(frame != null) {
+            queued.decrementAndGet();
+        }
+        return frame;
+    }
+
+    private void drop(final Frame frame) {
+        if(frame == null) {
+            return;
+        }
+        if(frame.message.getHeader().isVideo()) {
+            waitingForKeyframe = true;
+        }
+        droppedCount++;
+        DROPPED.increment();
+        if(logger.isDebugEnabled()) {
+            logger.debug("dropped frame, waited: {}, {}", System.currentTimeMillis() - frame.pushTime, frame.message);
+        }
+    }
+
+    private void writeConfig(final Channel current) {
+        if(videoConfigPending.compareAndSet(true, false)) {
+            writeToStream(current, videoConfig);
+            // frames encoded before the new config can't be decoded with it
+            waitingForKeyframe = true;
+        }
+        if(audioConfigPending.compareAndSet(true, false)) {
+            writeToStream(current, audioConfig);
+        }
+    }
+
+    private void writeToStream(final Channel current, final RtmpMessage message) {
+        message.getHeader().setStreamId(streamId);
+        current.write(message);
+    }
+
+    private void write(final Channel current, final Frame frame) {
+        final RtmpHeader header = frame.message.getHeader();
+        header.setStreamId(streamId);
+        timePosition = header.getTime();
+        writtenCount++;
+        final ChannelFuture future = current.write(frame.message);
+        future.addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture cf) {
+                if(cf.isSuccess()) {
+                    latencyHistogram.record(System.currentTimeMillis() - frame.pushTime);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return media time of the last frame written
+     */
+    public long getTimePosition() {
+        return timePosition;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * stops accepting frames and unpublishes the stream after whatever the
+     * channel still accepts from the queue
+     */
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        drain();
+        final Channel current = channel;
+        if(current != null && current.isConnected()) {
+            logger.info("live publish stop, written: {}, dropped: {}", writtenCount, droppedCount);
+            current.write(Command.unpublish(streamId));
+        }
+    }
+
+    /** the channel went away, nothing queued can be sent any more */
+    public void channelClosed() {
+        channel = null;
+        closed = true;
+        while(poll() != null) {
+            // discard
+        }
+    }
+
+}
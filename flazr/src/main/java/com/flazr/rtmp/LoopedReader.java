@@ -31,6 +31,8 @@ public class LoopedReader implements RtmpReader {
 
     private final int loopCount;
     private final RtmpReader reader;
+    // rewinds and rebases timestamps itself without going back to disk
+    private final boolean memory;
     private long timePosition;
     private double duration = -1;
     private int loopsCompleted = 0;
@@ -41,8 +43,12 @@ public class LoopedReader implements RtmpReader {
         this.reader = reader;
         this.loopCount = loopCount;        
         this.metadata = reader.getMetadata();
+        memory = reader instanceof MemoryReader;
+        if(memory) {
+            ((MemoryReader) reader).setLoopCount(loopCount);
+        }
         double originalDuration = metadata.getDuration();
-        if(originalDuration > 0) {
+        if(originalDuration > 0 && loopCount > 0) {
             double durationSeconds = originalDuration * loopCount;
             metadata.setDuration(durationSeconds);            
         } else {
@@ -76,6 +82,11 @@ public class LoopedReader implements RtmpReader {
         reader.setAggregateDuration(targetDuration);
     }
 
+    @Override
+    public void setAggregateSizeLimit(int maxBytes) {
+        reader.setAggregateSizeLimit(maxBytes);
+    }
+
     @Override
     public long getTimePosition() {
         return timePosition;
@@ -83,6 +94,9 @@ public class LoopedReader implements RtmpReader {
 
     @Override
     public long seek(long timePosition) {
+        if(memory) {
+            return reader.seek(timePosition);
+        }
         if(duration < 0 || timePosition < duration) {
             return reader.seek(timePosition);
         }                               
@@ -97,6 +111,9 @@ public class LoopedReader implements RtmpReader {
 
     @Override
     public boolean hasNext() {
+        if(memory) {
+            return reader.hasNext();
+        }
         if(reader.hasNext()) {
             return true;
         }
@@ -115,7 +132,7 @@ public class LoopedReader implements RtmpReader {
     @Override
     public RtmpMessage next() {
         final RtmpMessage message = reader.next();
-        if(loopsCompleted == 0) {
+        if(memory || loopsCompleted == 0) {
             timePosition = message.getHeader().getTime();
             return message;
         }        
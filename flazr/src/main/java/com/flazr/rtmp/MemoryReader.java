@@ -0,0 +1,370 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Metadata;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * holds all the messages of a file in memory, read from disk only once, any
+ * number of readers created from one instance share the loaded media and
+ * only keep their own position, so many publishers can stream the same file.
+ * media is kept as consecutive flv tags in one buffer, on or off heap, so a
+ * message or an aggregate of many messages is just a slice of it, and can
+ * loop any number of times with the timestamps of every pass rebased
+ */
+public class MemoryReader implements RtmpReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryReader.class);
+
+    private static final int TAG_HEADER_SIZE = 11;
+    private static final int TAG_OVERHEAD = TAG_HEADER_SIZE + 4;
+
+    private final Media media;
+    private Metadata metadata;
+    private int cursor;
+    private int loopCount = 1;
+    private int loopsCompleted;
+    private int aggregateDuration;
+    private int aggregateSizeLimit = FlvReader.DEFAULT_AGGREGATE_SIZE_LIMIT;
+
+    /** immutable once loaded, safe to share across threads */
+    private static class Media {
+
+        private final RtmpHeader metadataHeader;
+        private final ChannelBuffer metadataData;
+        private final RtmpHeader[] startHeaders;
+        private final ChannelBuffer[] startData;
+        // flv tags: 11 byte tag header, data, 4 byte previous tag size
+        private final ChannelBuffer tags;
+        private final int[] offsets;
+        private final int[] times;
+        private final int[] sizes;
+        private final MessageType[] types;
+        private final boolean[] syncFrames;
+        private final boolean hasVideo;
+        private final int duration;
+
+        public Media(final RtmpReader source, final boolean direct) {
+            final Metadata sourceMetadata = source.getMetadata();
+            metadataHeader = new RtmpHeader(sourceMetadata.getHeader());
+            metadataData = ChannelBuffers.copiedBuffer(sourceMetadata.encode());
+            final RtmpMessage[] startMessages = source.getStartMessages();
+            startHeaders = new RtmpHeader[startMessages.length];
+            startData = new ChannelBuffer[startMessages.length];
+            for(int i = 0; i < startMessages.length; i++) {
+                startHeaders[i] = new RtmpHeader(startMessages[i].getHeader());
+                startData[i] = ChannelBuffers.copiedBuffer(startMessages[i].encode());
+            }
+            source.setAggregateDuration(0);
+            final ChannelBuffer out = ChannelBuffers.dynamicBuffer(1024 * 1024);
+            int count = 0;
+            int[] tempOffsets = new int[1024];
+            while(source.hasNext()) {
+                final RtmpMessage message = source.next();
+                final RtmpHeader header = message.getHeader();
+                final ChannelBuffer data = message.encode();
+                final int size = data.readableBytes();
+                if((long) out.writerIndex() + size + TAG_OVERHEAD > Integer.MAX_VALUE) {
+                    throw new RuntimeException("media too large to hold in memory: " + out.writerIndex());
+                }
+                if(count == tempOffsets.length) {
+                    final int[] grown = new int[count * 2];
+                    System.arraycopy(tempOffsets, 0, grown, 0, count);
+                    tempOffsets = grown;
+                }
+                tempOffsets[count++] = out.writerIndex();
+                out.writeByte((byte) header.getMessageType().intValue());
+                out.writeMedium(size);
+                out.writeMedium(header.getTime());
+                out.writeByte((byte) (header.getTime() >>> 24));
+                out.writeMedium(0); // stream id
+                out.writeBytes(data, data.readerIndex(), size);
+                out.writeInt(size + TAG_HEADER_SIZE);
+            }
+            if(direct) {
+                tags = ChannelBuffers.directBuffer(out.writerIndex());
+                tags.writeBytes(out);
+            } else {
+                tags = out.copy(); // trims the spare capacity
+            }
+            offsets = new int[count];
+            times = new int[count];
+            sizes = new int[count];
+            types = new MessageType[count];
+            syncFrames = new boolean[count];
+            boolean video = false;
+            for(int i = 0; i < count; i++) {
+                final int offset = tempOffsets[i];
+                offsets[i] = offset;
+                types[i] = MessageType.valueToEnum(tags.getByte(offset));
+                sizes[i] = tags.getUnsignedMedium(offset + 1);
+                times[i] = tags.getUnsignedMedium(offset + 4) | (tags.getByte(offset + 7) & 0xFF) << 24;
+                if(types[i] == MessageType.VIDEO) {
+                    video = true;
+                    syncFrames[i] = FlvAtom.isKeyFrame(tags.slice(offset + TAG_HEADER_SIZE, sizes[i]));
+                }
+            }
+            hasVideo = video;
+            duration = loopDuration();
+        }
+
+        /**
+         * time from the first message to just after the last, so that the
+         * next pass starts one frame interval after the previous one ends
+         */
+        private int loopDuration() {
+            final int count = times.length;
+            if(count == 0) {
+                return 0;
+            }
+            int lastGap = 0;
+            for(int i = count - 1, previous = -1; i >= 0; i--) {
+                if(types[i] != types[count - 1]) {
+                    continue;
+                }
+                if(previous != -1) {
+                    lastGap = times[previous] - times[i];
+                    break;
+                }
+                previous = i;
+            }
+            return times[count - 1] - times[0] + Math.max(1, lastGap);
+        }
+
+    }
+
+    /**
+     * loads every message the source returns, the source is left at its end
+     * and not closed
+     * @param direct if true media is held off heap
+     */
+    public MemoryReader(final RtmpReader source, final boolean direct) {
+        final long start = System.currentTimeMillis();
+        media = new Media(source, direct);
+        logger.info("loaded {} messages, {} bytes {} heap in {} ms", new Object[]{
+                media.offsets.length, getMemorySize(), direct ? "off" : "on",
+                System.currentTimeMillis() - start});
+    }
+
+    public MemoryReader(final RtmpReader source) {
+        this(source, false);
+    }
+
+    /**
+     * a new reader positioned at the start, sharing the media already loaded
+     */
+    public MemoryReader(final MemoryReader shared) {
+        media = shared.media;
+    }
+
+    public static MemoryReader load(final String path, final boolean direct) {
+        final RtmpReader source = RtmpPublisher.getReader(path);
+        try {
+            return new MemoryReader(source, direct);
+        } finally {
+            source.close();
+        }
+    }
+
+    public static MemoryReader load(final String path) {
+        return load(path, false);
+    }
+
+    /**
+     * @return bytes of media held as flv tags, shared by all readers of the same media
+     */
+    public long getMemorySize() {
+        return media.tags.capacity();
+    }
+
+    public int getMessageCount() {
+        return media.offsets.length;
+    }
+
+    /**
+     * @return milliseconds between the start of one pass and the next when looping
+     */
+    public int getLoopDuration() {
+        return media.duration;
+    }
+
+    /**
+     * @param loopCount passes over the media before the end, 0 or less = forever,
+     * timestamps keep increasing from one pass to the next
+     */
+    public void setLoopCount(final int loopCount) {
+        this.loopCount = loopCount;
+    }
+
+    private int getTimeOffset() {
+        return (int) ((long) media.duration * loopsCompleted);
+    }
+
+    @Override
+    public Metadata getMetadata() {
+        if(metadata == null) {
+            metadata = (Metadata) MessageType.decode(
+                    new RtmpHeader(media.metadataHeader), media.metadataData.duplicate());
+        }
+        return metadata;
+    }
+
+    @Override
+    public RtmpMessage[] getStartMessages() {
+        final RtmpMessage[] messages = new RtmpMessage[media.startHeaders.length];
+        for(int i = 0; i < messages.length; i++) {
+            if(media.startHeaders[i].isMetadata()) {
+                messages[i] = getMetadata();
+            } else {
+                // fresh header every time, publishers set stream id and time on it
+                messages[i] = MessageType.decode(new RtmpHeader(media.startHeaders[i]),
+                        media.startData[i].duplicate());
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public void setAggregateDuration(final int targetDuration) {
+        this.aggregateDuration = targetDuration;
+    }
+
+    @Override
+    public void setAggregateSizeLimit(final int maxBytes) {
+        this.aggregateSizeLimit = maxBytes;
+    }
+
+    @Override
+    public long getTimePosition() {
+        final int count = media.offsets.length;
+        if(count == 0) {
+            return 0;
+        }
+        final int index = cursor < count ? cursor : count - 1;
+        return media.times[index] + getTimeOffset();
+    }
+
+    private boolean isSyncFrame(final int index) {
+        return media.syncFrames[index];
+    }
+
+    /**
+     * times past the end of the media seek into later passes when looping
+     */
+    @Override
+    public long seek(final long timePosition) {
+        final int count = media.offsets.length;
+        loopsCompleted = 0;
+        if(timePosition <= 0 || count == 0) {
+            cursor = 0;
+            return 0;
+        }
+        long time = timePosition;
+        if(loopCount != 1 && media.duration > 0 && time >= media.times[0] + media.duration) {
+            loopsCompleted = (int) ((time - media.times[0]) / media.duration);
+            if(loopCount > 0 && loopsCompleted >= loopCount) {
+                loopsCompleted = loopCount - 1;
+            }
+            time -= (long) media.duration * loopsCompleted;
+        }
+        // last message at or before the time requested
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while(low <= high) {
+            final int middle = (low + high) >>> 1;
+            if(media.times[middle] <= time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if(media.hasVideo) {
+            while(found > 0 && !isSyncFrame(found)) {
+                found--;
+            }
+        }
+        cursor = found;
+        return getTimePosition();
+    }
+
+    @Override
+    public void close() {
+        // the media stays loaded for other readers
+    }
+
+    @Override
+    public boolean hasNext() {
+        final int count = media.offsets.length;
+        if(cursor < count) {
+            return true;
+        }
+        if(count == 0 || loopCount > 0 && loopsCompleted + 1 >= loopCount) {
+            return false;
+        }
+        loopsCompleted++;
+        cursor = 0;
+        if(logger.isDebugEnabled()) {
+            logger.debug("looping, passes completed: {}, time offset: {}", loopsCompleted, getTimeOffset());
+        }
+        return true;
+    }
+
+    /**
+     * the payload returned is a slice of the shared media, not a copy
+     */
+    @Override
+    public RtmpMessage next() {
+        final int start = cursor;
+        final int firstTime = media.times[start] + getTimeOffset();
+        if(aggregateDuration <= 0) {
+            cursor++;
+            final RtmpHeader header = new RtmpHeader(media.types[start], firstTime, media.sizes[start]);
+            return MessageType.decode(header,
+                    media.tags.slice(media.offsets[start] + TAG_HEADER_SIZE, media.sizes[start]));
+        }
+        // tags are already in aggregate format, sub message times are relative to the first
+        int end = start;
+        int bytes = 0;
+        while(end < media.offsets.length) {
+            final int tagSize = media.sizes[end] + TAG_OVERHEAD;
+            if(bytes > 0 && bytes + tagSize > aggregateSizeLimit) {
+                break;
+            }
+            bytes += tagSize;
+            end++;
+            if(media.times[end - 1] - media.times[start] > aggregateDuration) {
+                break;
+            }
+        }
+        cursor = end;
+        return new Aggregate(firstTime, media.tags.slice(media.offsets[start], bytes));
+    }
+
+}
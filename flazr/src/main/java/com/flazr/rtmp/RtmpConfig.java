@@ -37,6 +37,31 @@ public class RtmpConfig {
     public static int TIMER_TICK_SIZE = 100;
     public static int SERVER_PORT = 1935;
     public static int SERVER_STOP_PORT = 1934;
+    public static int SERVER_BOSS_THREADS = 0;
+    public static int SERVER_WORKER_THREADS = 0;
+    public static int SERVER_EXECUTOR_THREADS = 0;
+    public static int SERVER_EXECUTOR_CHANNEL_MEMORY = 1048576;
+    public static int SERVER_EXECUTOR_TOTAL_MEMORY = 16777216;
+    public static int SERVER_RECORD_QUEUE_SIZE = 4096;
+    public static String SERVER_RECORD_STALL_POLICY = "block";
+    public static int SERVER_TIMESHIFT_SECONDS = 0;
+    public static long SERVER_TIMESHIFT_MEMORY = 16777216;
+    public static long SERVER_TIMESHIFT_DISK = 268435456;
+    public static long SERVER_CACHE_SIZE = 0;
+    public static long SERVER_HOT_CACHE_SIZE = 0;
+    public static int SERVER_HOT_CACHE_PLAYS = 3;
+    public static int SERVER_READ_AHEAD_SECONDS = 0;
+    public static long SERVER_READ_AHEAD_MEMORY = 67108864;
+    public static int SERVER_READ_AHEAD_THREADS = 2;
+    public static int SERVER_FAST_START_SECONDS = 0;
+    public static int SERVER_AGGREGATE_MIN_SIZE = 8192;
+    public static int SERVER_AGGREGATE_MAX_SIZE = 262144;
+    public static int SERVER_CHUNK_QUANTUM = 0;
+    public static int SERVER_COALESCE_BYTES = 0;
+    public static int SERVER_MAX_MESSAGE_SIZE = 8388608;
+    public static int SERVER_REASSEMBLY_MEMORY = 16777216;
+    public static int SERVER_HTTP_PORT = 0;
+    public static int SERVER_HTTP_THREADS = 1;
     public static int PROXY_PORT = 8000;
     public static int PROXY_STOP_PORT = 7999;
     public static String PROXY_REMOTE_HOST = "127.0.0.1";
@@ -111,6 +136,57 @@ public class RtmpConfig {
                     }
                     logger.info("home dir: '{}'", homeFile.getAbsolutePath());
                     logger.info("server port: {} (stop {})", SERVER_PORT, SERVER_STOP_PORT);
+                    Integer bossThreads = parseInt(props.getProperty("server.boss.threads"));
+                    if(bossThreads != null) SERVER_BOSS_THREADS = bossThreads;
+                    Integer workerThreads = parseInt(props.getProperty("server.worker.threads"));
+                    if(workerThreads != null) SERVER_WORKER_THREADS = workerThreads;
+                    Integer executorThreads = parseInt(props.getProperty("server.executor.threads"));
+                    if(executorThreads != null) SERVER_EXECUTOR_THREADS = executorThreads;
+                    Integer channelMemory = parseInt(props.getProperty("server.executor.channel.memory"));
+                    if(channelMemory != null) SERVER_EXECUTOR_CHANNEL_MEMORY = channelMemory;
+                    Integer totalMemory = parseInt(props.getProperty("server.executor.total.memory"));
+                    if(totalMemory != null) SERVER_EXECUTOR_TOTAL_MEMORY = totalMemory;
+                    Integer recordQueueSize = parseInt(props.getProperty("server.record.queue.size"));
+                    if(recordQueueSize != null) SERVER_RECORD_QUEUE_SIZE = recordQueueSize;
+                    SERVER_RECORD_STALL_POLICY = props.getProperty("server.record.stall", "block");
+                    Integer timeshiftSeconds = parseInt(props.getProperty("server.timeshift.seconds"));
+                    if(timeshiftSeconds != null) SERVER_TIMESHIFT_SECONDS = timeshiftSeconds;
+                    Long timeshiftMemory = parseLong(props.getProperty("server.timeshift.memory"));
+                    if(timeshiftMemory != null) SERVER_TIMESHIFT_MEMORY = timeshiftMemory;
+                    Long timeshiftDisk = parseLong(props.getProperty("server.timeshift.disk"));
+                    if(timeshiftDisk != null) SERVER_TIMESHIFT_DISK = timeshiftDisk;
+                    Long cacheSize = parseLong(props.getProperty("server.cache.size"));
+                    if(cacheSize != null) SERVER_CACHE_SIZE = cacheSize;
+                    Long hotCacheSize = parseLong(props.getProperty("server.hotcache.size"));
+                    if(hotCacheSize != null) SERVER_HOT_CACHE_SIZE = hotCacheSize;
+                    Integer hotCachePlays = parseInt(props.getProperty("server.hotcache.plays"));
+                    if(hotCachePlays != null) SERVER_HOT_CACHE_PLAYS = hotCachePlays;
+                    Integer readAheadSeconds = parseInt(props.getProperty("server.readahead.seconds"));
+                    if(readAheadSeconds != null) SERVER_READ_AHEAD_SECONDS = readAheadSeconds;
+                    Long readAheadMemory = parseLong(props.getProperty("server.readahead.memory"));
+                    if(readAheadMemory != null) SERVER_READ_AHEAD_MEMORY = readAheadMemory;
+                    Integer readAheadThreads = parseInt(props.getProperty("server.readahead.threads"));
+                    if(readAheadThreads != null) SERVER_READ_AHEAD_THREADS = readAheadThreads;
+                    Integer fastStart = parseInt(props.getProperty("server.faststart.seconds"));
+                    if(fastStart != null) SERVER_FAST_START_SECONDS = fastStart;
+                    Integer aggregateMin = parseInt(props.getProperty("server.aggregate.min.size"));
+                    if(aggregateMin != null) SERVER_AGGREGATE_MIN_SIZE = aggregateMin;
+                    Integer aggregateMax = parseInt(props.getProperty("server.aggregate.max.size"));
+                    if(aggregateMax != null) SERVER_AGGREGATE_MAX_SIZE = aggregateMax;
+                    Integer chunkQuantum = parseInt(props.getProperty("server.chunk.quantum"));
+                    if(chunkQuantum != null) SERVER_CHUNK_QUANTUM = chunkQuantum;
+                    Integer coalesceBytes = parseInt(props.getProperty("server.coalesce.bytes"));
+                    if(coalesceBytes != null) SERVER_COALESCE_BYTES = coalesceBytes;
+                    Integer maxMessageSize = parseInt(props.getProperty("server.max.message.size"));
+                    if(maxMessageSize != null) SERVER_MAX_MESSAGE_SIZE = maxMessageSize;
+                    Integer reassemblyMemory = parseInt(props.getProperty("server.reassembly.memory"));
+                    if(reassemblyMemory != null) SERVER_REASSEMBLY_MEMORY = reassemblyMemory;
+                    Integer httpPort = parseInt(props.getProperty("server.http.port"));
+                    if(httpPort != null) SERVER_HTTP_PORT = httpPort;
+                    Integer httpThreads = parseInt(props.getProperty("server.http.threads"));
+                    if(httpThreads != null) SERVER_HTTP_THREADS = httpThreads;
+                    logger.info("server threads: boss {} worker {} executor {} (0 = default / disabled)",
+                            new Object[]{SERVER_BOSS_THREADS, SERVER_WORKER_THREADS, SERVER_EXECUTOR_THREADS});
                     break;
                 case PROXY:
                 case PROXY_STOP:
@@ -180,4 +256,13 @@ public class RtmpConfig {
         }
     }
 
+    private static Long parseLong(String s) {
+        try {
+            return Long.valueOf(s);
+        } catch(Exception e) {
+            logger.warn("unable to parse into long value: {}", e.getMessage());
+            return null;
+        }
+    }
+
 }
@@ -20,12 +20,18 @@
 package com.flazr.rtmp;
 
 import com.flazr.rtmp.RtmpDecoder.DecoderState;
+import com.flazr.rtmp.message.Abort;
 import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.rtmp.message.DiscardedMedia;
 import com.flazr.rtmp.message.MessageType;
+import com.flazr.util.Counter;
+import com.flazr.util.Metrics;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,47 +42,117 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
 
     public static enum DecoderState {        
         GET_HEADER,
-        GET_PAYLOAD
+        GET_PAYLOAD,
+        SKIP_PAYLOAD
     }
 
+    /** partially received messages held by all connections in the process */
+    private static final AtomicLong REASSEMBLY_BYTES = new AtomicLong();
+    private static final Counter REJECTED_COUNT = Metrics.getInstance().counter("rtmp_decoder_rejected");
+    private static final Counter MESSAGES = Metrics.getInstance().counter("rtmp_decoder_messages");
+    private static final Counter BYTES = Metrics.getInstance().counter("rtmp_decoder_bytes");
+
+    private final int maxMessageSize;
+    private final int reassemblyBudget;
+
     public RtmpDecoder() {
+        this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageSize larger messages are refused as soon as their header arrives
+     * @param reassemblyBudget bytes this connection may hold in incomplete messages
+     */
+    public RtmpDecoder(final int maxMessageSize, final int reassemblyBudget) {
         super(DecoderState.GET_HEADER);                
+        this.maxMessageSize = maxMessageSize;
+        this.reassemblyBudget = reassemblyBudget;
     }
     
     private RtmpHeader header;
     private int channelId;
     private ChannelBuffer payload;
     private int chunkSize = 128;
+    private int reassemblyBytes;
+    private boolean rejected;
 
     private final RtmpHeader[] incompleteHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
     private final ChannelBuffer[] incompletePayloads = new ChannelBuffer[RtmpHeader.MAX_CHANNEL_ID];
     private final RtmpHeader[] completedHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];
+    // only when discarding media, payload bytes still to skip per chunk stream
+    private int[] discardRemaining;
+    // only when discarding media, sub-tag walk of the aggregate being skipped
+    private AggregateScan[] aggregateScans;
+
+    /**
+     * when set, audio, video and aggregate payloads are skipped as they arrive
+     * and only their headers are passed on as {@link DiscardedMedia}, for
+     * clients that just need to count what they receive (load testing)
+     */
+    public void setDiscardMedia(final boolean discardMedia) {
+        discardRemaining = discardMedia ? new int[RtmpHeader.MAX_CHANNEL_ID] : null;
+        aggregateScans = discardMedia ? new AggregateScan[RtmpHeader.MAX_CHANNEL_ID] : null;
+    }
+
+    public boolean isDiscardMedia() {
+        return discardRemaining != null;
+    }
 
     @Override
     protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer in, final DecoderState state) {
+        if(rejected) { // the channel is being closed
+            // readableBytes() is unknown on a replaying buffer, except when the
+            // channel closes and the cumulation has already been handed over
+            final int readable = actualReadableBytes();
+            in.skipBytes(readable > 0 ? readable : in.readableBytes());
+            return null;
+        }
         switch(state) {            
             case GET_HEADER:
                 header = new RtmpHeader(in, incompleteHeaders);
                 channelId = header.getChannelId();
-                if(incompletePayloads[channelId] == null) { // new chunk stream
+                final boolean skipping = discardRemaining != null && discardRemaining[channelId] > 0;
+                if(incompletePayloads[channelId] == null && !skipping) { // new chunk stream
+                    if(header.getSize() > maxMessageSize) {
+                        reject("message size " + header.getSize() + " exceeds limit " + maxMessageSize);
+                    }
                     incompleteHeaders[channelId] = header;
-                    incompletePayloads[channelId] = ChannelBuffers.buffer(header.getSize());
+                    if(discardRemaining != null && header.isMedia() && header.getSize() > 0) {
+                        discardRemaining[channelId] = header.getSize();
+                        if(header.isAggregate()) {
+                            if(aggregateScans[channelId] == null) {
+                                aggregateScans[channelId] = new AggregateScan();
+                            }
+                            aggregateScans[channelId].reset();
+                        }
+                    } else {
+                        // grows as chunks arrive instead of trusting the declared size up front
+                        incompletePayloads[channelId] = header.getSize() <= chunkSize
+                                ? ChannelBuffers.buffer(header.getSize())
+                                : ChannelBuffers.dynamicBuffer(chunkSize);
+                    }
+                }
+                if(discardRemaining != null && discardRemaining[channelId] > 0) {
+                    checkpoint(DecoderState.SKIP_PAYLOAD);
+                    return skipPayload(in);
                 }
                 payload = incompletePayloads[channelId];
                 checkpoint(DecoderState.GET_PAYLOAD);
             case GET_PAYLOAD:              
-                final byte[] bytes = new byte[Math.min(payload.writableBytes(), chunkSize)];
-                in.readBytes(bytes);
-                payload.writeBytes(bytes);                
+                final int remaining = incompleteHeaders[channelId].getSize() - payload.writerIndex();
+                final int size = Math.min(remaining, chunkSize);
+                if((long) reassemblyBytes + size > reassemblyBudget) {
+                    reject("incomplete messages exceed budget " + reassemblyBudget);
+                }
+                payload.writeBytes(in, size);
                 checkpoint(DecoderState.GET_HEADER);
-                if(payload.writable()) { // more chunks remain
+                reassemblyBytes += size;
+                REASSEMBLY_BYTES.addAndGet(size);
+                if(size < remaining) { // more chunks remain
                     return null;
                 }
-                incompletePayloads[channelId] = null;
-                final RtmpHeader prevHeader = completedHeaders[channelId];                
-                if (!header.isLarge()) {
-                    header.setTime(prevHeader.getTime() + header.getDeltaTime());
-                }
+                release(channelId);
+                completeHeader();
                 final RtmpMessage message = MessageType.decode(header, payload);
                 if(logger.isDebugEnabled()) {
                     logger.debug("<< {}", message);
@@ -86,13 +162,137 @@ public class RtmpDecoder extends ReplayingDecoder<DecoderState> {
                     final ChunkSize csMessage = (ChunkSize) message;
                     logger.debug("decoder new chunk size: {}", csMessage);
                     chunkSize = csMessage.getChunkSize();
+                } else if(header.getMessageType() == MessageType.ABORT) {
+                    final int abortChannelId = ((Abort) message).getStreamId();
+                    if(abortChannelId > 0 && abortChannelId < RtmpHeader.MAX_CHANNEL_ID) {
+                        logger.debug("discarding incomplete message on chunk stream: {}", abortChannelId);
+                        release(abortChannelId);
+                    }
                 }
                 completedHeaders[channelId] = header;
                 return message;
+            case SKIP_PAYLOAD:
+                return skipPayload(in);
             default:               
                 throw new RuntimeException("unexpected decoder state: " + state);
         }
         
     }
 
+    private void completeHeader() {
+        if (!header.isLarge()) {
+            final RtmpHeader prevHeader = completedHeaders[channelId];
+            header.setTime(prevHeader.getTime() + header.getDeltaTime());
+        }
+        MESSAGES.increment();
+        BYTES.add(header.getSize());
+    }
+
+    private Object skipPayload(final ChannelBuffer in) {
+        final int remaining = discardRemaining[channelId];
+        final int size = Math.min(remaining, chunkSize);
+        in.skipBytes(size);
+        checkpoint(DecoderState.GET_HEADER);
+        discardRemaining[channelId] = remaining - size;
+        final AggregateScan scan = header.isAggregate() ? aggregateScans[channelId] : null;
+        if(scan != null) { // bytes just skipped are still readable
+            scan.scan(in, in.readerIndex() - size, size);
+        }
+        if(size < remaining) { // more chunks remain
+            return null;
+        }
+        completeHeader();
+        completedHeaders[channelId] = header;
+        if(scan != null && scan.found) {
+            return new DiscardedMedia(header, scan.lastTime);
+        }
+        return new DiscardedMedia(header);
+    }
+
+    /**
+     * walks the sub-tag headers of an aggregate as its chunks are skipped
+     * to learn the time of the last one, the trailing previous tag size
+     * alone would point back into chunks that are already gone and tag
+     * headers can straddle chunks, so the 11 header bytes are collected
+     */
+    private static class AggregateScan {
+
+        private final byte[] tagHeader = new byte[11];
+        private int position; // payload offset the next chunk starts at
+        private int nextTag; // payload offset of the next tag header
+        private int lastTime;
+        private boolean found;
+
+        void reset() {
+            position = 0;
+            nextTag = 0;
+            found = false;
+        }
+
+        void scan(final ChannelBuffer in, final int index, final int size) {
+            final int end = position + size;
+            while(nextTag < end) {
+                final int from = Math.max(nextTag, position);
+                final int to = Math.min(nextTag + tagHeader.length, end);
+                in.getBytes(index + from - position, tagHeader, from - nextTag, to - from);
+                if(to < nextTag + tagHeader.length) { // rest comes with the next chunk
+                    break;
+                }
+                final int dataSize = (tagHeader[1] & 0xFF) << 16 | (tagHeader[2] & 0xFF) << 8 | tagHeader[3] & 0xFF;
+                lastTime = (tagHeader[7] & 0xFF) << 24 | (tagHeader[4] & 0xFF) << 16
+                        | (tagHeader[5] & 0xFF) << 8 | tagHeader[6] & 0xFF;
+                found = true;
+                nextTag += tagHeader.length + dataSize + 4;
+            }
+            position = end;
+        }
+
+    }
+
+    private void reject(final String reason) {
+        rejected = true;
+        REJECTED_COUNT.increment();
+        releaseAll();
+        throw new RuntimeException("refusing rtmp input, " + reason);
+    }
+
+    /** forgets the incomplete message on a chunk stream and the memory it held */
+    private void release(final int releaseChannelId) {
+        if(discardRemaining != null) {
+            discardRemaining[releaseChannelId] = 0;
+        }
+        final ChannelBuffer incomplete = incompletePayloads[releaseChannelId];
+        if(incomplete == null) {
+            return;
+        }
+        incompletePayloads[releaseChannelId] = null;
+        final int held = incomplete.writerIndex();
+        reassemblyBytes -= held;
+        REASSEMBLY_BYTES.addAndGet(-held);
+    }
+
+    private void releaseAll() {
+        for(int i = 0; i < incompletePayloads.length; i++) {
+            release(i);
+        }
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        releaseAll();
+        super.channelClosed(ctx, e);
+    }
+
+    public int getReassemblyBytes() {
+        return reassemblyBytes;
+    }
+
+    public static long getTotalReassemblyBytes() {
+        return REASSEMBLY_BYTES.get();
+    }
+
+    public static long getRejectedCount() {
+        return REJECTED_COUNT.get();
+    }
+
 }
@@ -21,8 +21,14 @@ package com.flazr.rtmp;
 
 import com.flazr.rtmp.message.ChunkSize;
 import com.flazr.rtmp.message.Control;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+import com.flazr.util.Metrics;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.Channels;
@@ -36,8 +42,42 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(RtmpEncoder.class);
 
+    private static final Counter MESSAGES = Metrics.getInstance().counter("rtmp_encoder_messages");
+    private static final Counter BYTES = Metrics.getInstance().counter("rtmp_encoder_bytes");
+    /** bytes waiting in the chunk scheduler each time a message is queued */
+    private static final Histogram QUEUED_BYTES = Metrics.getInstance().histogram("rtmp_encoder_queued_bytes");
+
     private int chunkSize = 128;    
     private RtmpHeader[] channelPrevHeaders = new RtmpHeader[RtmpHeader.MAX_CHANNEL_ID];    
+    private final ChunkScheduler scheduler;
+    private volatile ChannelHandlerContext context;
+    private final AtomicLong headerBytes = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLongArray headerTypeCounts = new AtomicLongArray(RtmpHeader.Type.values().length);
+    private volatile long startTime;
+
+    public RtmpEncoder() {
+        this(0);
+    }
+
+    /**
+     * a chunk quantum greater than zero interleaves the chunks of messages
+     * on different chunk streams by priority instead of writing each message
+     * out whole, see ChunkScheduler
+     */
+    public RtmpEncoder(final int chunkQuantum) {
+        if(chunkQuantum > 0) {
+            scheduler = new ChunkScheduler(chunkQuantum) {
+                @Override protected ChannelFuture write(final ChannelBuffer out) {
+                    final ChannelFuture future = Channels.future(context.getChannel());
+                    Channels.write(context, future, out);
+                    return future;
+                }
+            };
+        } else {
+            scheduler = null;
+        }
+    }
 
     private void clearPrevHeaders() {
         logger.debug("clearing prev stream headers");
@@ -46,7 +86,26 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
 
     @Override
     public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {        
-        Channels.write(ctx, e.getFuture(), encode((RtmpMessage) e.getMessage()));
+        if(scheduler == null) {
+            Channels.write(ctx, e.getFuture(), encode((RtmpMessage) e.getMessage()));
+            return;
+        }
+        context = ctx;
+        final RtmpMessage message = (RtmpMessage) e.getMessage();
+        synchronized(scheduler) {
+            // the message and its header may be shared by other connections
+            final ChannelBuffer in = message.encode().slice();
+            if(!in.readable()) {
+                e.getFuture().setSuccess();
+                return;
+            }
+            final RtmpHeader header = new RtmpHeader(message.getHeader());
+            prepareHeader(message, header, in.readableBytes());
+            final int newChunkSize = header.isChunkSize() ? ((ChunkSize) message).getChunkSize() : 0;
+            scheduler.add(header, in, e.getFuture(), newChunkSize);
+            QUEUED_BYTES.record(scheduler.getQueuedBytes());
+        }
+        scheduler.schedule();
     }
 
     public ChannelBuffer encode(final RtmpMessage message) {
@@ -56,23 +115,45 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
             final ChunkSize csMessage = (ChunkSize) message;
             logger.debug("encoder new chunk size: {}", csMessage);
             chunkSize = csMessage.getChunkSize();
-        } else if(header.isControl()) {
+        }
+        prepareHeader(message, header, in.readableBytes());
+        final ChannelBuffer out = ChannelBuffers.buffer(
+                RtmpHeader.MAX_ENCODED_SIZE + header.getSize() + header.getSize() / chunkSize);
+        boolean first = true;
+        while(in.readable()) {
+            final int size = Math.min(chunkSize, in.readableBytes());
+            if(first) {                
+                header.encode(out);
+                first = false;
+            } else {                
+                out.writeBytes(header.getTinyHeader());
+            }
+            in.readBytes(out, size);
+        }
+        headerBytes.addAndGet(out.writerIndex() - header.getSize());
+        return out;
+    }
+
+    private void prepareHeader(final RtmpMessage message, final RtmpHeader header, final int size) {
+        if(startTime == 0) {
+            startTime = System.currentTimeMillis();
+        }
+        if(header.isMedia()) { // whatever chunk stream the source used
+            header.setChannelId(header.getMessageType().getDefaultChannelId());
+        }
+        if(header.isControl()) {
             final Control control = (Control) message;
             if(control.getType() == Control.Type.STREAM_BEGIN) {
                 clearPrevHeaders();
             }
         }
         final int channelId = header.getChannelId();
-        header.setSize(in.readableBytes());
+        header.setSize(size);
         final RtmpHeader prevHeader = channelPrevHeaders[channelId];       
         if(prevHeader != null // first stream message is always large
                 && header.getStreamId() > 0 // all control messages always large
+                && header.getStreamId() == prevHeader.getStreamId()
                 && header.getTime() > 0) { // if time is zero, always large
-            if(header.getSize() == prevHeader.getSize()) {
-                header.setHeaderType(RtmpHeader.Type.SMALL);
-            } else {
-                header.setHeaderType(RtmpHeader.Type.MEDIUM);
-            }
             final int deltaTime = header.getTime() - prevHeader.getTime();
             if(deltaTime < 0) {
                 logger.warn("negative time: {}", header);
@@ -80,28 +161,61 @@ public class RtmpEncoder extends SimpleChannelDownstreamHandler {
             } else {
                 header.setDeltaTime(deltaTime);
             }
+            if(header.getSize() != prevHeader.getSize()
+                    || header.getMessageType() != prevHeader.getMessageType()) {
+                header.setHeaderType(RtmpHeader.Type.MEDIUM);
+            } else if(header.getDeltaTime() == prevHeader.getDeltaTime()
+                    && !prevHeader.isLarge() // a large header carries no delta to repeat
+                    && header.getDeltaTime() < RtmpHeader.MAX_NORMAL_HEADER_TIME) {
+                header.setHeaderType(RtmpHeader.Type.TINY);
+            } else {
+                header.setHeaderType(RtmpHeader.Type.SMALL);
+            }
         } else {
 			// otherwise force to LARGE
             header.setHeaderType(RtmpHeader.Type.LARGE);
         }
-        channelPrevHeaders[channelId] = header;        
+        headerTypeCounts.incrementAndGet(header.getHeaderType().ordinal());
+        payloadBytes.addAndGet(size);
+        MESSAGES.increment();
+        BYTES.add(size);
+        // copy, the header of a broadcast message is prepared again for every subscriber
+        channelPrevHeaders[channelId] = new RtmpHeader(header);
         if(logger.isDebugEnabled()) {
             logger.debug(">> {}", message);
         }                
-        final ChannelBuffer out = ChannelBuffers.buffer(
-                RtmpHeader.MAX_ENCODED_SIZE + header.getSize() + header.getSize() / chunkSize);
-        boolean first = true;
-        while(in.readable()) {
-            final int size = Math.min(chunkSize, in.readableBytes());
-            if(first) {                
-                header.encode(out);
-                first = false;
-            } else {                
-                out.writeBytes(header.getTinyHeader());
-            }
-            in.readBytes(out, size);
+    }
+
+    public long getHeaderBytes() {
+        return headerBytes.get() + (scheduler == null ? 0 : scheduler.getHeaderBytes());
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    public long getHeaderTypeCount(final RtmpHeader.Type type) {
+        return headerTypeCounts.get(type.ordinal());
+    }
+
+    public long getHeaderBytesPerSecond() {
+        final long elapsed = System.currentTimeMillis() - startTime;
+        if(startTime == 0 || elapsed <= 0) {
+            return 0;
         }
-        return out;
+        return getHeaderBytes() * 1000 / elapsed;
+    }
+
+    public String getHeaderStats() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("header bytes: ").append(getHeaderBytes());
+        sb.append(" (").append(getHeaderBytesPerSecond()).append(" per second)");
+        sb.append(" payload bytes: ").append(getPayloadBytes());
+        sb.append(" headers by type:");
+        for(RtmpHeader.Type type : RtmpHeader.Type.values()) {
+            sb.append(' ').append(type).append(' ').append(getHeaderTypeCount(type));
+        }
+        return sb.toString();
     }
 
 }
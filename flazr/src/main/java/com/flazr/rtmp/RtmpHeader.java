@@ -138,6 +138,16 @@ public class RtmpHeader {
         channelId = messageType.getDefaultChannelId();
     }
 
+    public RtmpHeader(RtmpHeader header) {
+        headerType = header.headerType;
+        channelId = header.channelId;
+        deltaTime = header.deltaTime;
+        time = header.time;
+        size = header.size;
+        messageType = header.messageType;
+        streamId = header.streamId;
+    }
+
     public boolean isMedia() {
         switch(messageType) {
             case AUDIO:
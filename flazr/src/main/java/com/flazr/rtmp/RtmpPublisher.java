@@ -22,6 +22,8 @@ package com.flazr.rtmp;
 import com.flazr.io.f4v.F4vReader;
 import com.flazr.io.flv.FlvReader;
 import com.flazr.rtmp.server.RtmpServer;
+import com.flazr.util.Histogram;
+import com.flazr.util.Metrics;
 import java.util.concurrent.TimeUnit;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
@@ -54,6 +56,22 @@ public abstract class RtmpPublisher {
     private boolean paused;
     private int bufferDuration;
 
+    // media up to this time is sent without pacing, -1 = no fast start
+    private long fastStartUntil = -1;
+    private long timeToFirstFrame = -1;
+    private long startupFillTime = -1;
+
+    // bytes per millisecond and milliseconds per write measured from write
+    // completion, together they drive aggregate size and duration
+    private volatile double throughput;
+    private volatile double writeLatency;
+    private volatile int aggregateSizeLimit = FlvReader.DEFAULT_AGGREGATE_SIZE_LIMIT;
+    // media bytes written since the last start / seek, gives the stream byte rate
+    private long mediaBytes;
+
+    // milliseconds the media sent is behind the wall clock, i.e. client buffer underrun
+    private Histogram lagHistogram = Metrics.getInstance().histogram("rtmp_publisher_lag_ms");
+
     public static class Event {
 
         private final int conversationId;
@@ -70,10 +88,19 @@ public abstract class RtmpPublisher {
 
     public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration, 
             boolean useSharedTimer, boolean aggregateModeEnabled) {
+        this(reader, streamId, bufferDuration, useSharedTimer ? RtmpServer.TIMER : null, aggregateModeEnabled);
+    }
+
+    /**
+     * @param sharedTimer used for pacing and not stopped on close, e.g. one
+     * timer for all publishers in a process, if null the publisher has its own
+     */
+    public RtmpPublisher(final RtmpReader reader, final int streamId, final int bufferDuration,
+            final Timer sharedTimer, boolean aggregateModeEnabled) {
         this.aggregateModeEnabled = aggregateModeEnabled;
-        this.usingSharedTimer = useSharedTimer;
-        if(useSharedTimer) {
-            timer = RtmpServer.TIMER;
+        this.usingSharedTimer = sharedTimer != null;
+        if(sharedTimer != null) {
+            timer = sharedTimer;
         } else {
             timer = new HashedWheelTimer(RtmpConfig.TIMER_TICK_SIZE, TimeUnit.MILLISECONDS);
         }
@@ -94,6 +121,13 @@ public abstract class RtmpPublisher {
         }
     }
 
+    /**
+     * where pacing lag is recorded, e.g. one histogram per server application
+     */
+    public void setLagHistogram(final Histogram lagHistogram) {
+        this.lagHistogram = lagHistogram;
+    }
+
     public boolean isStarted() {
         return currentConversationId > 0;
     }
@@ -102,8 +136,60 @@ public abstract class RtmpPublisher {
         return paused;
     }
 
+    /**
+     * @return media time of the last message written
+     */
+    public long getTimePosition() {
+        return timePosition;
+    }
+
+    public int getBufferDuration() {
+        return bufferDuration;
+    }
+
+    /**
+     * @return milliseconds of media written ahead of the wall clock since the
+     * last start / seek, roughly what the client has buffered, negative when late
+     */
+    public long getClientBuffer() {
+        if(!isStarted() || paused) {
+            return 0;
+        }
+        return timePosition - (System.currentTimeMillis() - startTime + seekTime);
+    }
+
     public void setBufferDuration(int bufferDuration) {
         this.bufferDuration = bufferDuration;
+        if(isStarted() && startupFillTime == -1 && timePosition < seekTime + getFastStartDuration()) {
+            // clients often send SET_BUFFER just after play
+            fastStartUntil = seekTime + getFastStartDuration();
+        }
+    }
+
+    /**
+     * @return milliseconds of media to send unpaced after start or seek
+     */
+    protected int getFastStartDuration() {
+        if(RtmpConfig.SERVER_FAST_START_SECONDS < 0) {
+            return bufferDuration;
+        }
+        return RtmpConfig.SERVER_FAST_START_SECONDS * 1000;
+    }
+
+    /**
+     * @return milliseconds from the last start / seek until the first media
+     * message was written, -1 if not yet
+     */
+    public long getTimeToFirstFrame() {
+        return timeToFirstFrame;
+    }
+
+    /**
+     * @return milliseconds from the last start / seek until the fast start
+     * burst was written, -1 if not yet or not enabled
+     */
+    public long getStartupFillTime() {
+        return startupFillTime;
     }
 
     public boolean handle(final MessageEvent me) {        
@@ -135,6 +221,11 @@ public abstract class RtmpPublisher {
             seekTime = 0;
         }
         timePosition = seekTime;
+        mediaBytes = 0;
+        final int fastStartDuration = getFastStartDuration();
+        fastStartUntil = fastStartDuration > 0 ? seekTime + fastStartDuration : -1;
+        timeToFirstFrame = -1;
+        startupFillTime = -1;
         logger.debug("publish start, seek requested: {} actual seek: {}, play length: {}, conversation: {}",
                 new Object[]{seekTimeRequested, seekTime, playLength, currentConversationId});
         for(final RtmpMessage message : messages) {
@@ -167,6 +258,11 @@ public abstract class RtmpPublisher {
                 message = null;
             }
         } //====================================================================
+        if(message == null && reader instanceof FlvReader && !((FlvReader) reader).isComplete()) {
+            // caught up with a recording in progress, poll instead of stopping
+            fireNext(channel, timerTickSize * 2);
+            return;
+        }
         if (message == null || playLength >= 0 && timePosition > (seekTime + playLength)) {
             stop(channel);
             return;
@@ -174,33 +270,99 @@ public abstract class RtmpPublisher {
         final long elapsedTime = System.currentTimeMillis() - startTime;
         final long elapsedTimePlusSeek = elapsedTime + seekTime;
         final double clientBuffer = timePosition - elapsedTimePlusSeek;
-        if(aggregateModeEnabled && clientBuffer > timerTickSize) { // TODO cleanup
-            reader.setAggregateDuration((int) clientBuffer);
+        final boolean fastStart = timePosition < fastStartUntil;
+        if(!fastStart) {
+            lagHistogram.record((long) -clientBuffer);
+        }
+        reader.setAggregateSizeLimit(aggregateSizeLimit);
+        if(aggregateModeEnabled && fastStart) {
+            reader.setAggregateDuration((int) (fastStartUntil - timePosition));
+        } else if(aggregateModeEnabled && clientBuffer > timerTickSize) { // TODO cleanup
+            reader.setAggregateDuration(getAggregateDuration());
         } else {
             reader.setAggregateDuration(0);
         }        
         final RtmpHeader header = message.getHeader();
         final double compensationFactor = clientBuffer / (bufferDuration + timerTickSize);
-        final long delay = (long) ((header.getTime() - timePosition) * compensationFactor);
+        final long delay = fastStart ? 0 : (long) ((header.getTime() - timePosition) * compensationFactor);
         if(logger.isDebugEnabled()) {
-            logger.debug("elapsed: {}, streamed: {}, buffer: {}, factor: {}, delay: {}",
-                    new Object[]{elapsedTimePlusSeek, timePosition, clientBuffer, compensationFactor, delay});
+            logger.debug("elapsed: {}, streamed: {}, buffer: {}, factor: {}, delay: {}, aggregate limit: {}",
+                    new Object[]{elapsedTimePlusSeek, timePosition, clientBuffer, compensationFactor, delay,
+                    aggregateSizeLimit});
         }
         timePosition = header.getTime();
+        if(header.isMedia() || header.isAggregate()) {
+            mediaBytes += header.getSize();
+        }
         header.setStreamId(streamId);
         final ChannelFuture future = channel.write(message);
         future.addListener(new ChannelFutureListener() {
             @Override public void operationComplete(final ChannelFuture cf) {
-                final long completedIn = System.currentTimeMillis() - writeTime;
+                final long now = System.currentTimeMillis();
+                final long completedIn = now - writeTime;
                 if(completedIn > 2000) {
                     logger.warn("channel busy? time taken to write last message: {}", completedIn);
                 }                
-                final long delayToUse = clientBuffer > 0 ? delay - completedIn : 0;
+                updateThroughput(header.getSize(), completedIn);
+                if(timeToFirstFrame == -1 && (header.isMedia() || header.isAggregate())) {
+                    timeToFirstFrame = now - startTime;
+                    logger.info("time to first frame: {} ms", timeToFirstFrame);
+                }
+                if(fastStart && startupFillTime == -1 && timePosition >= fastStartUntil) {
+                    startupFillTime = now - startTime;
+                    logger.info("fast start: {} ms of media sent in: {} ms",
+                            fastStartUntil - seekTime, startupFillTime);
+                }
+                final long delayToUse = fastStart ? 0 : clientBuffer > 0 ? delay - completedIn : 0;
                 fireNext(channel, delayToUse);
             }
         });
     }
 
+    /**
+     * a write that completes within the clock resolution is counted as taking
+     * 1 ms, so a burst of small writes cannot drive the estimate up without bound
+     */
+    private void updateThroughput(final int size, final long completedIn) {
+        final long elapsed = Math.max(1, completedIn);
+        final double sample = (double) size / elapsed;
+        if(throughput == 0) {
+            throughput = sample;
+            writeLatency = elapsed;
+        } else {
+            throughput = throughput * 0.8 + sample * 0.2;
+            writeLatency = writeLatency * 0.8 + elapsed * 0.2;
+        }
+        // enough to keep the link busy for a tick plus one write round trip
+        final double target = throughput * (timerTickSize + writeLatency);
+        aggregateSizeLimit = (int) Math.max(RtmpConfig.SERVER_AGGREGATE_MIN_SIZE,
+                Math.min(RtmpConfig.SERVER_AGGREGATE_MAX_SIZE, target));
+    }
+
+    /**
+     * @return measured bytes per second written to the channel
+     */
+    public long getThroughput() {
+        return (long) (throughput * 1000);
+    }
+
+    public int getAggregateSizeLimit() {
+        return aggregateSizeLimit;
+    }
+
+    /**
+     * @return milliseconds of media per aggregate, as much as fits in the
+     * aggregate size limit at the byte rate of the stream so far, or one write
+     * round trip of media until that is known
+     */
+    public int getAggregateDuration() {
+        final long mediaTime = timePosition - seekTime;
+        if(mediaBytes == 0 || mediaTime <= 0) {
+            return timerTickSize + (int) writeLatency;
+        }
+        return (int) Math.max(timerTickSize, aggregateSizeLimit * mediaTime / mediaBytes);
+    }
+
     public void fireNext(final Channel channel, final long delay) {
         final Event readyForNext = new Event(currentConversationId);
         if(delay > timerTickSize) {
@@ -229,8 +391,9 @@ public abstract class RtmpPublisher {
     private void stop(final Channel channel) {
         currentConversationId++;
         final long elapsedTime = System.currentTimeMillis() - startTime;
-        logger.info("finished, start: {}, elapsed {}, streamed: {}",
-                new Object[]{seekTime / 1000, elapsedTime / 1000, (timePosition - seekTime) / 1000});
+        logger.info("finished, start: {}, elapsed {}, streamed: {}, throughput: {} bytes/sec, aggregate limit: {}",
+                new Object[]{seekTime / 1000, elapsedTime / 1000, (timePosition - seekTime) / 1000,
+                getThroughput(), aggregateSizeLimit});
         for(RtmpMessage message : getStopMessages(timePosition)) {
             writeToStream(channel, message);
         }
@@ -29,6 +29,8 @@ public interface RtmpReader {
 
     void setAggregateDuration(int targetDuration);
 
+    void setAggregateSizeLimit(int maxBytes);
+
     long getTimePosition();
 
     long seek(long timePosition);
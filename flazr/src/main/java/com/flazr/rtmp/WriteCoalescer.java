@@ -0,0 +1,232 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * gathers the encoded buffers written to a channel into fewer, larger
+ * socket writes: buffers written during a turn (one upstream event passing
+ * through the TurnHandler) or while an earlier write is still in flight are
+ * held back and go out together as one composite buffer, which the nio
+ * transport writes with a single gathering write, once the turn ends, the
+ * link is free again or maxBytes are waiting, the future of every buffer
+ * completes with the write that carried it
+ */
+@ChannelPipelineCoverage("one")
+public class WriteCoalescer extends SimpleChannelDownstreamHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    private final int maxBytes;
+    private List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+    private List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+    private int pendingBytes;
+    private int turnDepth;
+    private int writesInFlight;
+    private boolean flushing;
+    private boolean forced;
+    private ChannelHandlerContext context;
+    private Channel channel;
+    private long messageCount;
+    private long writeCount;
+    private long startTime;
+
+    public WriteCoalescer(final int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** add just in front of the handler whose writes are to be batched */
+    public TurnHandler newTurnHandler() {
+        return new TurnHandler();
+    }
+
+    @ChannelPipelineCoverage("one")
+    public class TurnHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent e) throws Exception {
+            beginTurn();
+            try {
+                super.handleUpstream(ctx, e);
+            } finally {
+                endTurn();
+            }
+        }
+
+    }
+
+    public void beginTurn() {
+        synchronized(this) {
+            turnDepth++;
+        }
+    }
+
+    public void endTurn() {
+        synchronized(this) {
+            turnDepth--;
+        }
+        flush(false);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) {
+        final ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+        synchronized(this) {
+            if(startTime == 0) {
+                startTime = System.currentTimeMillis();
+            }
+            context = ctx;
+            channel = e.getChannel();
+            buffers.add(buffer);
+            futures.add(e.getFuture());
+            pendingBytes += buffer.readableBytes();
+            messageCount++;
+        }
+        flush(false);
+    }
+
+    @Override
+    public void closeRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        flush(true);
+        super.closeRequested(ctx, e);
+    }
+
+    @Override
+    public void disconnectRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        flush(true);
+        super.disconnectRequested(ctx, e);
+    }
+
+    private boolean isFlushDue() {
+        if(buffers.isEmpty()) {
+            return false;
+        }
+        return forced || pendingBytes >= maxBytes || turnDepth == 0 && writesInFlight == 0;
+    }
+
+    /** only one thread writes at a time so that batches leave in order */
+    private void flush(final boolean force) {
+        synchronized(this) {
+            if(force) {
+                forced = true;
+            }
+            if(flushing) { // the flushing thread looks again after each write
+                return;
+            }
+            flushing = true;
+        }
+        while(true) {
+            final List<ChannelBuffer> batch;
+            final List<ChannelFuture> batchFutures;
+            final ChannelHandlerContext ctx;
+            final Channel batchChannel;
+            synchronized(this) {
+                if(!isFlushDue()) {
+                    flushing = false;
+                    return;
+                }
+                forced = false;
+                batch = buffers;
+                batchFutures = futures;
+                buffers = new ArrayList<ChannelBuffer>();
+                futures = new ArrayList<ChannelFuture>();
+                pendingBytes = 0;
+                writesInFlight++;
+                writeCount++;
+                ctx = context;
+                batchChannel = channel;
+            }
+            final ChannelBuffer out;
+            if(batch.size() == 1) {
+                out = batch.get(0);
+            } else {
+                out = ChannelBuffers.wrappedBuffer(batch.toArray(new ChannelBuffer[batch.size()]));
+            }
+            final ChannelFuture future = Channels.future(batchChannel);
+            future.addListener(new ChannelFutureListener() {
+                @Override public void operationComplete(final ChannelFuture cf) {
+                    synchronized(WriteCoalescer.this) {
+                        writesInFlight--;
+                    }
+                    for(ChannelFuture f : batchFutures) {
+                        if(cf.isSuccess()) {
+                            f.setSuccess();
+                        } else {
+                            f.setFailure(cf.getCause());
+                        }
+                    }
+                    flush(false);
+                }
+            });
+            try {
+                write(ctx, future, out);
+            } catch(RuntimeException e) {
+                synchronized(this) {
+                    flushing = false;
+                }
+                future.setFailure(e);
+                throw e;
+            }
+        }
+    }
+
+    protected void write(final ChannelHandlerContext ctx, final ChannelFuture future, final ChannelBuffer out) {
+        Channels.write(ctx, future, out);
+    }
+
+    public synchronized long getMessageCount() {
+        return messageCount;
+    }
+
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    public synchronized long getWritesPerSecond() {
+        final long elapsed = System.currentTimeMillis() - startTime;
+        if(startTime == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return writeCount * 1000 / elapsed;
+    }
+
+    public String getWriteStats() {
+        return "messages: " + getMessageCount() + " socket writes: " + getWriteCount()
+                + " (" + getWritesPerSecond() + " per second)";
+    }
+
+}
@@ -19,9 +19,12 @@
 
 package com.flazr.rtmp.client;
 
+import com.flazr.io.DiscardWriter;
 import com.flazr.io.flv.FlvWriter;
 
+import com.flazr.rtmp.LiveSource;
 import com.flazr.rtmp.LoopedReader;
+import com.flazr.rtmp.MemoryReader;
 import com.flazr.rtmp.message.Control;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
@@ -67,8 +70,11 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
     private int bytesWrittenWindow = 2500000;
     
     private RtmpPublisher publisher;
+    private LiveSource liveSource;
     private int streamId;    
 
+    private LoadStats.Session session;
+
     public void setSwfvBytes(byte[] swfvBytes) {
         this.swfvBytes = swfvBytes;        
         logger.info("set swf verification bytes: {}", Utils.toHex(swfvBytes));        
@@ -77,6 +83,20 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
     public ClientHandler(ClientOptions options) {
         this.options = options;
         transactionToCommandMap = new HashMap<Integer, String>();        
+        if(options.getLoadStats() != null) {
+            session = options.getLoadStats().newSession(options.getBuffer());
+        }
+    }
+
+    /** called by the handshake handler as soon as the tcp connection is up */
+    public void socketConnected() {
+        if(session != null) {
+            session.socketConnected();
+        }
+    }
+
+    public LoadStats.Session getSession() {
+        return session;
     }
 
     private void writeCommandExpectingResult(Channel channel, Command command) {
@@ -90,12 +110,18 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
     @Override
     public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         logger.info("channel opened: {}", e);
+        if(session != null) {
+            session.opened();
+        }
         super.channelOpen(ctx, e);
     }
 
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
         logger.info("handshake complete, sending 'connect'");
+        if(session != null) {
+            session.handshakeDone();
+        }
         writeCommandExpectingResult(e.getChannel(), Command.connect(options));
     }
 
@@ -106,11 +132,28 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
             writer.close();
         }
         if(publisher != null) {
+            if(session != null) {
+                session.publishStopped(publisher.getThroughput(), publisher.getTimePosition());
+            }
             publisher.close();
         }
+        if(liveSource != null) {
+            liveSource.channelClosed();
+        }
+        if(session != null) {
+            session.closed();
+        }
         super.channelClosed(ctx, e);
     }
     
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if(liveSource != null && liveSource.isStarted()) {
+            liveSource.drain();
+        }
+        super.channelInterestChanged(ctx, e);
+    }
+
     @Override
     public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent me) {
         if(publisher != null && publisher.handle(me)) {
@@ -144,6 +187,9 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                         break;
                     case STREAM_BEGIN:
                         if(publisher != null && !publisher.isStarted()) {
+                            if(session != null) {
+                                session.publishStarted();
+                            }
                             publisher.start(channel, options.getStart(),
                                     options.getLength(), new ChunkSize(4096));
                             return;
@@ -170,6 +216,9 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
             case VIDEO:
             case AGGREGATE:                
                 writer.write(message);
+                if(session != null) {
+                    session.media(message);
+                }
                 bytesRead += message.getHeader().getSize();
                 if((bytesRead - bytesReadLastSent) > bytesReadWindow) {
                     logger.debug("sending bytes read ack {}", bytesRead);
@@ -190,26 +239,39 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                     } else if(resultFor.equals("createStream")) {
                         streamId = ((Double) command.getArg(0)).intValue();
                         logger.debug("streamId to use: {}", streamId);
-                        if(options.getPublishType() != null) { // TODO append, record                            
+                        if(options.getPublishType() != null && options.getLiveSource() != null) {
+                            liveSource = options.getLiveSource();
+                            channel.write(Command.publish(streamId, options));
+                            return;
+                        } else if(options.getPublishType() != null) { // TODO append, record                            
                             RtmpReader reader;
-                            if(options.getFileToPublish() != null) {
+                            if(options.getFileToPublish() != null && options.getLoop() != 1) {
+                                // every pass after the first comes from memory
+                                reader = MemoryReader.load(options.getFileToPublish());
+                            } else if(options.getFileToPublish() != null) {
                                 reader = RtmpPublisher.getReader(options.getFileToPublish());
                             } else {
                                 reader = options.getReaderToPublish();
                             }
-                            if(options.getLoop() > 1) {
+                            if(options.getLoop() != 1) {
                                 reader = new LoopedReader(reader, options.getLoop());
                             }
-                            publisher = new RtmpPublisher(reader, streamId, options.getBuffer(), false, false) {
+                            publisher = new RtmpPublisher(reader, streamId, options.getBuffer(),
+                                    options.getPublishTimer(), false) {
                                 @Override protected RtmpMessage[] getStopMessages(long timePosition) {
                                     return new RtmpMessage[]{Command.unpublish(streamId)};
                                 }
                             };                            
+                            if(options.getLoadStats() != null) {
+                                publisher.setLagHistogram(options.getLoadStats().getPublishLag());
+                            }
                             channel.write(Command.publish(streamId, options));
                             return;
                         } else {
                             writer = options.getWriterToSave();
-                            if(writer == null) {
+                            if(writer == null && options.isDiscardMedia()) {
+                                writer = new DiscardWriter();
+                            } else if(writer == null) {
                                 writer = new FlvWriter(options.getStart(), options.getSaveAs());
                             }
                             channel.write(Command.play(streamId, options));
@@ -230,13 +292,21 @@ public class ClientHandler extends SimpleChannelUpstreamHandler {
                         channel.close();
                         return;
                     }
+                    if(code.equals("NetStream.Publish.Start")
+                            && liveSource != null && !liveSource.isStarted()) {
+                        liveSource.start(channel, streamId, new ChunkSize(4096));
+                        return;
+                    }
                     if(code.equals("NetStream.Publish.Start")
                             && publisher != null && !publisher.isStarted()) {
+                            if(session != null) {
+                                session.publishStarted();
+                            }
                             publisher.start(channel, options.getStart(),
                                     options.getLength(), new ChunkSize(4096));
                         return;
                     }
-                    if (publisher != null && code.equals("NetStream.Unpublish.Success")) {
+                    if ((publisher != null || liveSource != null) && code.equals("NetStream.Unpublish.Success")) {
                         logger.info("unpublish success, closing channel");
                         ChannelFuture future = channel.write(Command.closeStream(streamId));
                         future.addListener(ChannelFutureListener.CLOSE);
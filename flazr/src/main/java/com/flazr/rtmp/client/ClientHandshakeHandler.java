@@ -48,6 +48,10 @@ public class ClientHandshakeHandler extends FrameDecoder implements ChannelDowns
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {        
         logger.info("connected, starting handshake");                
+        final ClientHandler clientHandler = ctx.getPipeline().get(ClientHandler.class);
+        if(clientHandler != null) {
+            clientHandler.socketConnected();
+        }
         Channels.write(ctx, e.getFuture(), handshake.encodeClient0());
         Channels.write(ctx, e.getFuture(), handshake.encodeClient1());
     }
@@ -19,6 +19,7 @@
 
 package com.flazr.rtmp.client;
 
+import com.flazr.rtmp.LiveSource;
 import com.flazr.rtmp.RtmpHandshake;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.RtmpWriter;
@@ -44,10 +45,11 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ClientOptions {
+public class ClientOptions implements Cloneable {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientOptions.class);
 
@@ -72,6 +74,14 @@ public class ClientOptions {
     private int load = 1;
     private int loop = 1;
     private int threads = 10;
+    private int rampUp;
+    private int hold = -1;
+    private int rampDown;
+    private double rate;
+    private LoadStats loadStats;
+    private boolean discardMedia;
+    private Timer publishTimer;
+    private LiveSource liveSource;
     private List<ClientOptions> clientOptionsList;
 
     public static void main(String[] args) {
@@ -185,9 +195,19 @@ public class ClientOptions {
         options.addOption(OptionBuilder.withArgName("load").hasArg()
                 .withDescription("no. of client connections (load testing)").create("load"));
         options.addOption(OptionBuilder.withArgName("loop").hasArg()
-                .withDescription("for publish mode, loop count").create("loop"));
+                .withDescription("for publish mode, loop count (0 = forever)").create("loop"));
         options.addOption(OptionBuilder.withArgName("threads").hasArg()
                 .withDescription("for load testing (load) mode, thread pool size").create("threads"));
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("for load testing mode, time to spread connection opens over").create("rampup"));
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("for load testing mode, time to hold all connections open"
+                + " (default: until they close)").create("hold"));
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("for load testing mode, time to spread connection closes over").create("rampdown"));
+        options.addOption(OptionBuilder.withArgName("rate").hasArg()
+                .withDescription("for load testing mode, new connections per second"
+                + " (overrides rampup)").create("rate"));
         options.addOption(new Option("file", "spawn connections listed in file (load testing)"));
         return options;
     }
@@ -201,7 +221,9 @@ public class ClientOptions {
             if(line.hasOption("help") || line.getArgs().length == 0) {
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("client [options] name [saveAs | fileToPublish]"
-                        + "\n(name can be stream name, URL or load testing script file)", options);
+                        + "\n(name can be stream name, URL or load testing script file)"
+                        + "\n(when publishing with load > 1, '%d' in the stream name is replaced by"
+                        + " the connection number, else '_' and the number are appended)", options);
                 return false;
             }
             if(line.hasOption("host")) {
@@ -245,16 +267,25 @@ public class ClientOptions {
             }
             if(line.hasOption("load")) {
                 load = Integer.valueOf(line.getOptionValue("load"));
-                if(publishType != null && load > 1) {
-                    throw new RuntimeException("cannot publish in load testing mode");
-                }
             }
             if(line.hasOption("threads")) {
                 threads = Integer.valueOf(line.getOptionValue("threads"));
             }
+            if(line.hasOption("rampup")) {
+                rampUp = Integer.valueOf(line.getOptionValue("rampup"));
+            }
+            if(line.hasOption("hold")) {
+                hold = Integer.valueOf(line.getOptionValue("hold"));
+            }
+            if(line.hasOption("rampdown")) {
+                rampDown = Integer.valueOf(line.getOptionValue("rampdown"));
+            }
+            if(line.hasOption("rate")) {
+                rate = Double.valueOf(line.getOptionValue("rate"));
+            }
             if(line.hasOption("loop")) {
                 loop = Integer.valueOf(line.getOptionValue("loop"));
-                if(publishType == null && loop > 1) {
+                if(publishType == null && loop != 1) {
                     throw new RuntimeException("cannot loop when not in publish mode");
                 }
             }
@@ -494,6 +525,84 @@ public class ClientOptions {
         this.threads = threads;
     }
 
+    public int getRampUp() {
+        return rampUp;
+    }
+
+    public void setRampUp(int rampUp) {
+        this.rampUp = rampUp;
+    }
+
+    public int getHold() {
+        return hold;
+    }
+
+    public void setHold(int hold) {
+        this.hold = hold;
+    }
+
+    public int getRampDown() {
+        return rampDown;
+    }
+
+    public void setRampDown(int rampDown) {
+        this.rampDown = rampDown;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    public void setLoadStats(LoadStats loadStats) {
+        this.loadStats = loadStats;
+    }
+
+    public boolean isDiscardMedia() {
+        return discardMedia;
+    }
+
+    /** skip media payloads in the decoder and count them instead of saving */
+    public void setDiscardMedia(boolean discardMedia) {
+        this.discardMedia = discardMedia;
+    }
+
+    public Timer getPublishTimer() {
+        return publishTimer;
+    }
+
+    /** pacing timer shared by all publishers, e.g. in load testing mode */
+    public void setPublishTimer(Timer publishTimer) {
+        this.publishTimer = publishTimer;
+    }
+
+    public LiveSource getLiveSource() {
+        return liveSource;
+    }
+
+    /** publish frames pushed by an in-process producer instead of a file */
+    public void setLiveSource(LiveSource liveSource) {
+        this.liveSource = liveSource;
+    }
+
+    /**
+     * @return shallow copy, for per connection changes such as the stream name
+     */
+    public ClientOptions copy() {
+        try {
+            return (ClientOptions) clone();
+        } catch(CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public RtmpWriter getWriterToSave() {
         return writerToSave;
     }
@@ -531,6 +640,12 @@ public class ClientOptions {
         sb.append(" load: ").append(load);
         sb.append(" loop: ").append(loop);
         sb.append(" threads: ").append(threads);
+        if(load > 1) {
+            sb.append(" rampUp: ").append(rampUp);
+            sb.append(" hold: ").append(hold);
+            sb.append(" rampDown: ").append(rampDown);
+            sb.append(" rate: ").append(rate);
+        }
         sb.append(']');
         return sb.toString();
     }
@@ -38,7 +38,9 @@ public class ClientPipelineFactory implements ChannelPipelineFactory {
     public ChannelPipeline getPipeline() {
         final ChannelPipeline pipeline = Channels.pipeline();
         pipeline.addLast("handshaker", new ClientHandshakeHandler(options));
-        pipeline.addLast("decoder", new RtmpDecoder());
+        final RtmpDecoder decoder = new RtmpDecoder();
+        decoder.setDiscardMedia(options.isDiscardMedia());
+        pipeline.addLast("decoder", decoder);
         pipeline.addLast("encoder", new RtmpEncoder());
 //        if(options.getLoad() == 1) {
 //            pipeline.addLast("executor", new ExecutionHandler(
@@ -0,0 +1,230 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.client;
+
+import com.flazr.rtmp.MemoryReader;
+import com.flazr.rtmp.RtmpConfig;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * drives a load test: all connections share one nio socket factory with a
+ * fixed number of i/o workers, are opened at a steady rate over the ramp up
+ * period, held and then closed over the ramp down period, after which a
+ * summary of the per connection quality of experience is printed. publishers
+ * share one pacing timer and one in memory copy of the file per script line
+ */
+public class LoadRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadRunner.class);
+
+    private final ClientOptions options;
+    private final List<ClientOptions> lines;
+    private final LoadStats stats = new LoadStats();
+    private final List<Channel> channels = Collections.synchronizedList(new LinkedList<Channel>());
+    private final CountDownLatch remaining;
+    private final int total;
+
+    public LoadRunner(final ClientOptions options) {
+        this.options = options;
+        if(options.getClientOptionsList() != null) {
+            lines = options.getClientOptionsList();
+        } else {
+            options.setSaveAs(null);
+            lines = Collections.singletonList(options);
+        }
+        int count = 0;
+        for(final ClientOptions line : lines) {
+            line.setLoadStats(stats);
+            if(line.getPublishType() == null && line.getSaveAs() == null && line.getWriterToSave() == null) {
+                line.setDiscardMedia(true);
+            }
+            count += line.getLoad();
+        }
+        total = count;
+        remaining = new CountDownLatch(total);
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    /** milliseconds between connection opens */
+    protected double getOpenInterval() {
+        if(options.getRate() > 0) {
+            return 1000 / options.getRate();
+        }
+        if(total > 0) {
+            return options.getRampUp() * 1000.0 / total;
+        }
+        return 0;
+    }
+
+    private static void sleepUntil(final long time) {
+        final long delay = time - System.currentTimeMillis();
+        if(delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void await(final long seconds) {
+        try {
+            if(seconds < 0) {
+                remaining.await();
+            } else {
+                remaining.await(seconds, TimeUnit.SECONDS);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * '%d' in the name is replaced by the connection number, else it is appended
+     */
+    protected static String getStreamName(final String pattern, final int index) {
+        if(pattern.matches(".*%[0-9]*d.*")) {
+            return String.format(pattern, index);
+        }
+        return pattern + '_' + index;
+    }
+
+    private static ClientBootstrap getBootstrap(final ChannelFactory factory, final ClientOptions options) {
+        final ClientBootstrap bootstrap = new ClientBootstrap(factory);
+        bootstrap.setPipelineFactory(new ClientPipelineFactory(options));
+        bootstrap.setOption("tcpNoDelay" , true);
+        bootstrap.setOption("keepAlive", true);
+        return bootstrap;
+    }
+
+    private void connect(final ClientBootstrap bootstrap, final ClientOptions line) {
+        final ChannelFuture future = bootstrap.connect(new InetSocketAddress(line.getHost(), line.getPort()));
+        final Channel channel = future.getChannel();
+        channels.add(channel);
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture closeFuture) {
+                channels.remove(channel);
+                remaining.countDown();
+            }
+        });
+        future.addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(final ChannelFuture connectFuture) {
+                if(!connectFuture.isSuccess()) {
+                    logger.warn("connect failed: {}", connectFuture.getCause().getMessage());
+                    stats.connectFailed();
+                }
+            }
+        });
+    }
+
+    public LoadStats run() {
+        final ChannelFactory factory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), options.getThreads());
+        final double interval = getOpenInterval();
+        logger.info("load test, connections: {}, workers: {}, open interval: {} ms",
+                new Object[]{total, options.getThreads(), interval});
+        Timer timer = null;
+        final long start = System.currentTimeMillis();
+        int count = 0;
+        for(final ClientOptions line : lines) {
+            final ClientBootstrap bootstrap = getBootstrap(factory, line);
+            MemoryReader source = null;
+            if(line.getPublishType() != null) {
+                if(timer == null) {
+                    timer = new HashedWheelTimer(RtmpConfig.TIMER_TICK_SIZE, TimeUnit.MILLISECONDS);
+                }
+                line.setPublishTimer(timer);
+                if(line.getLoad() == 1) {
+                    // nothing to share
+                } else if(line.getFileToPublish() != null) {
+                    source = MemoryReader.load(line.getFileToPublish());
+                } else if(line.getReaderToPublish() instanceof MemoryReader) {
+                    source = (MemoryReader) line.getReaderToPublish();
+                }
+            }
+            for(int i = 0; i < line.getLoad(); i++) {
+                sleepUntil(start + (long) (count * interval));
+                if(line.getPublishType() != null && line.getLoad() > 1) {
+                    final ClientOptions publisher = line.copy();
+                    publisher.setStreamName(getStreamName(line.getStreamName(), i + 1));
+                    if(source != null) {
+                        publisher.setFileToPublish(null);
+                        publisher.setReaderToPublish(new MemoryReader(source));
+                    }
+                    connect(getBootstrap(factory, publisher), publisher);
+                } else {
+                    connect(bootstrap, line);
+                }
+                count++;
+                if(count % 100 == 0) {
+                    logger.info("opened {} of {} connections, open now: {}",
+                            new Object[]{count, total, channels.size()});
+                }
+            }
+        }
+        logger.info("ramp up done in {} ms, holding", System.currentTimeMillis() - start);
+        await(options.getHold());
+        final List<Channel> open;
+        synchronized(channels) {
+            open = new ArrayList<Channel>(channels);
+        }
+        if(!open.isEmpty()) {
+            logger.info("ramping down, closing {} connections", open.size());
+            final double closeInterval = options.getRampDown() * 1000.0 / open.size();
+            final long closeStart = System.currentTimeMillis();
+            for(int i = 0; i < open.size(); i++) {
+                sleepUntil(closeStart + (long) (i * closeInterval));
+                open.get(i).close();
+            }
+        }
+        await(-1);
+        if(timer != null) {
+            timer.stop();
+        }
+        factory.releaseExternalResources();
+        logger.info("load test complete, {} connections", total);
+        System.out.println(stats.getReport());
+        return stats;
+    }
+
+}
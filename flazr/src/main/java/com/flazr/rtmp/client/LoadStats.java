@@ -0,0 +1,322 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.client;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.DiscardedMedia;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+
+/**
+ * quality of experience figures aggregated over all connections of a load
+ * test, every connection records into its own {@link Session} and the totals
+ * are folded into the shared histograms when the connection closes
+ */
+public class LoadStats {
+
+    /** shorter gaps are taken as jitter any real player would absorb */
+    public static final int STALL_THRESHOLD = 100;
+
+    private final Counter attempted = new Counter();
+    private final Counter connected = new Counter();
+    private final Counter failed = new Counter();
+    private final Counter closed = new Counter();
+    private final Counter bytes = new Counter();
+
+    private final Histogram connectTime = new Histogram();
+    private final Histogram handshakeTime = new Histogram();
+    private final Histogram firstVideoTime = new Histogram();
+    private final Histogram firstAudioTime = new Histogram();
+    private final Histogram stallCount = new Histogram();
+    private final Histogram stallTime = new Histogram();
+    private final Histogram bitrate = new Histogram();
+    private final Histogram publishStartTime = new Histogram();
+    private final Histogram publishLag = new Histogram();
+    private final Histogram publishThroughput = new Histogram();
+    private final Histogram publishRealTime = new Histogram();
+
+    private final long startTime = System.currentTimeMillis();
+
+    public Session newSession(final int bufferDuration) {
+        return new Session(bufferDuration);
+    }
+
+    public void connectFailed() {
+        failed.increment();
+    }
+
+    /**
+     * per connection state, only ever touched from the i/o thread of the
+     * channel it belongs to
+     */
+    public class Session {
+
+        private final int bufferDuration;
+        private long openTime;
+        private long socketTime;
+        private long handshakeTime;
+        private long firstMediaTime;
+        private long lastMediaTime;
+        private long firstVideoTime;
+        private long firstAudioTime;
+        private long bytesReceived;
+        private int firstTimestamp = -1;
+        private int lastTimestamp;
+        private long playStartTime;
+        private int stalls;
+        private long stalledTime;
+        private long publishTime;
+        private boolean done;
+
+        private Session(final int bufferDuration) {
+            this.bufferDuration = Math.max(0, bufferDuration);
+        }
+
+        public void opened() {
+            openTime = System.currentTimeMillis();
+            attempted.increment();
+        }
+
+        public void socketConnected() {
+            socketTime = System.currentTimeMillis();
+            connectTime.record(socketTime - openTime);
+        }
+
+        public void handshakeDone() {
+            handshakeTime = System.currentTimeMillis();
+            LoadStats.this.handshakeTime.record(handshakeTime - socketTime);
+            connected.increment();
+        }
+
+        /**
+         * models a player that starts once the client buffer is full and
+         * then drains media in real time, a stall is counted every time
+         * the play position would have run past the media received so far
+         * by more than the threshold
+         */
+        public void media(final RtmpMessage message) {
+            final RtmpHeader header = message.getHeader();
+            if(message instanceof DiscardedMedia) {
+                media(header, ((DiscardedMedia) message).getEndTime());
+            } else if(message instanceof Aggregate) {
+                media(header, ((Aggregate) message).getEndTime());
+            } else {
+                media(header, header.getTime());
+            }
+        }
+
+        /**
+         * @param endTime time of the last frame carried, later than the
+         * header time for aggregates
+         */
+        public void media(final RtmpHeader header, final int endTime) {
+            final long now = System.currentTimeMillis();
+            final int size = header.getSize();
+            bytesReceived += size;
+            bytes.add(size);
+            if(firstMediaTime == 0) {
+                firstMediaTime = now;
+            }
+            lastMediaTime = now;
+            if(header.isVideo() && firstVideoTime == 0) {
+                firstVideoTime = now;
+                LoadStats.this.firstVideoTime.record(now - openTime);
+            } else if(header.isAudio() && firstAudioTime == 0) {
+                firstAudioTime = now;
+                LoadStats.this.firstAudioTime.record(now - openTime);
+            }
+            final int time = header.getTime();
+            if(firstTimestamp == -1) {
+                firstTimestamp = time;
+                lastTimestamp = time;
+            }
+            if(playStartTime != 0) {
+                final long position = firstTimestamp + now - playStartTime - stalledTime;
+                if(position > lastTimestamp + STALL_THRESHOLD) {
+                    stalls++;
+                    stalledTime += position - lastTimestamp;
+                }
+            }
+            if(endTime > lastTimestamp) {
+                lastTimestamp = endTime;
+            }
+            if(playStartTime == 0 && lastTimestamp - firstTimestamp >= bufferDuration) {
+                playStartTime = now;
+            }
+        }
+
+        public void publishStarted() {
+            if(publishTime != 0) {
+                return;
+            }
+            publishTime = System.currentTimeMillis();
+            publishStartTime.record(publishTime - openTime);
+        }
+
+        /**
+         * @param throughput bytes per second as measured by the publisher
+         * @param timePosition media time the publisher got to
+         */
+        public void publishStopped(final long throughput, final long timePosition) {
+            if(publishTime == 0) {
+                return;
+            }
+            final long elapsed = System.currentTimeMillis() - publishTime;
+            publishThroughput.record(throughput * 8 / 1000);
+            if(elapsed > 0) {
+                publishRealTime.record(timePosition * 100 / elapsed);
+            }
+        }
+
+        public int getStalls() {
+            return stalls;
+        }
+
+        public long getStalledTime() {
+            return stalledTime;
+        }
+
+        public void closed() {
+            if(done) {
+                return;
+            }
+            done = true;
+            closed.increment();
+            if(handshakeTime == 0 || firstMediaTime == 0) {
+                return;
+            }
+            stallCount.record(stalls);
+            stallTime.record(stalledTime);
+            final long elapsed = lastMediaTime - firstMediaTime;
+            if(elapsed > 0) {
+                bitrate.record(bytesReceived * 8 / elapsed); // kbps
+            }
+        }
+
+    }
+
+    //==========================================================================
+
+    public long getAttempted() {
+        return attempted.get();
+    }
+
+    public long getConnected() {
+        return connected.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getClosed() {
+        return closed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public Histogram getConnectTime() {
+        return connectTime;
+    }
+
+    public Histogram getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    public Histogram getFirstVideoTime() {
+        return firstVideoTime;
+    }
+
+    public Histogram getFirstAudioTime() {
+        return firstAudioTime;
+    }
+
+    public Histogram getStallCount() {
+        return stallCount;
+    }
+
+    public Histogram getStallTime() {
+        return stallTime;
+    }
+
+    public Histogram getBitrate() {
+        return bitrate;
+    }
+
+    public Histogram getPublishStartTime() {
+        return publishStartTime;
+    }
+
+    /** milliseconds publishers were behind the wall clock */
+    public Histogram getPublishLag() {
+        return publishLag;
+    }
+
+    public Histogram getPublishThroughput() {
+        return publishThroughput;
+    }
+
+    /** media time published as a percentage of wall time, 100 = kept up */
+    public Histogram getPublishRealTime() {
+        return publishRealTime;
+    }
+
+    private static void appendRow(final StringBuilder sb, final String name, final Histogram h) {
+        if(h.getCount() == 0) {
+            return;
+        }
+        sb.append(String.format("%-24s %8d %8d %8d %8d %8d %8d%n", name, h.getCount(), (long) h.getMean(),
+                h.getValueAtPercentile(50), h.getValueAtPercentile(90),
+                h.getValueAtPercentile(99), h.getMax()));
+    }
+
+    public String getReport() {
+        final long elapsed = System.currentTimeMillis() - startTime;
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("connections attempted: %d, connected: %d, failed: %d, closed: %d%n",
+                getAttempted(), getConnected(), getFailed(), getClosed()));
+        sb.append(String.format("elapsed: %d ms, media received: %d bytes, aggregate: %d kbps%n",
+                elapsed, getBytes(), elapsed == 0 ? 0 : getBytes() * 8 / elapsed));
+        sb.append(String.format("%-24s %8s %8s %8s %8s %8s %8s%n",
+                "", "count", "mean", "p50", "p90", "p99", "max"));
+        appendRow(sb, "connect (ms)", connectTime);
+        appendRow(sb, "handshake (ms)", handshakeTime);
+        appendRow(sb, "first video (ms)", firstVideoTime);
+        appendRow(sb, "first audio (ms)", firstAudioTime);
+        appendRow(sb, "stalls", stallCount);
+        appendRow(sb, "stalled (ms)", stallTime);
+        appendRow(sb, "bitrate (kbps)", bitrate);
+        appendRow(sb, "publish start (ms)", publishStartTime);
+        appendRow(sb, "publish lag (ms)", publishLag);
+        appendRow(sb, "publish rate (kbps)", publishThroughput);
+        appendRow(sb, "publish real time (%)", publishRealTime);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+
+}
@@ -45,4 +45,21 @@ public class Aggregate extends DataMessage {
         return false;
     }
 
+    /**
+     * the header carries the time of the first sub-tag, the last one is
+     * found through the trailing previous tag size
+     */
+    public int getEndTime() {
+        final int end = data.writerIndex();
+        final int start = end - header.getSize();
+        if(header.getSize() < 15) {
+            return header.getTime();
+        }
+        final int tagStart = end - 4 - data.getInt(end - 4);
+        if(tagStart < start || tagStart + 11 > end) {
+            return header.getTime();
+        }
+        return data.getUnsignedMedium(tagStart + 4) | data.getUnsignedByte(tagStart + 7) << 24;
+    }
+
 }
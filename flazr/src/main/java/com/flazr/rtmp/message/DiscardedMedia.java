@@ -0,0 +1,62 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.message;
+
+import com.flazr.rtmp.RtmpHeader;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * an audio, video or aggregate message whose payload was skipped by the
+ * decoder, only the header (type, time, size) is known plus the time of
+ * the last sub-tag for aggregates
+ */
+public class DiscardedMedia extends AbstractMessage {
+
+    private final int endTime;
+
+    public DiscardedMedia(final RtmpHeader header) {
+        this(header, header.getTime());
+    }
+
+    public DiscardedMedia(final RtmpHeader header, final int endTime) {
+        super(header, null);
+        this.endTime = endTime;
+    }
+
+    public int getEndTime() {
+        return endTime;
+    }
+
+    @Override
+    MessageType getMessageType() {
+        return header.getMessageType();
+    }
+
+    @Override
+    public ChannelBuffer encode() {
+        throw new RuntimeException("payload was discarded, cannot encode: " + header);
+    }
+
+    @Override
+    public void decode(final ChannelBuffer in) {
+        // nothing to decode
+    }
+
+}
@@ -67,11 +67,13 @@ public enum MessageType implements ValueToEnum.IntValue {
             case COMMAND_AMF0:
             case COMMAND_AMF3: // TODO verify
                 return 3;
-            case METADATA_AMF0:
-            case METADATA_AMF3: // TODO verify
-            case AUDIO:
+            case AUDIO: // own chunk streams so that audio and video
+                return 6; // do not keep resetting each other's header state
             case VIDEO:
             case AGGREGATE:
+                return 7;
+            case METADATA_AMF0:
+            case METADATA_AMF3: // TODO verify
             default: // TODO verify
                 return 5;
         }
@@ -0,0 +1,193 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.BlockCache;
+import com.flazr.io.CommitWatermark;
+import com.flazr.io.f4v.F4vReader;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.MemoryReader;
+import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.util.Counter;
+import com.flazr.util.Metrics;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * vod files that are played often are loaded whole into off heap memory and
+ * every later play gets a {@link MemoryReader} over the shared copy, so there
+ * are no disk reads and no payload copies at all. a file is only loaded once
+ * it has been played a number of times, and the least recently played files
+ * are evicted first. files are loaded one at a time on a background thread,
+ * plays in the meantime read from disk as usual
+ */
+public class HotContentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotContentCache.class);
+
+    // play counts kept for files not yet loaded, cleared when exceeded
+    private static final int MAX_TRACKED_FILES = 10000;
+
+    private static volatile HotContentCache instance;
+
+    private final long capacity;
+    private final int minPlays;
+    private final Executor loader;
+    private long size;
+    // access order = lru
+    private final LinkedHashMap<String, MemoryReader> entries = new LinkedHashMap<String, MemoryReader>(16, 0.75f, true);
+    private final Map<String, Integer> plays = new HashMap<String, Integer>();
+    private final Set<String> loading = new HashSet<String>();
+
+    private final Counter hits = Metrics.getInstance().counter("rtmp_hot_cache_hits");
+    private final Counter loads = Metrics.getInstance().counter("rtmp_hot_cache_loads");
+    private final Counter evictions = Metrics.getInstance().counter("rtmp_hot_cache_evictions");
+
+    /**
+     * @return the shared instance sized by RtmpConfig.SERVER_HOT_CACHE_SIZE, null if disabled
+     */
+    public static HotContentCache getInstance() {
+        if(instance == null && RtmpConfig.SERVER_HOT_CACHE_SIZE > 0) {
+            synchronized(HotContentCache.class) {
+                if(instance == null) {
+                    instance = new HotContentCache(RtmpConfig.SERVER_HOT_CACHE_SIZE,
+                            RtmpConfig.SERVER_HOT_CACHE_PLAYS);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public HotContentCache(final long capacity, final int minPlays) {
+        this(capacity, minPlays, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "hot-cache-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param loader runs the loads, never the i/o thread asking for a reader
+     */
+    public HotContentCache(final long capacity, final int minPlays, final Executor loader) {
+        this.capacity = capacity;
+        this.minPlays = Math.max(1, minPlays);
+        this.loader = loader;
+        logger.info("hot content cache capacity: {} bytes, loaded after {} plays", capacity, this.minPlays);
+    }
+
+    /**
+     * @return a reader over the cached copy, null if the file is not hot
+     * (yet), still loading, missing, too large or still being recorded
+     */
+    public RtmpReader getReader(final String path, final boolean mp4) {
+        final File file = new File(path);
+        if(!file.isFile() || CommitWatermark.get(file) != null) {
+            return null;
+        }
+        final String key = BlockCache.fileId(file.getAbsolutePath(), file.length(), file.lastModified());
+        synchronized(this) {
+            final MemoryReader cached = entries.get(key);
+            if(cached != null) {
+                hits.increment();
+                return new MemoryReader(cached);
+            }
+            if(file.length() > capacity / 4 || loading.contains(key)) {
+                return null;
+            }
+            final Integer count = plays.get(key);
+            final int newCount = count == null ? 1 : count + 1;
+            if(newCount < minPlays) {
+                if(plays.size() >= MAX_TRACKED_FILES) {
+                    plays.clear();
+                }
+                plays.put(key, newCount);
+                return null;
+            }
+            plays.remove(key);
+            loading.add(key);
+        }
+        loader.execute(new Runnable() {
+            @Override public void run() {
+                load(key, path, mp4);
+            }
+        });
+        return null;
+    }
+
+    private void load(final String key, final String path, final boolean mp4) {
+        final MemoryReader loaded;
+        try {
+            final RtmpReader source = mp4 ? new F4vReader(path) : new FlvReader(path);
+            try {
+                loaded = new MemoryReader(source, true);
+            } finally {
+                source.close();
+            }
+        } catch(Throwable t) { // also out of direct memory
+            logger.warn("failed to load hot file: {}, {}", path, t.toString());
+            synchronized(this) {
+                loading.remove(key);
+            }
+            return;
+        }
+        synchronized(this) {
+            loading.remove(key);
+            entries.put(key, loaded);
+            size += loaded.getMemorySize();
+            loads.increment();
+            logger.info("loaded hot file: {}, cache size: {} bytes, files: {}",
+                    new Object[]{path, size, entries.size()});
+            final Iterator<Map.Entry<String, MemoryReader>> iterator = entries.entrySet().iterator();
+            while(size > capacity && iterator.hasNext()) {
+                final Map.Entry<String, MemoryReader> entry = iterator.next();
+                if(entry.getValue() == loaded) {
+                    continue;
+                }
+                // readers still playing keep their reference, memory goes when they finish
+                iterator.remove();
+                size -= entry.getValue().getMemorySize();
+                evictions.increment();
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getFileCount() {
+        return entries.size();
+    }
+
+}
@@ -19,11 +19,15 @@
 
 package com.flazr.rtmp.server;
 
+import com.flazr.io.BlockCache;
 import com.flazr.rtmp.RtmpConfig;
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.util.Metrics;
 import com.flazr.util.StopMonitor;
 import java.net.InetSocketAddress;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -32,6 +36,7 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
@@ -49,18 +54,35 @@ public class RtmpServer {
     }
     
     protected static final ChannelGroup CHANNELS;
-    protected static final Map<String, ServerApplication> APPLICATIONS;
+    protected static final ConcurrentMap<String, ServerApplication> APPLICATIONS;
     public static final Timer TIMER;
 
     public static void main(String[] args) throws Exception {
 
-        final ChannelFactory factory = new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool());
+        final Executor bossExecutor = RtmpConfig.SERVER_BOSS_THREADS > 0
+                ? Executors.newFixedThreadPool(RtmpConfig.SERVER_BOSS_THREADS)
+                : Executors.newCachedThreadPool();
+        final ChannelFactory factory;
+        if(RtmpConfig.SERVER_WORKER_THREADS > 0) {
+            factory = new NioServerSocketChannelFactory(bossExecutor,
+                    Executors.newCachedThreadPool(), RtmpConfig.SERVER_WORKER_THREADS);
+        } else {
+            factory = new NioServerSocketChannelFactory(bossExecutor,
+                    Executors.newCachedThreadPool());
+        }
 
         final ServerBootstrap bootstrap = new ServerBootstrap(factory);
 
-        bootstrap.setPipelineFactory(new ServerPipelineFactory());
+        final ExecutionHandler executionHandler;
+        if(RtmpConfig.SERVER_EXECUTOR_THREADS > 0) {
+            executionHandler = ServerPipelineFactory.newExecutionHandler();
+            logger.info("execution stage enabled, threads: {}, memory limits: {} per channel, {} total",
+                    new Object[]{RtmpConfig.SERVER_EXECUTOR_THREADS,
+                    RtmpConfig.SERVER_EXECUTOR_CHANNEL_MEMORY, RtmpConfig.SERVER_EXECUTOR_TOTAL_MEMORY});
+        } else {
+            executionHandler = null;
+        }
+        bootstrap.setPipelineFactory(new ServerPipelineFactory(executionHandler));
         bootstrap.setOption("child.tcpNoDelay", true);
         bootstrap.setOption("child.keepAlive", true);
 
@@ -68,16 +90,32 @@ public class RtmpServer {
         bootstrap.bind(socketAddress);
         logger.info("server started, listening on: {}", socketAddress);
 
+        final StatsServer statsServer = RtmpConfig.SERVER_HTTP_PORT > 0
+                ? new StatsServer(RtmpConfig.SERVER_HTTP_PORT, RtmpConfig.SERVER_HTTP_THREADS)
+                : null;
+
         final Thread monitor = new StopMonitor(RtmpConfig.SERVER_STOP_PORT);
         monitor.start();        
         monitor.join();
 
+        if(statsServer != null) {
+            statsServer.close();
+        }
         TIMER.stop();
         final ChannelGroupFuture future = CHANNELS.close();
         logger.info("closing channels");
         future.awaitUninterruptibly();
         logger.info("releasing resources");
         factory.releaseExternalResources();
+        if(executionHandler != null) {
+            executionHandler.releaseExternalResources();
+        }
+        if(BlockCache.getInstance() != null) {
+            logger.info("block cache: {}", BlockCache.getInstance());
+        }
+        logger.info("incomplete message bytes held: {}, connections refused for size: {}",
+                RtmpDecoder.getTotalReassemblyBytes(), RtmpDecoder.getRejectedCount());
+        logger.info("metrics: {}", Metrics.getInstance());
         logger.info("server stopped");
 
     }
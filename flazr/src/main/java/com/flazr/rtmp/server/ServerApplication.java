@@ -20,14 +20,21 @@
 package com.flazr.rtmp.server;
 
 import com.flazr.io.f4v.F4vReader;
+import com.flazr.io.flv.AsyncFlvWriter;
 import com.flazr.io.flv.FlvReader;
 import com.flazr.io.flv.FlvWriter;
 import com.flazr.rtmp.RtmpConfig;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.RtmpWriter;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+import com.flazr.util.Metrics;
+import com.flazr.util.ReferenceCount;
 import com.flazr.util.Utils;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,11 +43,55 @@ public class ServerApplication {
     private static final Logger logger = LoggerFactory.getLogger(ServerApplication.class);
 
     private final String name;
-    private final Map<String, ServerStream> streams;
+    private final ConcurrentMap<String, ServerStream> streams;
+    private final ReferenceCount references;
+
+    // listed per application name while the application is registered
+    private final Counter connections;
+    private final Counter messagesRead;
+    private final Counter bytesRead;
+    private final Counter bytesWritten;
+    private final Counter droppedMessages;
+    private final Histogram readerOpenTime;
+    private final Histogram publisherLag;
 
     public ServerApplication(final String rawName) {
         this.name = cleanName(rawName);        
         streams = new ConcurrentHashMap<String, ServerStream>();        
+        references = new ReferenceCount();
+        connections = new Counter();
+        messagesRead = new Counter();
+        bytesRead = new Counter();
+        bytesWritten = new Counter();
+        droppedMessages = new Counter();
+        readerOpenTime = new Histogram();
+        publisherLag = new Histogram();
+    }
+
+    /**
+     * application names come from clients, so metrics are only listed
+     * while the application is registered and dropped on idle removal
+     */
+    private void registerMetrics() {
+        final Metrics metrics = Metrics.getInstance();
+        metrics.register(connections, "rtmp_connections", "app", name);
+        metrics.register(messagesRead, "rtmp_messages_read", "app", name);
+        metrics.register(bytesRead, "rtmp_bytes_read", "app", name);
+        metrics.register(bytesWritten, "rtmp_bytes_written", "app", name);
+        metrics.register(droppedMessages, "rtmp_dropped_messages", "app", name);
+        metrics.register(readerOpenTime, "rtmp_reader_open_us", "app", name);
+        metrics.register(publisherLag, "rtmp_publisher_lag_ms", "app", name);
+    }
+
+    private void unregisterMetrics() {
+        final Metrics metrics = Metrics.getInstance();
+        metrics.unregister(connections, "rtmp_connections", "app", name);
+        metrics.unregister(messagesRead, "rtmp_messages_read", "app", name);
+        metrics.unregister(bytesRead, "rtmp_bytes_read", "app", name);
+        metrics.unregister(bytesWritten, "rtmp_bytes_written", "app", name);
+        metrics.unregister(droppedMessages, "rtmp_dropped_messages", "app", name);
+        metrics.unregister(readerOpenTime, "rtmp_reader_open_us", "app", name);
+        metrics.unregister(publisherLag, "rtmp_publisher_lag_ms", "app", name);
     }
 
     public String getName() {
@@ -54,14 +105,14 @@ public class ServerApplication {
         try {
             if(streamName.startsWith("mp4:")) {
                 readerPlayName = streamName.substring(4);
-                return new F4vReader(path + readerPlayName);
+                return openReader(path + readerPlayName, true);
             } else {                
                 if(streamName.lastIndexOf('.') < streamName.length() - 4) {
                     readerPlayName = streamName + ".flv";
                 } else {
                     readerPlayName = streamName;
                 }
-                return new FlvReader(path + readerPlayName);
+                return openReader(path + readerPlayName, false);
             }
         } catch(Exception e) {
             logger.info("reader creation failed: {}", e.getMessage());
@@ -69,36 +120,152 @@ public class ServerApplication {
         }
     }
 
-    public RtmpWriter getWriter(final String rawName) {
+    private static RtmpReader openReader(final String path, final boolean mp4) {
+        final HotContentCache cache = HotContentCache.getInstance();
+        if(cache != null) {
+            final RtmpReader cached = cache.getReader(path, mp4);
+            if(cached != null) {
+                return cached;
+            }
+        }
+        return mp4 ? new F4vReader(path) : new FlvReader(path);
+    }
+
+    public RtmpWriter getWriter(final String rawName, final boolean append) {
         final String streamName = Utils.trimSlashes(rawName);
         final String path = RtmpConfig.SERVER_HOME_DIR + "/apps/" + name + "/";
-        return new FlvWriter(path + streamName + ".flv");
+        final String fileName = path + streamName + ".flv";
+        if(RtmpConfig.SERVER_RECORD_QUEUE_SIZE > 0) {
+            return new AsyncFlvWriter(0, fileName, append, RtmpConfig.SERVER_RECORD_QUEUE_SIZE,
+                    AsyncFlvWriter.StallPolicy.parse(RtmpConfig.SERVER_RECORD_STALL_POLICY));
+        }
+        return new FlvWriter(0, fileName, append, 0, 0);
     }
 
-    public static ServerApplication get(final String rawName) {
+    /**
+     * atomic create-if-absent, the caller holds a reference until
+     * {@link #release(ServerApplication)} and the application is dropped
+     * from the registry when the last connection using it goes away
+     */
+    public static ServerApplication acquire(final String rawName) {
         final String appName = cleanName(rawName);
-        ServerApplication app = RtmpServer.APPLICATIONS.get(appName);
-        if(app == null) {
-            app = new ServerApplication(appName);
-            RtmpServer.APPLICATIONS.put(appName, app);
+        while(true) {
+            ServerApplication app = RtmpServer.APPLICATIONS.get(appName);
+            if(app == null) {
+                final ServerApplication created = new ServerApplication(appName);
+                app = RtmpServer.APPLICATIONS.putIfAbsent(appName, created);
+                if(app == null) {
+                    app = created;
+                    app.registerMetrics();
+                    logger.info("created application: '{}', applications: {}", appName, RtmpServer.APPLICATIONS.size());
+                }
+            }
+            if(app.references.retain()) {
+                return app;
+            }
+            RtmpServer.APPLICATIONS.remove(appName, app); // lost a race with the last release
+        }
+    }
+
+    public static void release(final ServerApplication app) {
+        if(app.references.release()) {
+            RtmpServer.APPLICATIONS.remove(app.name, app);
+            app.unregisterMetrics();
+            logger.info("removed idle application: '{}', applications: {}", app.name, RtmpServer.APPLICATIONS.size());
         }
-        return app;
     }
 
-    public ServerStream getStream(final String rawName) {        
-        return getStream(rawName, null);
+    public static int getApplicationCount() {
+        return RtmpServer.APPLICATIONS.size();
     }
 
-    public ServerStream getStream(final String rawName, final String type) {
+    /**
+     * atomic create-if-absent, used by publishers
+     */
+    public ServerStream acquireStream(final String rawName) {
         final String streamName = cleanName(rawName);
-        ServerStream stream = streams.get(streamName);
-        if(stream == null) {
-            stream = new ServerStream(streamName, type);
-            streams.put(streamName, stream);
+        while(true) {
+            ServerStream stream = streams.get(streamName);
+            if(stream == null) {
+                final ServerStream created = new ServerStream(name, streamName);
+                stream = streams.putIfAbsent(streamName, created);
+                if(stream == null) {
+                    stream = created;
+                    stream.registerMetrics();
+                    logger.info("created stream: '{}', streams in '{}': {}",
+                            new Object[]{streamName, name, streams.size()});
+                }
+            }
+            if(stream.retain()) {
+                return stream;
+            }
+            streams.remove(streamName, stream);
+        }
+    }
+
+    /**
+     * used by subscribers, never creates a stream
+     * @return null if no stream is registered under this name
+     */
+    public ServerStream retainStream(final String rawName) {
+        final ServerStream stream = streams.get(cleanName(rawName));
+        if(stream == null || !stream.retain()) {
+            return null;
         }
         return stream;
     }
 
+    public void releaseStream(final ServerStream stream) {
+        if(stream.release()) {
+            streams.remove(stream.getName(), stream);
+            stream.close();
+            logger.info("removed idle stream: '{}', streams in '{}': {}",
+                    new Object[]{stream.getName(), name, streams.size()});
+        }
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    public Collection<ServerStream> getStreams() {
+        return Collections.unmodifiableCollection(streams.values());
+    }
+
+    public int getReferenceCount() {
+        return references.get();
+    }
+
+    public Counter getConnections() {
+        return connections;
+    }
+
+    public Counter getMessagesRead() {
+        return messagesRead;
+    }
+
+    public Counter getBytesRead() {
+        return bytesRead;
+    }
+
+    public Counter getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** media messages given up on, e.g. by a recording that could not keep up */
+    public Counter getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /** microseconds taken to open a file for playback */
+    public Histogram getReaderOpenTime() {
+        return readerOpenTime;
+    }
+
+    public Histogram getPublisherLag() {
+        return publisherLag;
+    }
+
     private static String cleanName(final String raw) {
         return Utils.trimSlashes(raw).toLowerCase();
     }
@@ -107,7 +274,8 @@ public class ServerApplication {
     public String toString() {
         final StringBuilder sb = new StringBuilder();
         sb.append("[name: '").append(name);
-        sb.append("' streams: ").append(streams);
+        sb.append("' references: ").append(references);
+        sb.append(" streams: ").append(streams);
         sb.append(']');
         return sb.toString();
     }
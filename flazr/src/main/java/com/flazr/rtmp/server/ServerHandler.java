@@ -19,13 +19,16 @@
 
 package com.flazr.rtmp.server;
 
+import com.flazr.io.flv.AsyncFlvWriter;
 import com.flazr.rtmp.message.BytesRead;
 import com.flazr.rtmp.message.ChunkSize;
 import com.flazr.rtmp.message.Control;
+import com.flazr.rtmp.RtmpEncoder;
 import com.flazr.rtmp.RtmpMessage;
 import com.flazr.rtmp.RtmpReader;
 import com.flazr.rtmp.RtmpPublisher;
 import com.flazr.rtmp.RtmpWriter;
+import com.flazr.rtmp.WriteCoalescer;
 import com.flazr.rtmp.message.Audio;
 import com.flazr.rtmp.message.Command;
 import com.flazr.rtmp.message.DataMessage;
@@ -59,6 +62,7 @@ public class ServerHandler extends SimpleChannelHandler {
     private int bytesReadWindow = 2500000;
     private long bytesRead;
     private long bytesReadLastSent;
+    private long messagesRead;
 
     private long bytesWritten;
     private int bytesWrittenWindow = 2500000;
@@ -72,6 +76,10 @@ public class ServerHandler extends SimpleChannelHandler {
 
     private RtmpPublisher publisher;    
     private ServerStream subscriberStream;
+    private ServerStream playStream;
+    private boolean timeshifting;
+    // publisher no longer reads playName (live or timeshift), open it again on play
+    private boolean reopenReader;
     private RtmpWriter recorder;
 
     private boolean aggregateModeEnabled = true;
@@ -80,6 +88,49 @@ public class ServerHandler extends SimpleChannelHandler {
         this.aggregateModeEnabled = aggregateModeEnabled;
     }
 
+    //========================== for stats, read from other threads ============
+
+    public ServerApplication getApplication() {
+        return application;
+    }
+
+    public String getPlayName() {
+        return playName;
+    }
+
+    /**
+     * @return the vod (or timeshift) publisher, null if not playing a file
+     */
+    public RtmpPublisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * @return the live stream being played, null if none
+     */
+    public ServerStream getPlayStream() {
+        return playStream;
+    }
+
+    /**
+     * @return the stream this connection publishes to, null if none
+     */
+    public ServerStream getPublishStream() {
+        return subscriberStream;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getMessagesRead() {
+        return messagesRead;
+    }
+
     @Override
     public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
         RtmpServer.CHANNELS.add(e.getChannel());
@@ -94,18 +145,34 @@ public class ServerHandler extends SimpleChannelHandler {
     @Override
     public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
         logger.info("channel closed: {}", e);
+        logger.info("messages read: {}, bytes read: {}, bytes written: {}",
+                new Object[]{messagesRead, bytesRead, bytesWritten});
+        final RtmpEncoder encoder = ctx.getPipeline().get(RtmpEncoder.class);
+        if(encoder != null) {
+            logger.info(encoder.getHeaderStats());
+        }
+        final WriteCoalescer coalescer = ctx.getPipeline().get(WriteCoalescer.class);
+        if(coalescer != null) {
+            logger.info(coalescer.getWriteStats());
+        }
         if(publisher != null) {
             publisher.close();
         }
-        if(recorder != null) {
-            recorder.close();
-        }
+        closeRecorder();
         unpublishIfLive();
+        unsubscribe(e.getChannel());
+        if(application != null) {
+            ServerApplication.release(application);
+            application = null;
+        }
     }
 
     @Override
     public void writeComplete(final ChannelHandlerContext ctx, final WriteCompletionEvent e) throws Exception {
-        bytesWritten += e.getWrittenAmount();        
+        bytesWritten += e.getWrittenAmount();
+        if(application != null) {
+            application.getBytesWritten().add(e.getWrittenAmount());
+        }
         super.writeComplete(ctx, e);
     }
 
@@ -117,6 +184,11 @@ public class ServerHandler extends SimpleChannelHandler {
         final Channel channel = me.getChannel();
         final RtmpMessage message = (RtmpMessage) me.getMessage();
         bytesRead += message.getHeader().getSize();
+        messagesRead++;
+        if(application != null) {
+            application.getMessagesRead().increment();
+            application.getBytesRead().add(message.getHeader().getSize());
+        }
         if((bytesRead - bytesReadLastSent) > bytesReadWindow) {
             logger.info("sending bytes read ack after: {}", bytesRead);
             BytesRead ack = new BytesRead(bytesRead);
@@ -159,6 +231,7 @@ public class ServerHandler extends SimpleChannelHandler {
                     final int clientStreamId = command.getHeader().getStreamId();
                     logger.info("closing stream id: {}", clientStreamId); // TODO
                     unpublishIfLive();
+                    unsubscribe(channel);
                 } else if(name.equals("pause")) {                    
                     pauseResponse(channel, command);
                 } else if(name.equals("seek")) {                    
@@ -172,6 +245,10 @@ public class ServerHandler extends SimpleChannelHandler {
                 return; // NOT break
             case METADATA_AMF0:
             case METADATA_AMF3:
+                if(subscriberStream == null) {
+                    logger.warn("ignoring, not publishing: {}", message);
+                    break;
+                }
                 final Metadata meta = (Metadata) message;
                 if(meta.getName().equals("onMetaData")) {
                     logger.info("adding onMetaData message: {}", meta);
@@ -182,11 +259,15 @@ public class ServerHandler extends SimpleChannelHandler {
                 break;            
             case AUDIO:
             case VIDEO:
-                if(((DataMessage) message).isConfig()) {
+            case AGGREGATE:
+                if(subscriberStream == null) {
+                    logger.warn("ignoring, not publishing: {}", message);
+                    break;
+                }
+                if(!message.getHeader().isAggregate() && ((DataMessage) message).isConfig()) {
                     logger.info("adding config message: {}", message);
                     subscriberStream.addConfigMessage(message);
                 }
-            case AGGREGATE:
                 broadcast(message);
                 break;
             case BYTES_READ:
@@ -236,7 +317,7 @@ public class ServerHandler extends SimpleChannelHandler {
     }
 
     private void broadcast(final RtmpMessage message) {
-        subscriberStream.getSubscribers().write(message);
+        subscriberStream.write(message);
         if(recorder != null) {
             recorder.write(message);
         }
@@ -254,7 +335,11 @@ public class ServerHandler extends SimpleChannelHandler {
     private void connectResponse(final Channel channel, final Command connect) {
         final String appName = (String) connect.getObject().get("app");
         clientId = channel.getId() + "";        
-        application = ServerApplication.get(appName); // TODO auth, validation
+        if(application != null) {
+            ServerApplication.release(application);
+        }
+        application = ServerApplication.acquire(appName); // TODO auth, validation
+        application.getConnections().increment();
         logger.info("connect, client id: {}, application: {}", clientId, application);
         channel.write(new WindowAckSize(bytesWrittenWindow));
         channel.write(SetPeerBw.dynamic(bytesReadWindow));
@@ -281,10 +366,16 @@ public class ServerHandler extends SimpleChannelHandler {
         }
         final Command playResetCommand = playReset ? Command.playReset(playName, clientId) : null;
         final String clientPlayName = (String) play.getArg(0);
-        final ServerStream stream = application.getStream(clientPlayName);
         logger.debug("play name {}, start {}, length {}, reset {}",
                 new Object[]{clientPlayName, playStart, playLength, playReset});
-        if(stream.isLive()) {                  
+        final ServerStream stream = application.retainStream(clientPlayName);
+        if(stream != null && !stream.isLive()) {
+            application.releaseStream(stream);
+        } else if(stream != null) {
+            unsubscribe(channel);
+            playStream = stream;
+            playName = clientPlayName;
+            reopenReader = true;
             for(final RtmpMessage message : getStartMessages(playResetCommand)) {
                 writeToStream(channel, message);
             }
@@ -303,9 +394,13 @@ public class ServerHandler extends SimpleChannelHandler {
             logger.info("client requested live stream: {}, added to stream: {}", clientPlayName, stream);
             return;
         }
-        if(!clientPlayName.equals(playName)) {
+        unsubscribe(channel);
+        if(reopenReader || !clientPlayName.equals(playName)) {
             playName = clientPlayName;                        
+            reopenReader = false;
+            final long openStartTime = System.nanoTime();
             final RtmpReader reader = application.getReader(playName);
+            application.getReaderOpenTime().record((System.nanoTime() - openStartTime) / 1000);
             if(reader == null) {
                 channel.write(Command.playFailed(playName, clientId));
                 return;
@@ -319,12 +414,41 @@ public class ServerHandler extends SimpleChannelHandler {
                     };
                 }
             };
+            publisher.setLagHistogram(application.getPublisherLag());
         }
         publisher.start(channel, playStart, playLength, getStartMessages(playResetCommand));
     }
 
+    /**
+     * switches a live subscriber over to a publisher reading from the timeshift
+     * buffer of the stream, which adds the channel back to live when caught up
+     */
+    private boolean startTimeshift(final Channel channel) {
+        if(playStream == null || playStream.getTimeshift() == null) {
+            return false;
+        }
+        playStream.getSubscribers().remove(channel);
+        if(timeshifting) {
+            return true;
+        }
+        if(publisher != null) {
+            publisher.close();
+        }
+        reopenReader = true;
+        final RtmpReader reader = playStream.getTimeshift().newReader(channel, playStream);
+        publisher = new RtmpPublisher(reader, streamId, bufferDuration, true, false) {
+            @Override protected RtmpMessage[] getStopMessages(long timePosition) {
+                return new RtmpMessage[0]; // back on live
+            }
+        };
+        publisher.setLagHistogram(application.getPublisherLag());
+        timeshifting = true;
+        logger.info("timeshift started for live stream: {}", playStream);
+        return true;
+    }
+
     private void pauseResponse(final Channel channel, final Command command) {
-        if(publisher == null) {
+        if(playStream != null && !startTimeshift(channel) || publisher == null) {
             logger.debug("cannot pause when live");
             return;
         }
@@ -341,7 +465,7 @@ public class ServerHandler extends SimpleChannelHandler {
     }
 
     private void seekResponse(final Channel channel, final Command command) {
-        if(publisher == null) {
+        if(playStream != null && !startTimeshift(channel) || publisher == null) {
             logger.debug("cannot seek when live");
             return;
         }
@@ -359,14 +483,16 @@ public class ServerHandler extends SimpleChannelHandler {
             final String streamName = (String) command.getArg(0);
             final String publishTypeString = (String) command.getArg(1);
             logger.info("publish, stream name: {}, type: {}", streamName, publishTypeString);
-            subscriberStream = application.getStream(streamName, publishTypeString); // TODO append, record
-            if(subscriberStream.getPublisher() != null) {
+            unpublishIfLive();
+            final ServerStream stream = application.acquireStream(streamName);
+            if(!stream.setPublisher(channel, ServerStream.PublishType.parse(publishTypeString))) {
                 logger.info("disconnecting publisher client, stream already in use");
+                application.releaseStream(stream);
                 ChannelFuture future = channel.write(Command.publishBadName(streamId));
                 future.addListener(ChannelFutureListener.CLOSE);
                 return;
             }
-            subscriberStream.setPublisher(channel);            
+            subscriberStream = stream;
             channel.write(Command.publishStart(streamName, clientId, streamId));
             channel.write(new ChunkSize(4096));
             channel.write(Control.streamBegin(streamId));
@@ -382,11 +508,10 @@ public class ServerHandler extends SimpleChannelHandler {
                     writeToStream(subscribers, Metadata.dataStart());
                     break;
                 case RECORD:
-                    recorder = application.getWriter(streamName);
+                    recorder = application.getWriter(streamName, false);
                     break;
                 case APPEND:
-                    logger.warn("append not implemented yet, un-publishing...");
-                    unpublishIfLive();
+                    recorder = application.getWriter(streamName, true);
                     break;
             }
         } else { // un-publish
@@ -397,6 +522,30 @@ public class ServerHandler extends SimpleChannelHandler {
         }
     }
 
+    private void closeRecorder() {
+        if(recorder == null) {
+            return;
+        }
+        recorder.close();
+        if(recorder instanceof AsyncFlvWriter && application != null) {
+            application.getDroppedMessages().add(((AsyncFlvWriter) recorder).getDroppedCount());
+        }
+        recorder = null;
+    }
+
+    private void unsubscribe(final Channel channel) {
+        if(timeshifting) {
+            publisher.close();
+            publisher = null;
+            timeshifting = false;
+        }
+        if(playStream != null) {
+            playStream.getSubscribers().remove(channel);
+            application.releaseStream(playStream);
+            playStream = null;
+        }
+    }
+
     // TODO cleanup
     private void writeToStream(final ChannelGroup channelGroup, final RtmpMessage message) {
         if(message.getHeader().getChannelId() > 2) {
@@ -406,19 +555,19 @@ public class ServerHandler extends SimpleChannelHandler {
     }
 
     private void unpublishIfLive() {
-        if(subscriberStream != null && subscriberStream.getPublisher() != null) {
+        if(subscriberStream != null) {
             final Channel channel = subscriberStream.getPublisher();
-            if(channel.isWritable()) {
-                channel.write(Command.unpublishSuccess(subscriberStream.getName(), clientId, streamId));
+            if(channel != null && subscriberStream.removePublisher(channel)) {
+                if(channel.isWritable()) {
+                    channel.write(Command.unpublishSuccess(subscriberStream.getName(), clientId, streamId));
+                }
+                subscriberStream.getSubscribers().write(Command.unpublishNotify(streamId));
+                logger.debug("publisher disconnected, stream un-published");
             }
-            subscriberStream.getSubscribers().write(Command.unpublishNotify(streamId));
-            subscriberStream.setPublisher(null);
-            logger.debug("publisher disconnected, stream un-published");
-        }
-        if(recorder != null) {
-            recorder.close();
-            recorder = null;
+            application.releaseStream(subscriberStream);
+            subscriberStream = null;
         }
+        closeRecorder();
     }
 
 }
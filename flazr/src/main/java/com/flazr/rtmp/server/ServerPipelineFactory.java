@@ -19,24 +19,97 @@
 
 package com.flazr.rtmp.server;
 
+import com.flazr.rtmp.RtmpConfig;
 import com.flazr.rtmp.RtmpDecoder;
 import com.flazr.rtmp.RtmpEncoder;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.WriteCoalescer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.EstimatableObjectWrapper;
+import org.jboss.netty.util.ObjectSizeEstimator;
 
 public class ServerPipelineFactory implements ChannelPipelineFactory {
 
+    private final ExecutionHandler executionHandler;
+
+    public ServerPipelineFactory() {
+        this(null);
+    }
+
+    /**
+     * @param executionHandler shared across all channels, when not null
+     * the server handler (and blocking work such as opening files for
+     * play / record) runs on the executor instead of the i/o threads
+     */
+    public ServerPipelineFactory(final ExecutionHandler executionHandler) {
+        this.executionHandler = executionHandler;
+    }
+
+    public static ExecutionHandler newExecutionHandler() {
+        return new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(
+                RtmpConfig.SERVER_EXECUTOR_THREADS,
+                RtmpConfig.SERVER_EXECUTOR_CHANNEL_MEMORY,
+                RtmpConfig.SERVER_EXECUTOR_TOTAL_MEMORY,
+                30, TimeUnit.SECONDS, new MessageSizeEstimator(),
+                Executors.defaultThreadFactory()));
+    }
+
+    /**
+     * the default estimator only sees object fields, rtmp messages are
+     * counted by payload size so that the memory limits mean something,
+     * the executor hands over the queued ChannelEventRunnable so the
+     * message has to be unwrapped from it first
+     */
+    static class MessageSizeEstimator implements ObjectSizeEstimator {
+
+        private final ObjectSizeEstimator fallback = new DefaultObjectSizeEstimator();
+
+        @Override
+        public int estimateSize(final Object o) {
+            Object message = o;
+            if(message instanceof EstimatableObjectWrapper) {
+                message = ((EstimatableObjectWrapper) message).unwrap();
+            }
+            if(message instanceof MessageEvent) {
+                message = ((MessageEvent) message).getMessage();
+            }
+            if(message instanceof RtmpMessage) {
+                return RtmpHeader.MAX_ENCODED_SIZE + ((RtmpMessage) message).getHeader().getSize();
+            }
+            return fallback.estimateSize(o);
+        }
+
+    }
+
     @Override
     public ChannelPipeline getPipeline() {
         ChannelPipeline pipeline = Channels.pipeline();        
         pipeline.addLast("handshaker", new ServerHandshakeHandler());
-        pipeline.addLast("decoder", new RtmpDecoder());
-        pipeline.addLast("encoder", new RtmpEncoder());
-//        pipeline.addLast("executor", new ExecutionHandler(
-//                new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
+        final WriteCoalescer coalescer;
+        if(RtmpConfig.SERVER_COALESCE_BYTES > 0) {
+            coalescer = new WriteCoalescer(RtmpConfig.SERVER_COALESCE_BYTES);
+            pipeline.addLast("coalescer", coalescer);
+        } else {
+            coalescer = null;
+        }
+        pipeline.addLast("decoder", new RtmpDecoder(
+                RtmpConfig.SERVER_MAX_MESSAGE_SIZE, RtmpConfig.SERVER_REASSEMBLY_MEMORY));
+        pipeline.addLast("encoder", new RtmpEncoder(RtmpConfig.SERVER_CHUNK_QUANTUM));
+        if(executionHandler != null) {
+            pipeline.addLast("executor", executionHandler);
+        }
+        if(coalescer != null) {
+            pipeline.addLast("turn", coalescer.newTurnHandler());
+        }
         pipeline.addLast("handler", new ServerHandler());
         return pipeline;
     }
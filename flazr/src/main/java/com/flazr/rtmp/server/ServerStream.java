@@ -18,10 +18,15 @@
  */
 package com.flazr.rtmp.server;
 
+import com.flazr.rtmp.RtmpConfig;
 import com.flazr.rtmp.RtmpMessage;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+import com.flazr.util.Metrics;
+import com.flazr.util.ReferenceCount;
 import com.flazr.util.Utils;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
@@ -46,30 +51,77 @@ public class ServerStream {
 
     }
     
+    private final String applicationName;
     private final String name;
-    private final PublishType publishType;
     private final ChannelGroup subscribers;
     private final List<RtmpMessage> configMessages;
+    private final ReferenceCount references;
+    private final TimeshiftBuffer timeshift;
+    private PublishType publishType;
     private Channel publisher;
+    private final Counter messages;
+    private final Counter bytes;
+    private final Histogram fanOut;
 
     private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
 
-    public ServerStream(final String rawName, final String typeString) {        
+    public ServerStream(final String rawName) {
+        this("", rawName);
+    }
+
+    public ServerStream(final String applicationName, final String rawName) {
+        this.applicationName = applicationName;
         this.name = Utils.trimSlashes(rawName).toLowerCase();
-        if(typeString != null) {
-            this.publishType = PublishType.parse(typeString); // TODO record, append
-            subscribers = new DefaultChannelGroup(name);
-            configMessages = new ArrayList<RtmpMessage>();
+        messages = new Counter();
+        bytes = new Counter();
+        fanOut = new Histogram();
+        subscribers = new DefaultChannelGroup(name);
+        configMessages = new CopyOnWriteArrayList<RtmpMessage>();
+        references = new ReferenceCount();
+        if(RtmpConfig.SERVER_TIMESHIFT_SECONDS > 0) {
+            timeshift = new TimeshiftBuffer(name, RtmpConfig.SERVER_TIMESHIFT_SECONDS,
+                    RtmpConfig.SERVER_TIMESHIFT_MEMORY, RtmpConfig.SERVER_TIMESHIFT_DISK);
         } else {
-            this.publishType = null;
-            subscribers = null;
-            configMessages = null;
+            timeshift = null;
         }
-        logger.info("Created ServerStream {}", this);
+        logger.debug("Created ServerStream {}", this);
+    }
+
+    /**
+     * lists this stream's own metrics, only called once it has won the
+     * registry slot so that a discarded duplicate never replaces them
+     */
+    void registerMetrics() {
+        final Metrics metrics = Metrics.getInstance();
+        metrics.register(messages, "rtmp_stream_messages", "app", applicationName, "stream", name);
+        metrics.register(bytes, "rtmp_stream_bytes", "app", applicationName, "stream", name);
+        metrics.register(fanOut, "rtmp_stream_fanout", "app", applicationName, "stream", name);
+    }
+
+    boolean retain() {
+        return references.retain();
+    }
+
+    boolean release() {
+        return references.release();
+    }
+
+    void close() {
+        if(timeshift != null) {
+            timeshift.close();
+        }
+        final Metrics metrics = Metrics.getInstance();
+        metrics.unregister(messages, "rtmp_stream_messages", "app", applicationName, "stream", name);
+        metrics.unregister(bytes, "rtmp_stream_bytes", "app", applicationName, "stream", name);
+        metrics.unregister(fanOut, "rtmp_stream_fanout", "app", applicationName, "stream", name);
+    }
+
+    public int getReferenceCount() {
+        return references.get();
     }
 
     public boolean isLive() {
-        return publishType != null && publishType == PublishType.LIVE;
+        return publishType == PublishType.LIVE;
     }
 
     public PublishType getPublishType() {
@@ -80,10 +132,52 @@ public class ServerStream {
         return subscribers;
     }
 
+    /**
+     * @return null if timeshift is not enabled
+     */
+    public TimeshiftBuffer getTimeshift() {
+        return timeshift;
+    }
+
+    /**
+     * fan out to live subscribers, keeping a copy in the timeshift buffer
+     */
+    public void write(final RtmpMessage message) {
+        messages.increment();
+        bytes.add(message.getHeader().getSize());
+        fanOut.record(subscribers.size());
+        if(timeshift == null) {
+            subscribers.write(message);
+            return;
+        }
+        synchronized(timeshift) {
+            timeshift.write(message);
+            subscribers.write(message);
+        }
+    }
+
     public String getName() {
         return name;
     }
 
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /** messages published to this stream */
+    public Counter getMessages() {
+        return messages;
+    }
+
+    public Counter getBytes() {
+        return bytes;
+    }
+
+    /** number of live subscribers each published message went out to */
+    public Histogram getFanOut() {
+        return fanOut;
+    }
+
 
     public List<RtmpMessage> getConfigMessages() {
         return configMessages;
@@ -93,12 +187,35 @@ public class ServerStream {
         configMessages.add(message);
     }
 
-    public void setPublisher(Channel publisher) {
+    /**
+     * @return false if some other channel is already publishing
+     */
+    public synchronized boolean setPublisher(final Channel publisher, final PublishType publishType) {
+        if(this.publisher != null) {
+            return false;
+        }
         this.publisher = publisher;
+        this.publishType = publishType;
+        configMessages.clear();
+        if(timeshift != null) {
+            timeshift.clear(); // timestamps start over
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the channel was not the current publisher
+     */
+    public synchronized boolean removePublisher(final Channel publisher) {
+        if(this.publisher != publisher) {
+            return false;
+        }
+        this.publisher = null;
         configMessages.clear();
+        return true;
     }
 
-    public Channel getPublisher() {
+    public synchronized Channel getPublisher() {
         return publisher;
     }
 
@@ -109,6 +226,7 @@ public class ServerStream {
         sb.append("' type: ").append(publishType);
         sb.append(" publisher: ").append(publisher);
         sb.append(" subscribers: ").append(subscribers);
+        sb.append(" references: ").append(references);
         sb.append(" config: ").append(configMessages);
         sb.append(']');
         return sb.toString();
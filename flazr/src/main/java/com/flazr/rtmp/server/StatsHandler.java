@@ -0,0 +1,319 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.rtmp.RtmpDecoder;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpPublisher;
+import com.flazr.util.ChannelUtils;
+import com.flazr.util.Counter;
+import com.flazr.util.Histogram;
+import com.flazr.util.JsonWriter;
+import com.flazr.util.Metrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * read only views of the running server:
+ * <pre>
+ * /metrics                  registry in prometheus text format
+ * /stats                    applications, streams and connections as json
+ * /stats/streams            just the streams, ?app= and ?stream= narrow it down
+ * /stats/connections        just the connections, with vod pacing details
+ * </pre>
+ * state owned by the rtmp threads is read without locking, so figures may
+ * be a moment out of date but never hold up media
+ */
+@ChannelPipelineCoverage("all")
+public class StatsHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsHandler.class);
+
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final String PROMETHEUS = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+        if(!(e.getMessage() instanceof HttpRequest)) {
+            return;
+        }
+        final HttpRequest request = (HttpRequest) e.getMessage();
+        final Channel channel = e.getChannel();
+        if(request.getMethod() != HttpMethod.GET) {
+            respond(channel, HttpResponseStatus.METHOD_NOT_ALLOWED, JSON, "{}");
+            return;
+        }
+        final QueryStringDecoder query = new QueryStringDecoder(request.getUri());
+        final String path = query.getPath();
+        logger.debug("stats request: {}", path);
+        if(path.equals("/metrics")) {
+            respond(channel, HttpResponseStatus.OK, PROMETHEUS, getMetricsText());
+        } else if(path.equals("/stats") || path.equals("/")) {
+            respond(channel, HttpResponseStatus.OK, JSON, getStatsJson(true, true, null, null));
+        } else if(path.equals("/stats/streams")) {
+            final Map<String, List<String>> params = query.getParameters();
+            respond(channel, HttpResponseStatus.OK, JSON, getStatsJson(true, false,
+                    getParameter(params, "app"), getParameter(params, "stream")));
+        } else if(path.equals("/stats/connections")) {
+            respond(channel, HttpResponseStatus.OK, JSON, getStatsJson(false, true, null, null));
+        } else {
+            respond(channel, HttpResponseStatus.NOT_FOUND, JSON, "{}");
+        }
+    }
+
+    private static String getParameter(final Map<String, List<String>> params, final String name) {
+        final List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0).toLowerCase();
+    }
+
+    private static void respond(final Channel channel, final HttpResponseStatus status,
+            final String contentType, final String body) {
+        final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        final ChannelBuffer content = ChannelBuffers.copiedBuffer(body, "UTF-8");
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Length", String.valueOf(content.readableBytes()));
+        response.setHeader("Connection", "close");
+        response.setContent(content);
+        channel.write(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) {
+        ChannelUtils.exceptionCaught(e);
+        e.getChannel().close();
+    }
+
+    //============================== PROMETHEUS ================================
+
+    private static String[] splitKey(final String key) {
+        final int pos = key.indexOf('{');
+        if(pos == -1) {
+            return new String[] {key, ""};
+        }
+        return new String[] {key.substring(0, pos), key.substring(pos + 1, key.length() - 1)};
+    }
+
+    private static String labels(final String labels, final String extra) {
+        if(labels.length() == 0 && extra == null) {
+            return "";
+        }
+        if(extra == null) {
+            return "{" + labels + "}";
+        }
+        return "{" + (labels.length() == 0 ? "" : labels + ",") + extra + "}";
+    }
+
+    /** keys grouped by metric name, prometheus wants all lines of a metric together */
+    private static <T> Map<String, Map<String, T>> byName(final Map<String, T> metrics) {
+        final Map<String, Map<String, T>> map = new TreeMap<String, Map<String, T>>();
+        for(Map.Entry<String, T> entry : metrics.entrySet()) {
+            final String[] split = splitKey(entry.getKey());
+            Map<String, T> group = map.get(split[0]);
+            if(group == null) {
+                group = new TreeMap<String, T>();
+                map.put(split[0], group);
+            }
+            group.put(split[1], entry.getValue());
+        }
+        return map;
+    }
+
+    private static void gauge(final StringBuilder sb, final String name, final long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    public static String getMetricsText() {
+        final StringBuilder sb = new StringBuilder();
+        final Metrics metrics = Metrics.getInstance();
+        for(Map.Entry<String, Map<String, Counter>> group : byName(metrics.getCounters()).entrySet()) {
+            sb.append("# TYPE ").append(group.getKey()).append(" counter\n");
+            for(Map.Entry<String, Counter> entry : group.getValue().entrySet()) {
+                sb.append(group.getKey()).append(labels(entry.getKey(), null));
+                sb.append(' ').append(entry.getValue().get()).append('\n');
+            }
+        }
+        for(Map.Entry<String, Map<String, Histogram>> group : byName(metrics.getHistograms()).entrySet()) {
+            final String name = group.getKey();
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for(Map.Entry<String, Histogram> entry : group.getValue().entrySet()) {
+                final Histogram histogram = entry.getValue();
+                for(double quantile : QUANTILES) {
+                    sb.append(name).append(labels(entry.getKey(), "quantile=\"" + quantile + "\""));
+                    sb.append(' ').append(histogram.getValueAtPercentile(quantile * 100)).append('\n');
+                }
+                sb.append(name).append("_sum").append(labels(entry.getKey(), null));
+                sb.append(' ').append(histogram.getSum()).append('\n');
+                sb.append(name).append("_count").append(labels(entry.getKey(), null));
+                sb.append(' ').append(histogram.getCount()).append('\n');
+            }
+        }
+        gauge(sb, "rtmp_channels", RtmpServer.CHANNELS.size());
+        gauge(sb, "rtmp_applications", RtmpServer.APPLICATIONS.size());
+        gauge(sb, "rtmp_decoder_reassembly_bytes", RtmpDecoder.getTotalReassemblyBytes());
+        return sb.toString();
+    }
+
+    //============================== JSON ======================================
+
+    public static String getStatsJson(final boolean streams, final boolean connections,
+            final String appFilter, final String streamFilter) {
+        final JsonWriter json = new JsonWriter().beginObject();
+        json.name("channels").value(RtmpServer.CHANNELS.size());
+        if(streams) {
+            json.name("applications").beginArray();
+            for(ServerApplication app : new ArrayList<ServerApplication>(RtmpServer.APPLICATIONS.values())) {
+                if(appFilter == null || appFilter.equals(app.getName())) {
+                    writeApplication(json, app, streamFilter);
+                }
+            }
+            json.endArray();
+        }
+        if(connections) {
+            json.name("connections").beginArray();
+            for(Channel channel : new ArrayList<Channel>(RtmpServer.CHANNELS)) {
+                final ServerHandler handler = channel.getPipeline().get(ServerHandler.class);
+                if(handler != null) {
+                    writeConnection(json, channel, handler);
+                }
+            }
+            json.endArray();
+        }
+        return json.endObject().toString();
+    }
+
+    private static void writeHistogram(final JsonWriter json, final String name, final Histogram histogram) {
+        json.name(name).beginObject();
+        json.name("count").value(histogram.getCount());
+        json.name("mean").value(histogram.getMean());
+        json.name("p50").value(histogram.getValueAtPercentile(50));
+        json.name("p99").value(histogram.getValueAtPercentile(99));
+        json.name("max").value(histogram.getMax());
+        json.endObject();
+    }
+
+    private static void writeApplication(final JsonWriter json, final ServerApplication app, final String streamFilter) {
+        json.beginObject();
+        json.name("name").value(app.getName());
+        json.name("references").value(app.getReferenceCount());
+        json.name("connections").value(app.getConnections().get());
+        json.name("messagesRead").value(app.getMessagesRead().get());
+        json.name("bytesRead").value(app.getBytesRead().get());
+        json.name("bytesWritten").value(app.getBytesWritten().get());
+        json.name("droppedMessages").value(app.getDroppedMessages().get());
+        writeHistogram(json, "readerOpenMicros", app.getReaderOpenTime());
+        writeHistogram(json, "publisherLagMillis", app.getPublisherLag());
+        json.name("streams").beginArray();
+        for(ServerStream stream : app.getStreams()) {
+            if(streamFilter == null || streamFilter.equals(stream.getName())) {
+                writeStream(json, stream);
+            }
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void writeStream(final JsonWriter json, final ServerStream stream) {
+        json.beginObject();
+        json.name("name").value(stream.getName());
+        final ServerStream.PublishType type = stream.getPublishType();
+        json.name("type").value(type == null ? null : type.asString());
+        final Channel publisher = stream.getPublisher();
+        json.name("publisher").value(publisher == null ? null : String.valueOf(publisher.getRemoteAddress()));
+        json.name("subscribers").value(stream.getSubscribers().size());
+        json.name("references").value(stream.getReferenceCount());
+        json.name("messages").value(stream.getMessages().get());
+        json.name("bytes").value(stream.getBytes().get());
+        writeHistogram(json, "fanOut", stream.getFanOut());
+        json.name("config").beginArray();
+        for(RtmpMessage message : stream.getConfigMessages()) {
+            json.value(message.getHeader().getMessageType() + " " + message.getHeader().getSize() + " bytes");
+        }
+        json.endArray();
+        final TimeshiftBuffer timeshift = stream.getTimeshift();
+        json.name("timeshift");
+        if(timeshift == null) {
+            json.nullValue();
+        } else {
+            json.beginObject();
+            json.name("firstTime").value(timeshift.getFirstTime());
+            json.name("lastTime").value(timeshift.getLastTime());
+            json.name("memoryBytes").value(timeshift.getMemoryBytes());
+            json.name("diskBytes").value(timeshift.getDiskBytes());
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    private static void writeConnection(final JsonWriter json, final Channel channel, final ServerHandler handler) {
+        json.beginObject();
+        json.name("id").value(channel.getId());
+        json.name("remote").value(String.valueOf(channel.getRemoteAddress()));
+        final ServerApplication app = handler.getApplication();
+        json.name("app").value(app == null ? null : app.getName());
+        final ServerStream playStream = handler.getPlayStream();
+        final ServerStream publishStream = handler.getPublishStream();
+        json.name("live").value(playStream == null ? null : playStream.getName());
+        json.name("publishing").value(publishStream == null ? null : publishStream.getName());
+        json.name("messagesRead").value(handler.getMessagesRead());
+        json.name("bytesRead").value(handler.getBytesRead());
+        json.name("bytesWritten").value(handler.getBytesWritten());
+        final RtmpPublisher publisher = handler.getPublisher();
+        json.name("vod");
+        if(publisher == null) {
+            json.nullValue();
+        } else {
+            json.beginObject();
+            json.name("play").value(handler.getPlayName());
+            json.name("paused").value(publisher.isPaused());
+            json.name("timePosition").value(publisher.getTimePosition());
+            json.name("bufferDuration").value(publisher.getBufferDuration());
+            json.name("clientBuffer").value(publisher.getClientBuffer());
+            json.name("throughput").value(publisher.getThroughput());
+            json.name("aggregateSizeLimit").value(publisher.getAggregateSizeLimit());
+            json.name("timeToFirstFrame").value(publisher.getTimeToFirstFrame());
+            json.name("startupFillTime").value(publisher.getStartupFillTime());
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * optional http listener for stats, with its own boss and worker threads
+ * so that scraping never competes with the rtmp i/o threads
+ */
+public class StatsServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsServer.class);
+
+    private final ChannelFactory factory;
+    private final Channel channel;
+
+    /**
+     * @param port 0 picks a free port, see {@link #getPort()}
+     */
+    public StatsServer(final int port, final int threads) {
+        factory = new NioServerSocketChannelFactory(Executors.newFixedThreadPool(1),
+                Executors.newFixedThreadPool(threads), threads);
+        final ServerBootstrap bootstrap = new ServerBootstrap(factory);
+        final StatsHandler handler = new StatsHandler();
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("handler", handler);
+                return pipeline;
+            }
+        });
+        bootstrap.setOption("child.tcpNoDelay", true);
+        channel = bootstrap.bind(new InetSocketAddress(port));
+        logger.info("stats server started, listening on: {}, threads: {}", channel.getLocalAddress(), threads);
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public void close() {
+        channel.close().awaitUninterruptibly();
+        factory.releaseExternalResources();
+        logger.info("stats server stopped");
+    }
+
+}
@@ -0,0 +1,469 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.rtmp.server;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * recent media of a live stream so that subscribers can pause and seek,
+ * stored as flv tags in segments that start on a keyframe, the newest
+ * segments are kept in memory and older ones spill to a temp file that is
+ * used as a ring, all methods lock on this instance
+ */
+public class TimeshiftBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeshiftBuffer.class);
+
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private final String name;
+    private final int windowMillis;
+    private final long memoryLimit;
+    private final long diskLimit;
+    private final int segmentSize;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private long nextSegmentId;
+    private long memoryBytes;
+    private long diskBytes;
+    private int lastTime;
+    private boolean videoSeen;
+
+    private File diskFile;
+    private FileChannel disk;
+    private long diskWritePosition;
+    private boolean diskFailed;
+
+    private static class Segment {
+
+        private final long id;
+        private ChannelBuffer data; // null once spilled to disk
+        private long diskPosition = -1;
+        private int size;
+        private int endTime;
+        // seek points within this segment
+        private int[] keyFrameTimes = new int[4];
+        private int[] keyFrameOffsets = new int[4];
+        private int keyFrameCount;
+
+        public Segment(final long id, final int capacity) {
+            this.id = id;
+            data = ChannelBuffers.dynamicBuffer(capacity);
+        }
+
+        public void addKeyFrame(final int time, final int offset) {
+            if(keyFrameCount == keyFrameTimes.length) {
+                final int[] times = new int[keyFrameCount * 2];
+                final int[] offsets = new int[keyFrameCount * 2];
+                System.arraycopy(keyFrameTimes, 0, times, 0, keyFrameCount);
+                System.arraycopy(keyFrameOffsets, 0, offsets, 0, keyFrameCount);
+                keyFrameTimes = times;
+                keyFrameOffsets = offsets;
+            }
+            keyFrameTimes[keyFrameCount] = time;
+            keyFrameOffsets[keyFrameCount] = offset;
+            keyFrameCount++;
+        }
+
+    }
+
+    /**
+     * @param memoryLimit bytes of recent media held on the heap
+     * @param diskLimit size of the spill file ring, 0 = no spill
+     */
+    public TimeshiftBuffer(final String name, final int windowSeconds,
+            final long memoryLimit, final long diskLimit) {
+        this.name = name;
+        this.windowMillis = windowSeconds * 1000;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        segmentSize = (int) Math.max(1, Math.min(MAX_SEGMENT_SIZE, memoryLimit / 4));
+        logger.debug("created timeshift buffer '{}' window: {} seconds, memory: {}, disk: {}",
+                new Object[]{name, windowSeconds, memoryLimit, diskLimit});
+    }
+
+    public synchronized void write(final RtmpMessage message) {
+        final RtmpHeader header = message.getHeader();
+        if(header.isAggregate()) {
+            final ChannelBuffer in = message.encode().duplicate();
+            while(in.readable()) {
+                append(new FlvAtom(in));
+            }
+        } else if(header.isAudio() || header.isVideo()) {
+            append(new FlvAtom(header.getMessageType(), header.getTime(), message.encode().duplicate()));
+        }
+    }
+
+    private void append(final FlvAtom atom) {
+        final int time = atom.getHeader().getTime();
+        final boolean keyFrame = atom.isKeyFrame();
+        if(atom.getHeader().isVideo()) {
+            videoSeen = true;
+        }
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if(segment == null || segment.data == null
+                || segment.size >= segmentSize && (keyFrame || !videoSeen)
+                || segment.size >= segmentSize * 4) {
+            segment = new Segment(nextSegmentId++, segmentSize);
+            segments.add(segment);
+        }
+        if(keyFrame || !videoSeen && segment.size == 0) { // audio only streams seek per segment
+            segment.addKeyFrame(time, segment.size);
+        }
+        final ChannelBuffer tag = atom.write();
+        final int tagSize = tag.readableBytes();
+        segment.data.writeBytes(tag);
+        segment.size += tagSize;
+        segment.endTime = time;
+        memoryBytes += tagSize;
+        lastTime = time;
+        trim();
+    }
+
+    private void trim() {
+        while(segments.size() > 1 && lastTime - segments.get(0).endTime > windowMillis) {
+            removeFirst();
+        }
+        while(memoryBytes > memoryLimit) {
+            Segment oldest = null;
+            for(int i = 0; i < segments.size() - 1; i++) { // never the one being written
+                if(segments.get(i).data != null) {
+                    oldest = segments.get(i);
+                    break;
+                }
+            }
+            if(oldest == null) {
+                return;
+            }
+            if(!spill(oldest)) {
+                Segment removed;
+                do {
+                    removed = removeFirst();
+                } while(removed != oldest);
+            }
+        }
+    }
+
+    private Segment removeFirst() {
+        final Segment segment = segments.remove(0);
+        if(segment.data != null) {
+            memoryBytes -= segment.size;
+        } else {
+            diskBytes -= segment.size;
+        }
+        return segment;
+    }
+
+    private boolean spill(final Segment segment) {
+        if(diskFailed || segment.size > diskLimit) {
+            return false;
+        }
+        long position = diskWritePosition;
+        final boolean wrap = position + segment.size > diskLimit;
+        if(wrap) {
+            position = 0;
+        }
+        // segments are on disk in the order written, so the ones in the way are at the front
+        while(segments.get(0) != segment) {
+            final Segment first = segments.get(0);
+            final boolean behindWrap = wrap && first.diskPosition >= diskWritePosition;
+            final boolean overlaps = first.diskPosition < position + segment.size
+                    && position < first.diskPosition + first.size;
+            if(!behindWrap && !overlaps) {
+                break;
+            }
+            removeFirst();
+        }
+        try {
+            if(disk == null) {
+                diskFile = File.createTempFile("flazr-timeshift-", ".tmp");
+                diskFile.deleteOnExit();
+                disk = new RandomAccessFile(diskFile, "rw").getChannel();
+                logger.info("timeshift buffer '{}' spilling to: {}", name, diskFile.getAbsolutePath());
+            }
+            final ByteBuffer buffer = segment.data.toByteBuffer(0, segment.size);
+            while(buffer.hasRemaining()) {
+                disk.write(buffer, position + buffer.position());
+            }
+        } catch(Exception e) {
+            logger.warn("timeshift buffer '{}' disabling spill to disk: {}", name, e.getMessage());
+            diskFailed = true;
+            return false;
+        }
+        segment.data = null;
+        segment.diskPosition = position;
+        diskWritePosition = position + segment.size;
+        memoryBytes -= segment.size;
+        diskBytes += segment.size;
+        return true;
+    }
+
+    private FlvAtom read(final Segment segment, final int offset) {
+        if(segment.data != null) {
+            return new FlvAtom(segment.data.slice(offset, segment.size - offset));
+        }
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(11);
+            readFully(header, segment.diskPosition + offset);
+            final int dataSize = header.getInt(0) & 0xFFFFFF;
+            final ByteBuffer tag = ByteBuffer.allocate(11 + dataSize + 4);
+            readFully(tag, segment.diskPosition + offset);
+            tag.flip();
+            return new FlvAtom(ChannelBuffers.wrappedBuffer(tag));
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws Exception {
+        while(buffer.hasRemaining()) {
+            if(disk.read(buffer, position + buffer.position()) == -1) {
+                throw new RuntimeException("unexpected end of timeshift file at: " + position);
+            }
+        }
+    }
+
+    /**
+     * drops everything, for e.g. when a new publisher starts on the stream
+     */
+    public synchronized void clear() {
+        segments.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+        diskWritePosition = 0;
+        videoSeen = false;
+    }
+
+    public synchronized void close() {
+        clear();
+        if(disk != null) {
+            try {
+                disk.close();
+            } catch(Exception e) {
+                logger.warn("error closing timeshift file: {}", e.getMessage());
+            }
+            diskFile.delete();
+            disk = null;
+        }
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public synchronized int getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return time of the oldest seek point still available, -1 if empty
+     */
+    public synchronized int getFirstTime() {
+        for(final Segment segment : segments) {
+            if(segment.keyFrameCount > 0) {
+                return segment.keyFrameTimes[0];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the reader adds the channel back to the subscribers of the stream when
+     * it has caught up with live, under the same lock as the stream uses to
+     * write to both this buffer and the subscribers, so nothing is missed
+     */
+    public RtmpReader newReader(final Channel channel, final ServerStream stream) {
+        return new Reader(channel, stream);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("[name: '").append(name);
+        sb.append("' segments: ").append(segments.size());
+        sb.append(" memory: ").append(memoryBytes);
+        sb.append(" disk: ").append(diskBytes);
+        sb.append(" last time: ").append(lastTime);
+        sb.append(']');
+        return sb.toString();
+    }
+
+    //==========================================================================
+
+    private class Reader implements RtmpReader {
+
+        private final Channel channel;
+        private final ServerStream stream;
+        private long segmentId = -1;
+        private int offset;
+        private long timePosition;
+
+        public Reader(final Channel channel, final ServerStream stream) {
+            this.channel = channel;
+            this.stream = stream;
+        }
+
+        /**
+         * @return the segment the cursor is on, moving to the next segment
+         * or to the oldest one if fallen behind, null if there is nothing to read
+         */
+        private Segment locate() {
+            if(segments.isEmpty()) {
+                return null;
+            }
+            final Segment first = segments.get(0);
+            if(segmentId < first.id) {
+                if(segmentId != -1) {
+                    logger.info("timeshift reader fell behind, skipping to oldest segment: {}", first.id);
+                }
+                segmentId = first.id;
+                offset = 0;
+            }
+            final int index = (int) (segmentId - first.id);
+            if(index >= segments.size()) {
+                return null;
+            }
+            final Segment segment = segments.get(index);
+            if(offset < segment.size) {
+                return segment;
+            }
+            if(index + 1 < segments.size()) {
+                segmentId++;
+                offset = 0;
+                return segments.get(index + 1);
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized(TimeshiftBuffer.this) {
+                if(locate() != null) {
+                    return true;
+                }
+                if(!stream.getSubscribers().contains(channel)) {
+                    logger.info("timeshift reader caught up with live: {}", channel);
+                    stream.getSubscribers().add(channel);
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public RtmpMessage next() {
+            synchronized(TimeshiftBuffer.this) {
+                final Segment segment = locate();
+                if(segment == null) {
+                    throw new RuntimeException("no more data in timeshift buffer");
+                }
+                final FlvAtom atom = read(segment, offset);
+                offset += 11 + atom.getHeader().getSize() + 4;
+                timePosition = atom.getHeader().getTime();
+                return atom;
+            }
+        }
+
+        @Override
+        public long seek(final long time) {
+            synchronized(TimeshiftBuffer.this) {
+                if(segments.isEmpty() || time >= lastTime) { // straight back to live
+                    segmentId = nextSegmentId;
+                    offset = 0;
+                    timePosition = lastTime;
+                    return timePosition;
+                }
+                for(int i = segments.size() - 1; i >= 0; i--) {
+                    final Segment segment = segments.get(i);
+                    for(int j = segment.keyFrameCount - 1; j >= 0; j--) {
+                        if(segment.keyFrameTimes[j] <= time || i == 0 && j == 0) {
+                            segmentId = segment.id;
+                            offset = segment.keyFrameOffsets[j];
+                            timePosition = segment.keyFrameTimes[j];
+                            logger.debug("timeshift seek requested: {}, actual: {}", time, timePosition);
+                            return timePosition;
+                        }
+                    }
+                }
+                segmentId = segments.get(0).id; // no seek points at all
+                offset = 0;
+                timePosition = time;
+                return timePosition;
+            }
+        }
+
+        @Override
+        public long getTimePosition() {
+            return timePosition;
+        }
+
+        @Override
+        public Metadata getMetadata() {
+            for(final RtmpMessage message : stream.getConfigMessages()) {
+                if(message.getHeader().isMetadata()) {
+                    return (Metadata) message;
+                }
+            }
+            return new MetadataAmf0("onMetaData");
+        }
+
+        @Override
+        public RtmpMessage[] getStartMessages() {
+            final List<RtmpMessage> list = stream.getConfigMessages();
+            return list.toArray(new RtmpMessage[list.size()]);
+        }
+
+        @Override
+        public void setAggregateDuration(final int targetDuration) {
+            // tags are sent one by one
+        }
+
+        @Override
+        public void setAggregateSizeLimit(final int maxBytes) {
+            // tags are sent one by one
+        }
+
+        @Override
+        public void close() {
+            logger.debug("closed timeshift reader: {}", channel);
+        }
+
+    }
+
+}
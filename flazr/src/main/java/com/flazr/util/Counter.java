@@ -0,0 +1,92 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free counter striped over padded cells so that threads bumping the
+ * same counter mostly hit different cache lines, reads sum all the cells.
+ * stands in for LongAdder which needs java 8
+ */
+public class Counter {
+
+    // longs per cell, keeps neighbouring cells on separate cache lines
+    private static final int PAD = 8;
+    private static final int DEFAULT_STRIPES;
+
+    static {
+        int stripes = 1;
+        while(stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        DEFAULT_STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public Counter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes rounded up to a power of two, 1 for counters that are
+     * mostly touched by a single thread
+     */
+    public Counter(final int stripes) {
+        int size = 1;
+        while(size < stripes) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        cells = new AtomicLongArray(size == 1 ? 1 : size * PAD);
+    }
+
+    private int cell() {
+        if(mask == 0) {
+            return 0;
+        }
+        final long mixed = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (mixed >>> 32) & mask) * PAD;
+    }
+
+    public void add(final long delta) {
+        cells.getAndAdd(cell(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long get() {
+        long sum = 0;
+        for(int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free log-linear histogram in the spirit of HdrHistogram: every power
+ * of two is split into 16 linear buckets, so any recorded value is known to
+ * within 1/16th (6.25%) with a fixed 8 kb of counts and no allocation on
+ * record. negative values are recorded as zero
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final Counter count = new Counter();
+    private final Counter sum = new Counter();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucket(final long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** smallest value that falls in the bucket */
+    static long lowestValue(final int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /** largest value that falls in the bucket */
+    static long highestValue(final int bucket) {
+        if(bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValue(bucket + 1) - 1;
+    }
+
+    public void record(final long value) {
+        final long positive = Math.max(0, value);
+        counts.incrementAndGet(bucket(positive));
+        count.increment();
+        sum.add(positive);
+        long current = max.get();
+        while(positive > current && !max.compareAndSet(current, positive)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the highest value equivalent to the one at the percentile, 0 if
+     * nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long[] snapshot = getCounts();
+        long total = 0;
+        for(long bucketCount : snapshot) {
+            total += bucketCount;
+        }
+        if(total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if(seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return a copy of the bucket counts, buckets are not read atomically as
+     * a whole so the copy may be slightly off while values are being recorded
+     */
+    public long[] getCounts() {
+        final long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * calls back for every bucket holding values, in ascending order, with
+     * the highest value of the bucket and the running total
+     */
+    public void forEachBucket(final BucketVisitor visitor) {
+        long cumulative = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            final long bucketCount = counts.get(i);
+            if(bucketCount > 0) {
+                cumulative += bucketCount;
+                visitor.visit(highestValue(i), cumulative);
+            }
+        }
+    }
+
+    public static interface BucketVisitor {
+
+        void visit(long highestValue, long cumulativeCount);
+
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("count: ").append(getCount());
+        sb.append(" mean: ").append(Math.round(getMean()));
+        sb.append(" p50: ").append(getValueAtPercentile(50));
+        sb.append(" p90: ").append(getValueAtPercentile(90));
+        sb.append(" p99: ").append(getValueAtPercentile(99));
+        sb.append(" max: ").append(getMax());
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.util;
+
+/**
+ * minimal streaming json output, takes care of commas and escaping,
+ * e.g. new JsonWriter().beginObject().name("count").value(1).endObject()
+ */
+public class JsonWriter {
+
+    private final StringBuilder sb = new StringBuilder();
+    // one entry per open object / array, true until the first element is written
+    private boolean[] first = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    private void beforeValue() {
+        if(afterName) {
+            afterName = false;
+            return;
+        }
+        if(depth > 0) {
+            if(!first[depth - 1]) {
+                sb.append(',');
+            }
+            first[depth - 1] = false;
+        }
+    }
+
+    private JsonWriter open(final char c) {
+        beforeValue();
+        sb.append(c);
+        if(depth == first.length) {
+            final boolean[] temp = new boolean[depth * 2];
+            System.arraycopy(first, 0, temp, 0, depth);
+            first = temp;
+        }
+        first[depth++] = true;
+        return this;
+    }
+
+    private JsonWriter close(final char c) {
+        depth--;
+        sb.append(c);
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        return open('{');
+    }
+
+    public JsonWriter endObject() {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() {
+        return open('[');
+    }
+
+    public JsonWriter endArray() {
+        return close(']');
+    }
+
+    public JsonWriter name(final String name) {
+        beforeValue();
+        quote(name);
+        sb.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(final String value) {
+        beforeValue();
+        if(value == null) {
+            sb.append("null");
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(final long value) {
+        beforeValue();
+        sb.append(value);
+        return this;
+    }
+
+    public JsonWriter value(final double value) {
+        beforeValue();
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(final boolean value) {
+        beforeValue();
+        sb.append(value);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        sb.append("null");
+        return this;
+    }
+
+    private void quote(final String s) {
+        sb.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch(c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+}
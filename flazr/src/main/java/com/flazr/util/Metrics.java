@@ -0,0 +1,141 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * process wide registry of counters and histograms, keyed by name plus
+ * optional label pairs in prometheus style e.g. rtmp_messages{app="vod"}.
+ * lookups build strings and may allocate, so hooks look their metrics up
+ * once and keep the references, recording is then lock and allocation free
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param labels name / value pairs
+     */
+    public static String key(final String name, final String... labels) {
+        if(labels.length == 0) {
+            return name;
+        }
+        return name + labels(labels);
+    }
+
+    private static String labels(final String... labels) {
+        if(labels.length % 2 != 0) {
+            throw new RuntimeException("labels must be name / value pairs");
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for(int i = 0; i < labels.length; i += 2) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            sb.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    public Counter counter(final String name, final String... labels) {
+        final String key = key(name, labels);
+        final Counter counter = counters.get(key);
+        if(counter != null) {
+            return counter;
+        }
+        final Counter created = new Counter();
+        final Counter existing = counters.putIfAbsent(key, created);
+        return existing == null ? created : existing;
+    }
+
+    public Histogram histogram(final String name, final String... labels) {
+        final String key = key(name, labels);
+        final Histogram histogram = histograms.get(key);
+        if(histogram != null) {
+            return histogram;
+        }
+        final Histogram created = new Histogram();
+        final Histogram existing = histograms.putIfAbsent(key, created);
+        return existing == null ? created : existing;
+    }
+
+    /**
+     * lists a metric owned by the caller, replacing whatever was registered
+     * under the same key, so a stream re-created under an old name starts
+     * from zero instead of inheriting the counts of the one going away
+     */
+    public void register(final Counter counter, final String name, final String... labels) {
+        counters.put(key(name, labels), counter);
+    }
+
+    public void register(final Histogram histogram, final String name, final String... labels) {
+        histograms.put(key(name, labels), histogram);
+    }
+
+    /**
+     * only drops the key if it still maps to this very instance, an owner
+     * closing late cannot unlist the metric of the one that replaced it
+     */
+    public void unregister(final Counter counter, final String name, final String... labels) {
+        counters.remove(key(name, labels), counter);
+    }
+
+    public void unregister(final Histogram histogram, final String name, final String... labels) {
+        histograms.remove(key(name, labels), histogram);
+    }
+
+    /** sorted by key, so metrics of the same name end up next to each other */
+    public SortedMap<String, Counter> getCounters() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, Counter>(counters));
+    }
+
+    public SortedMap<String, Histogram> getHistograms() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String, Histogram>(histograms));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            sb.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        for(Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            sb.append('\n').append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+}
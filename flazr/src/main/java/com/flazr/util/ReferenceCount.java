@@ -0,0 +1,80 @@
+/*
+ * Flazr <http://flazr.com> Copyright (C) 2009  Peter Thomas.
+ *
+ * This file is part of Flazr.
+ *
+ * Flazr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Flazr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Flazr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.flazr.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * lock-free reference count for registry entries, once the count drops
+ * to zero the entry is dead and can never be retained again, so a
+ * registry can safely replace it with a fresh instance
+ */
+public class ReferenceCount {
+
+    private static final int DEAD = -1;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @return false if the entry has already been released for good
+     */
+    public boolean retain() {
+        while(true) {
+            final int current = count.get();
+            if(current == DEAD) {
+                return false;
+            }
+            if(count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if this was the last reference and the entry is now dead
+     */
+    public boolean release() {
+        while(true) {
+            final int current = count.get();
+            if(current <= 0) {
+                throw new IllegalStateException("release without retain, count: " + current);
+            }
+            final int next = current == 1 ? DEAD : current - 1;
+            if(count.compareAndSet(current, next)) {
+                return next == DEAD;
+            }
+        }
+    }
+
+    public int get() {
+        final int current = count.get();
+        return current == DEAD ? 0 : current;
+    }
+
+    public boolean isDead() {
+        return count.get() == DEAD;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(count.get());
+    }
+
+}
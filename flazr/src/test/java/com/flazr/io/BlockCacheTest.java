@@ -0,0 +1,71 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+    private static final String FILE_PATH = "target/temp";
+    private static final int BLOCK_SIZE = 1024;
+
+    private static byte[] writeFile(final String fileName, final int size) throws Exception {
+        new File(FILE_PATH).mkdirs();
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        final FileOutputStream out = new FileOutputStream(fileName);
+        out.write(bytes);
+        out.close();
+        return bytes;
+    }
+
+    private static void readBlock(final BlockCache cache, final FileChannel channel, final int number) {
+        cache.read(channel, "test", number * BLOCK_SIZE, new byte[16], 0, 16);
+    }
+
+    @Test
+    public void testReadsAcrossBlocks() throws Exception {
+        final String fileName = FILE_PATH + "/cache.bin";
+        final byte[] expected = writeFile(fileName, BLOCK_SIZE * 10 + 100);
+        final FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+        final BlockCache cache = new BlockCache(BLOCK_SIZE * 4, BLOCK_SIZE);
+        final Random random = new Random(7);
+        for(int i = 0; i < 1000; i++) {
+            final int position = random.nextInt(expected.length);
+            final int length = random.nextInt(Math.min(3000, expected.length - position)) + 1;
+            final byte[] actual = new byte[length];
+            cache.read(channel, "test", position, actual, 0, length);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(expected, position, position + length), actual));
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getEvictions() > 0);
+        channel.close();
+    }
+
+    @Test
+    public void testScanDoesNotEvictHotBlock() throws Exception {
+        final String fileName = FILE_PATH + "/cache.bin";
+        writeFile(fileName, BLOCK_SIZE * 200);
+        final FileChannel channel = new RandomAccessFile(fileName, "r").getChannel();
+        final BlockCache cache = new BlockCache(BLOCK_SIZE * 8, BLOCK_SIZE);
+        readBlock(cache, channel, 0);
+        for(int i = 1; i < 10; i++) { // block 0 falls out of the fifo part
+            readBlock(cache, channel, i);
+        }
+        readBlock(cache, channel, 0); // seen again, promoted
+        for(int i = 10; i < 200; i++) {
+            readBlock(cache, channel, i);
+        }
+        final long hits = cache.getHits();
+        readBlock(cache, channel, 0);
+        assertEquals(hits + 1, cache.getHits());
+        channel.close();
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.f4v.F4vReader;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.rtmp.message.MessageType;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class MediaGeneratorTest {
+
+    private static final String FILE_PATH = "target/temp";
+
+    private static String path(final String name) {
+        final File temp = new File(FILE_PATH);
+        if(!temp.exists()) {
+            temp.mkdirs();
+        }
+        return FILE_PATH + "/" + name;
+    }
+
+    private static long readAll(final RtmpReader reader, final int[] counts) {
+        long bytes = 0;
+        while(reader.hasNext()) {
+            final RtmpMessage message = reader.next();
+            if(message.getHeader().isVideo()) {
+                counts[0]++;
+            } else if(message.getHeader().isAudio()) {
+                counts[1]++;
+            }
+            bytes += message.getHeader().getSize();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testMessagesAreInTimeOrderAtTheRequestedBitrate() {
+        final MediaGenerator generator = new MediaGenerator(20, 800);
+        final List<RtmpMessage> messages = generator.messages();
+        assertEquals(2 + 20 * 30 + 20 * 44100 / 1024, messages.size());
+        long videoBytes = 0;
+        int keyFrames = 0;
+        int lastTime = 0;
+        for(RtmpMessage message : messages) {
+            assertTrue(message.getHeader().getTime() >= lastTime);
+            lastTime = message.getHeader().getTime();
+            if(message.getHeader().isVideo() && message.encode().getByte(1) == 1) { // not the avc config
+                videoBytes += message.getHeader().getSize();
+                if(message.encode().getByte(0) == 0x17) {
+                    keyFrames++;
+                }
+            }
+        }
+        assertEquals(10, keyFrames);
+        assertEquals(800 * 1000 / 8 * 20, videoBytes, videoBytes / 20);
+    }
+
+    @Test
+    public void testFlvHasKeyFrameIndex() {
+        final MediaGenerator generator = new MediaGenerator(20, 500);
+        generator.setGopFrames(25);
+        generator.setFrameRate(25);
+        generator.writeFlv(path("generated.flv"));
+        final FlvReader reader = new FlvReader(path("generated.flv"));
+        assertEquals(20, reader.getMetadata().getDuration(), 1);
+        final Map<String, Object> keyframes = (Map) reader.getMetadata().getMap(0).get("keyframes");
+        assertEquals(1 + 20, ((Object[]) keyframes.get("times")).length); // the avc config is indexed too
+        final int[] counts = new int[2];
+        readAll(reader, counts);
+        assertEquals(1 + 20 * 25, counts[0]);
+        assertEquals(1 + 20 * 44100 / 1024, counts[1]);
+        assertEquals(5000, reader.seek(5500));
+        reader.close();
+    }
+
+    @Test
+    public void testMp4ReadsBackThroughMovieInfo() {
+        final MediaGenerator generator = new MediaGenerator(20, 500);
+        generator.setAudioSampleRate(48000);
+        generator.writeMp4(path("generated.mp4"));
+        final F4vReader reader = new F4vReader(path("generated.mp4"));
+        assertEquals(MessageType.METADATA_AMF0, reader.getStartMessages()[0].getHeader().getMessageType());
+        assertEquals(3, reader.getStartMessages().length);
+        assertEquals(20, reader.getMetadata().getDuration(), 0.5);
+        final int[] counts = new int[2];
+        final long bytes = readAll(reader, counts);
+        assertEquals(20 * 30, counts[0]);
+        assertEquals(20 * 48000 / 1024, counts[1]);
+        assertEquals((500 + 128) * 1000 / 8 * 20, bytes, bytes / 20);
+        assertEquals(4000, reader.seek(5000));
+        reader.close();
+    }
+
+    @Test
+    public void testSingleTrackMp4() {
+        final MediaGenerator generator = new MediaGenerator(10, 500);
+        for(MediaGenerator.Tracks tracks : new MediaGenerator.Tracks[] {
+                MediaGenerator.Tracks.VIDEO, MediaGenerator.Tracks.AUDIO}) {
+            generator.setTracks(tracks);
+            generator.writeMp4(path("generated.mp4"));
+            final F4vReader reader = new F4vReader(path("generated.mp4"));
+            assertEquals(2, reader.getStartMessages().length);
+            final int[] counts = new int[2];
+            readAll(reader, counts);
+            assertEquals(tracks.hasVideo() ? 300 : 0, counts[0]);
+            assertEquals(tracks.hasAudio() ? 10 * 44100 / 1024 : 0, counts[1]);
+            reader.seek(5000);
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testBitrateForSize() {
+        final MediaGenerator generator = new MediaGenerator();
+        generator.setDuration(7200);
+        generator.setVideoBitrateForSize(10L * 1000 * 1000 * 1000);
+        assertEquals(10983, generator.getVideoBitrate());
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.flazr.io;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpConfig;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReadAheadTest {
+
+    private static final String FILE_PATH = "target/temp";
+    private static final String FILE_NAME = FILE_PATH + "/readahead.bin";
+
+    @Test
+    public void testSequentialReadsServedFromWindow() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        final byte[] expected = new byte[2 * 1024 * 1024];
+        new Random(42).nextBytes(expected);
+        final FileOutputStream out = new FileOutputStream(FILE_NAME);
+        out.write(expected);
+        out.close();
+        final int oldSeconds = RtmpConfig.SERVER_READ_AHEAD_SECONDS;
+        RtmpConfig.SERVER_READ_AHEAD_SECONDS = 1;
+        final long hits = ReadAhead.getHits();
+        final FileChannelReader reader = new FileChannelReader(FILE_NAME);
+        try {
+            reader.enableReadAhead(128 * 1024);
+            int position = 0;
+            while(position < expected.length) {
+                final byte[] actual = reader.readBytes(1000);
+                final int end = Math.min(position + 1000, expected.length);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(expected, position, end),
+                        Arrays.copyOf(actual, end - position)));
+                position += 1000;
+                if(position % 100000 == 0) {
+                    Thread.sleep(20); // let the prefetch land
+                }
+            }
+            assertTrue(ReadAhead.getHits() > hits);
+            assertTrue(ReadAhead.getReservedBytes() > 0);
+            reader.cancelReadAhead();
+            reader.position(0);
+            assertTrue(Arrays.equals(Arrays.copyOf(expected, 1000), reader.readBytes(1000)));
+        } finally {
+            reader.close();
+            RtmpConfig.SERVER_READ_AHEAD_SECONDS = oldSeconds;
+        }
+        assertEquals(0, ReadAhead.getReservedBytes());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.flazr.io.flv;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.MetadataAmf0;
+import com.flazr.rtmp.message.Video;
+import java.io.File;
+import org.junit.Test;
+
+public class AsyncFlvWriterTest {
+
+    private static final String FILE_PATH = "target/temp";
+    private static final String FILE_NAME = FILE_PATH + "/async.flv";
+
+    @Test
+    public void testWriteBehindRoundTrip() {
+        new File(FILE_PATH).mkdirs();
+        AsyncFlvWriter writer = new AsyncFlvWriter(FILE_NAME, 16, AsyncFlvWriter.StallPolicy.BLOCK);
+        writer.write(new MetadataAmf0("onMetaData"));
+        byte[] bigFrame = new byte[300 * 1024]; // larger than one coalescing buffer
+        bigFrame[0] = 0x17;
+        for(int i = 0; i < 100; i++) {
+            RtmpMessage message = i % 10 == 0 ? new Video(bigFrame) : new Audio(new byte[] {(byte) 0xaf, 1, 2, 3});
+            message.getHeader().setTime(i * 20);
+            writer.write(message);
+        }
+        writer.close();
+        assertEquals(0, writer.getDroppedCount());
+        FlvReader reader = new FlvReader(FILE_NAME);
+        int count = 0;
+        while(reader.hasNext()) {
+            RtmpMessage message = reader.next();
+            assertEquals(count * 20, message.getHeader().getTime());
+            if(count % 10 == 0) {
+                assertEquals(bigFrame.length, message.getHeader().getSize());
+            }
+            count++;
+        }
+        reader.close();
+        assertEquals(100, count);
+    }
+
+    @Test(timeout = 10000)
+    public void testInterruptedWriterDoesNotBlockCallers() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        final String fileName = FILE_PATH + "/async-interrupted.flv";
+        AsyncFlvWriter writer = new AsyncFlvWriter(fileName, 4, AsyncFlvWriter.StallPolicy.BLOCK);
+        Thread writerThread = null;
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().equals("flv-writer-" + fileName)) {
+                writerThread = thread;
+            }
+        }
+        assertNotNull(writerThread);
+        writerThread.interrupt();
+        writerThread.join();
+        for(int i = 0; i < 100; i++) { // far more than the queue holds
+            Audio audio = new Audio(new byte[] {(byte) 0xaf, 1, 2, 3});
+            audio.getHeader().setTime(i * 20);
+            writer.write(audio);
+        }
+        writer.close();
+    }
+
+}
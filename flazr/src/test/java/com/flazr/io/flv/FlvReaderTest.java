@@ -9,6 +9,7 @@ import com.flazr.rtmp.message.MetadataAmf0;
 import com.flazr.rtmp.message.Video;
 import com.flazr.util.Utils;
 import java.io.File;
+import java.util.Map;
 import org.junit.Test;
 
 public class FlvReaderTest {
@@ -64,4 +65,79 @@ public class FlvReaderTest {
         reader.close();
     }
 
+    @Test
+    public void testSeekUsingKeyFrameIndex() {
+        FlvWriter writer = new FlvWriter(FILE_NAME);
+        for(int i = 0; i < 100; i++) {
+            final String frame = i % 10 == 0 ? "17000000" : "27000000";
+            final Video video = new Video(Utils.fromHex(frame));
+            video.getHeader().setTime(i * 100);
+            writer.write(video);
+        }
+        writer.close();
+        FlvReader reader = new FlvReader(FILE_NAME);
+        assertEquals(9.9, reader.getMetadata().getDouble("duration"), 0.001);
+        final Map<String, Object> keyframes = (Map) reader.getMetadata().getMap(0).get("keyframes");
+        assertEquals(10, ((Object[]) keyframes.get("times")).length);
+        assertNull(reader.getMetadata().getMap(0).get("padding"));
+        assertEquals(4000, reader.seek(4550));
+        RtmpMessage message = reader.next();
+        assertEquals(4000, message.getHeader().getTime());
+        assertTrue(((FlvAtom) message).isKeyFrame());
+        assertEquals(0, reader.seek(50));
+        reader.close();
+    }
+
+    @Test
+    public void testFollowRecordingInProgress() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        final String fileName = FILE_PATH + "/growing.flv";
+        final FlvWriter writer = new FlvWriter(fileName);
+        writer.write(new Audio(Utils.fromHex("00000000")));
+        final FlvReader reader = new FlvReader(fileName);
+        assertFalse(reader.isComplete());
+        assertTrue(reader.hasNext());
+        reader.next();
+        assertFalse(reader.hasNext());
+        final Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch(InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                final Audio audio = new Audio(Utils.fromHex("00000000"));
+                audio.getHeader().setTime(100);
+                writer.write(audio);
+                writer.close();
+            }
+        };
+        thread.start();
+        assertTrue(reader.await(5000));
+        assertEquals(100, reader.next().getHeader().getTime());
+        thread.join();
+        assertTrue(reader.isComplete());
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testAggregateSizeLimit() {
+        new File(FILE_PATH).mkdirs();
+        FlvWriter writer = new FlvWriter(FILE_NAME);
+        for(int i = 0; i < 10; i++) {
+            final Audio audio = new Audio(new byte[1000]);
+            audio.getHeader().setTime(i * 100);
+            writer.write(audio);
+        }
+        writer.close();
+        FlvReader reader = new FlvReader(FILE_NAME);
+        reader.setAggregateDuration(10000);
+        reader.setAggregateSizeLimit(100); // smaller than one tag, still one tag per aggregate
+        assertEquals(1015, reader.next().encode().readableBytes());
+        reader.setAggregateSizeLimit(5000);
+        assertEquals(4 * 1015, reader.next().encode().readableBytes());
+        reader.close();
+    }
+
 }
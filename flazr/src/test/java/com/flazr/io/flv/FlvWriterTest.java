@@ -0,0 +1,115 @@
+package com.flazr.io.flv;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.CommitWatermark;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import org.junit.Test;
+
+public class FlvWriterTest {
+
+    private static final String FILE_PATH = "target/temp";
+    private static final String FILE_NAME = FILE_PATH + "/append.flv";
+
+    private void writeFrames(final FlvWriter writer, final int count) {
+        for(int i = 0; i < count; i++) {
+            final String frame = i % 10 == 0 ? "17000000" : "27000000";
+            final Video video = new Video(Utils.fromHex(frame));
+            video.getHeader().setTime(i * 100);
+            writer.write(video);
+        }
+        writer.close();
+    }
+
+    private int[] readTimes() {
+        final FlvReader reader = new FlvReader(FILE_NAME);
+        final int[] times = new int[1000];
+        int count = 0;
+        while(reader.hasNext()) {
+            final RtmpMessage message = reader.next();
+            times[count++] = message.getHeader().getTime();
+        }
+        reader.close();
+        final int[] result = new int[count];
+        System.arraycopy(times, 0, result, 0, count);
+        return result;
+    }
+
+    @Test
+    public void testAppendContinuesTimestampsAndIndex() {
+        new File(FILE_PATH).mkdirs();
+        new File(FILE_NAME).delete();
+        writeFrames(new FlvWriter(0, FILE_NAME, true, 0, 0), 20);
+        writeFrames(new FlvWriter(0, FILE_NAME, true, 0, 0), 20);
+        final int[] times = readTimes();
+        assertEquals(40, times.length);
+        assertEquals(1900, times[19]);
+        assertEquals(2000, times[20]); // one frame after the join, not on top of it
+        assertEquals(3900, times[39]);
+        final FlvReader reader = new FlvReader(FILE_NAME);
+        final Map<String, Object> keyframes = (Map) reader.getMetadata().getMap(0).get("keyframes");
+        assertEquals(4, ((Object[]) keyframes.get("times")).length);
+        assertEquals(3.9, reader.getMetadata().getDouble("duration"), 0.001);
+        assertEquals(3000, reader.seek(3000));
+        reader.close();
+    }
+
+    @Test
+    public void testAppendAfterTornTag() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        new File(FILE_NAME).delete();
+        writeFrames(new FlvWriter(0, FILE_NAME, false, 0, 0), 10);
+        final RandomAccessFile raf = new RandomAccessFile(FILE_NAME, "rw");
+        raf.setLength(raf.length() - 6); // last tag loses its trailer and some data
+        raf.close();
+        writeFrames(new FlvWriter(0, FILE_NAME, true, 0, 0), 10);
+        final int[] times = readTimes();
+        assertEquals(19, times.length);
+        assertEquals(800, times[8]);
+        assertEquals(900, times[9]);
+        assertEquals(1800, times[18]);
+    }
+
+    @Test
+    public void testAppendRefusesNonFlvFile() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        final String fileName = FILE_PATH + "/not-flv.txt";
+        final RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+        raf.setLength(0);
+        raf.write("this is not an flv file at all".getBytes());
+        raf.close();
+        try {
+            new FlvWriter(0, fileName, true, 0, 0);
+            fail("expected append to a non flv file to fail");
+        } catch(RuntimeException e) {
+            // expected
+        }
+        assertEquals(30, new File(fileName).length());
+        assertNull(CommitWatermark.get(new File(fileName)));
+    }
+
+    @Test
+    public void testWatermarkCoversHeaderAndAppendPosition() throws Exception {
+        new File(FILE_PATH).mkdirs();
+        new File(FILE_NAME).delete();
+        final File file = new File(FILE_NAME);
+        FlvWriter writer = new FlvWriter(0, FILE_NAME, false, 4, 1024);
+        assertEquals(file.length(), CommitWatermark.get(file).getPosition());
+        assertTrue(file.length() > 13); // header and metadata slot
+        writeFrames(writer, 10);
+        assertNull(CommitWatermark.get(file));
+        final RandomAccessFile raf = new RandomAccessFile(FILE_NAME, "rw");
+        raf.setLength(raf.length() - 6);
+        raf.close();
+        writer = new FlvWriter(0, FILE_NAME, true, 4, 1024);
+        assertEquals(file.length(), CommitWatermark.get(file).getPosition()); // torn tag cut off
+        writeFrames(writer, 10);
+        assertEquals(19, readTimes().length);
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.flazr.rtmp;
+
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Video;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ChunkSchedulerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkSchedulerTest.class);
+
+    private static final int BYTES_PER_MILLI = 200;
+    private static final int VIDEO_SIZE = 100000;
+    private static final int AUDIO_SIZE = 100;
+
+    /** a slow link that puts BYTES_PER_MILLI on the wire every tick */
+    private static class Link extends ChunkScheduler {
+
+        private final LinkedList<ChannelBuffer> buffers = new LinkedList<ChannelBuffer>();
+        private final LinkedList<ChannelFuture> futures = new LinkedList<ChannelFuture>();
+        private final ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+
+        public Link(int quantum) {
+            super(quantum);
+        }
+
+        @Override
+        protected ChannelFuture write(ChannelBuffer out) {
+            final ChannelFuture future = new DefaultChannelFuture(null, false);
+            buffers.add(out);
+            futures.add(future);
+            return future;
+        }
+
+        public void tick() {
+            int bytes = BYTES_PER_MILLI;
+            while(bytes > 0 && !buffers.isEmpty()) {
+                final ChannelBuffer head = buffers.getFirst();
+                final int size = Math.min(bytes, head.readableBytes());
+                wire.writeBytes(head, size);
+                bytes -= size;
+                if(!head.readable()) {
+                    buffers.removeFirst();
+                    futures.removeFirst().setSuccess();
+                }
+            }
+        }
+
+    }
+
+    private static void add(Link link, RtmpMessage message) {
+        final RtmpHeader header = new RtmpHeader(message.getHeader());
+        final ChannelBuffer in = message.encode();
+        header.setSize(in.readableBytes());
+        if(header.isMedia()) {
+            header.setStreamId(1);
+        }
+        if(header.isAudio()) {
+            header.setChannelId(MessageType.AUDIO.getDefaultChannelId());
+        }
+        final int newChunkSize = header.isChunkSize() ? ((ChunkSize) message).getChunkSize() : 0;
+        link.add(header, in, new DefaultChannelFuture(null, false), newChunkSize);
+        link.schedule();
+    }
+
+    private static List<Long> run(final Link link) {
+        final List<Long> latencies = new ArrayList<Long>();
+        final long[] now = new long[1];
+        add(link, new ChunkSize(4096));
+        for(int time = 0; time < 2000 || link.getQueuedBytes() > 0; time++) {
+            now[0] = time;
+            if(time % 1000 == 0 && time < 2000) {
+                add(link, new Video(time, ChannelBuffers.wrappedBuffer(new byte[VIDEO_SIZE])));
+            }
+            if(time % 20 == 0 && time < 2000) {
+                final RtmpMessage audio = new Audio(time, ChannelBuffers.wrappedBuffer(new byte[AUDIO_SIZE]));
+                final RtmpHeader header = new RtmpHeader(audio.getHeader());
+                header.setStreamId(1);
+                header.setChannelId(MessageType.AUDIO.getDefaultChannelId());
+                header.setSize(AUDIO_SIZE);
+                final ChannelFuture future = new DefaultChannelFuture(null, false);
+                final long queuedAt = time;
+                future.addListener(new ChannelFutureListener() {
+                    @Override public void operationComplete(ChannelFuture cf) {
+                        latencies.add(now[0] - queuedAt);
+                    }
+                });
+                link.add(header, audio.encode(), future, 0);
+                link.schedule();
+            }
+            link.tick();
+        }
+        for(int i = 0; i < 1000; i++) {
+            link.tick();
+        }
+        return latencies;
+    }
+
+    private static long max(List<Long> values) {
+        long max = 0;
+        for(long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    @Test
+    public void testAudioJitterOnSlowLink() {
+        final List<Long> interleaved = run(new Link(4096));
+        final List<Long> whole = run(new Link(1024 * 1024));
+        logger.info("max audio latency interleaved: {} ms, whole messages: {} ms", max(interleaved), max(whole));
+        assertEquals(100, interleaved.size());
+        assertEquals(100, whole.size());
+        assertTrue(max(interleaved) < 100);
+        assertTrue(max(whole) > 400);
+    }
+
+    @Test
+    public void testInterleavedChunksDecode() {
+        final Link link = new Link(4096);
+        run(link);
+        final DecoderEmbedder<RtmpMessage> decoder = new DecoderEmbedder<RtmpMessage>(new RtmpDecoder());
+        decoder.offer(link.wire);
+        int audioCount = 0;
+        int audioTime = -20;
+        int videoCount = 0;
+        RtmpMessage message;
+        while((message = decoder.poll()) != null) {
+            final RtmpHeader header = message.getHeader();
+            if(header.getMessageType() == MessageType.AUDIO) {
+                assertEquals(AUDIO_SIZE, header.getSize());
+                assertEquals(audioTime + 20, header.getTime());
+                audioTime = header.getTime();
+                audioCount++;
+            } else if(header.getMessageType() == MessageType.VIDEO) {
+                assertEquals(VIDEO_SIZE, header.getSize());
+                videoCount++;
+            }
+        }
+        assertEquals(100, audioCount);
+        assertEquals(2, videoCount);
+    }
+
+}
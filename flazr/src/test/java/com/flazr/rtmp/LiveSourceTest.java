@@ -0,0 +1,183 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.util.Histogram;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class LiveSourceTest {
+
+    private static final byte[] VIDEO_CONFIG = new byte[]{0x17, 0, 0, 0, 0};
+    private static final byte[] AUDIO_CONFIG = new byte[]{(byte) 0xaf, 0, 0x12, 0x10};
+
+    private static List<RtmpMessage> media(final MockChannel mock) {
+        final List<RtmpMessage> media = new ArrayList<RtmpMessage>();
+        for(final Object written : mock.getWritten()) {
+            if(((RtmpMessage) written).getHeader().isMedia()) {
+                media.add((RtmpMessage) written);
+            }
+        }
+        return media;
+    }
+
+    private static RtmpMessage lastWritten(final MockChannel mock) {
+        final List<Object> written = mock.getWritten();
+        return (RtmpMessage) written.get(written.size() - 1);
+    }
+
+    private static byte[] videoFrame(final boolean keyframe, final int sequence) {
+        return new byte[]{(byte) (keyframe ? 0x17 : 0x27), 1, 0, 0, 0, (byte) sequence};
+    }
+
+    private static byte[] audioFrame() {
+        return new byte[]{(byte) 0xaf, 1, 0x21, 0x00};
+    }
+
+    @Test
+    public void testFramesGoStraightOutWhenChannelKeepsUp() {
+        final MockChannel mock = new MockChannel();
+        mock.setCompleteLater(true);
+        final LiveSource source = new LiveSource();
+        final Histogram latency = new Histogram();
+        source.setLatencyHistogram(latency);
+        source.pushVideo(1000, VIDEO_CONFIG, true);
+        source.pushAudio(1000, AUDIO_CONFIG);
+        source.start(mock, 1, new ChunkSize(4096));
+        for(int i = 0; i < 30; i++) {
+            source.pushVideo(1000 + i * 33, videoFrame(i % 10 == 0, i), i % 10 == 0);
+            source.pushAudio(1000 + i * 33, audioFrame());
+        }
+        assertEquals(0, latency.getCount()); // recorded when the write completes
+        mock.completePending();
+        assertTrue(mock.getWritten().get(0) instanceof ChunkSize);
+        final List<RtmpMessage> media = media(mock);
+        assertEquals(62, media.size());
+        assertEquals(0, media.get(0).getHeader().getTime()); // rebased to the first push
+        assertEquals(1, media.get(0).getHeader().getStreamId());
+        assertEquals(60, source.getWrittenCount());
+        assertEquals(0, source.getDroppedCount());
+        assertEquals(0, source.getQueuedCount());
+        assertEquals(29 * 33, source.getTimePosition());
+        assertEquals(60, latency.getCount());
+    }
+
+    @Test
+    public void testOldestFramesDroppedAndVideoResumesAtKeyframe() {
+        final MockChannel mock = new MockChannel();
+        final LiveSource source = new LiveSource(10, 60000);
+        source.start(mock, 1);
+        mock.setWritable(false);
+        for(int i = 0; i < 25; i++) {
+            source.pushVideo(i * 33, videoFrame(i == 0 || i == 20, i), i == 0 || i == 20);
+            assertTrue(source.getQueuedCount() <= 10);
+        }
+        assertEquals(0, source.getWrittenCount());
+        assertEquals(15, source.getDroppedCount());
+        mock.setWritable(true);
+        source.drain();
+        final List<RtmpMessage> media = media(mock);
+        // frames 15 - 19 only decode after the dropped keyframe, so also go
+        assertEquals(5, media.size());
+        assertEquals(20 * 33, media.get(0).getHeader().getTime());
+        assertEquals(20, source.getDroppedCount());
+    }
+
+    @Test
+    public void testStaleFramesDroppedWhenChannelWasBusy() throws Exception {
+        final MockChannel mock = new MockChannel();
+        final LiveSource source = new LiveSource(100, 50);
+        source.start(mock, 1);
+        mock.setWritable(false);
+        for(int i = 0; i < 10; i++) {
+            source.pushVideo(i * 33, videoFrame(i == 0, i), i == 0);
+            source.pushAudio(i * 33, audioFrame());
+        }
+        Thread.sleep(100);
+        mock.setWritable(true);
+        source.pushVideo(10 * 33, videoFrame(true, 10), true);
+        final List<RtmpMessage> media = media(mock);
+        assertEquals(1, media.size());
+        assertEquals(10 * 33, media.get(0).getHeader().getTime());
+        assertEquals(20, source.getDroppedCount());
+    }
+
+    @Test
+    public void testConfigIsResentOnStartAndNeverDropped() {
+        final MockChannel mock = new MockChannel();
+        final LiveSource source = new LiveSource(2, 60000);
+        source.pushVideo(0, VIDEO_CONFIG, true);
+        for(int i = 0; i < 10; i++) { // nobody listening yet
+            source.pushVideo(i * 33, videoFrame(i % 5 == 0, i), i % 5 == 0);
+        }
+        source.start(mock, 1);
+        final List<RtmpMessage> media = media(mock);
+        assertEquals(1, media.size()); // the two frames left are not keyframes
+        assertArrayEquals(VIDEO_CONFIG, bytes(media.get(0)));
+        source.pushVideo(10 * 33, videoFrame(true, 10), true);
+        assertEquals(2, media(mock).size());
+    }
+
+    @Test
+    public void testConcurrentProducersKeepOrderPerTrack() throws Exception {
+        final MockChannel mock = new MockChannel();
+        final LiveSource source = new LiveSource(64, 60000);
+        source.start(mock, 1);
+        final int frames = 2000;
+        final Thread video = new Thread() {
+            @Override public void run() {
+                for(int i = 0; i < frames; i++) {
+                    source.pushVideo(i, videoFrame(true, i), true);
+                }
+            }
+        };
+        final Thread audio = new Thread() {
+            @Override public void run() {
+                for(int i = 0; i < frames; i++) {
+                    source.pushAudio(i, audioFrame());
+                }
+            }
+        };
+        video.start();
+        audio.start();
+        video.join();
+        audio.join();
+        final List<RtmpMessage> media = media(mock);
+        assertEquals(frames * 2, source.getWrittenCount() + source.getDroppedCount());
+        assertEquals(source.getWrittenCount(), media.size());
+        int lastVideo = -1;
+        int lastAudio = -1;
+        for(final RtmpMessage message : media) {
+            final int time = message.getHeader().getTime();
+            if(message.getHeader().isVideo()) {
+                assertTrue(time > lastVideo);
+                lastVideo = time;
+            } else {
+                assertTrue(time > lastAudio);
+                lastAudio = time;
+            }
+        }
+    }
+
+    @Test
+    public void testCloseUnpublishes() {
+        final MockChannel mock = new MockChannel();
+        final LiveSource source = new LiveSource();
+        source.start(mock, 1);
+        source.pushVideo(0, videoFrame(true, 0), true);
+        source.close();
+        source.pushVideo(33, videoFrame(false, 1), false);
+        assertEquals(1, media(mock).size());
+        assertFalse(lastWritten(mock).getHeader().isMedia());
+    }
+
+    private static byte[] bytes(final RtmpMessage message) {
+        final org.jboss.netty.buffer.ChannelBuffer buffer = message.encode();
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.flazr.rtmp;
+
+import com.flazr.io.MediaGenerator;
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.io.flv.FlvReader;
+import com.flazr.io.flv.FlvWriter;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Video;
+import com.flazr.util.Utils;
+import java.io.File;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MemoryReaderTest {
+
+    private static final String FILE_PATH = "target/temp/memory-reader.flv";
+
+    @BeforeClass
+    public static void writeFile() {
+        new File(FILE_PATH).getParentFile().mkdirs();
+        final MediaGenerator generator = new MediaGenerator(20, 500);
+        generator.writeFlv(FILE_PATH);
+    }
+
+    @Test
+    public void testSameMessagesAsFile() {
+        final MemoryReader memory = MemoryReader.load(FILE_PATH);
+        final FlvReader file = new FlvReader(FILE_PATH);
+        assertEquals(file.getStartMessages().length, memory.getStartMessages().length);
+        int count = 0;
+        long bytes = 0;
+        while(file.hasNext()) {
+            final RtmpMessage expected = file.next();
+            assertTrue(memory.hasNext());
+            final RtmpMessage actual = memory.next();
+            assertEquals(expected.getHeader().getMessageType(), actual.getHeader().getMessageType());
+            assertEquals(expected.getHeader().getTime(), actual.getHeader().getTime());
+            assertEquals(expected.encode(), actual.encode());
+            bytes += actual.getHeader().getSize();
+            count++;
+        }
+        assertFalse(memory.hasNext());
+        assertEquals(count, memory.getMessageCount());
+        assertEquals(bytes + 15L * count, memory.getMemorySize()); // as flv tags
+        file.close();
+    }
+
+    @Test
+    public void testSharedReadersAreIndependent() {
+        final MemoryReader shared = MemoryReader.load(FILE_PATH);
+        final MemoryReader first = new MemoryReader(shared);
+        final MemoryReader second = new MemoryReader(shared);
+        final RtmpMessage message = first.next();
+        message.getHeader().setTime(123456);
+        message.encode().skipBytes(1);
+        first.getMetadata().setDuration(99);
+        final RtmpMessage other = second.next();
+        assertEquals(0, other.getHeader().getTime());
+        assertEquals(other.getHeader().getSize(), other.encode().readableBytes());
+        assertFalse(second.getMetadata().getDuration() == 99);
+    }
+
+    @Test
+    public void testSeekToKeyFrame() {
+        final MemoryReader reader = MemoryReader.load(FILE_PATH);
+        final long time = reader.seek(10500);
+        assertTrue(time <= 10500);
+        assertTrue(time > 5000);
+        final RtmpMessage message = reader.next();
+        assertTrue(message.getHeader().isVideo());
+        assertTrue(FlvAtom.isKeyFrame(message.encode()));
+        assertEquals(time, message.getHeader().getTime());
+        assertEquals(0, reader.seek(0));
+    }
+
+    @Test
+    public void testLooped() {
+        final MemoryReader shared = MemoryReader.load(FILE_PATH);
+        final LoopedReader reader = new LoopedReader(new MemoryReader(shared), 3);
+        int count = 0;
+        long last = 0;
+        while(reader.hasNext()) {
+            final long time = reader.next().getHeader().getTime();
+            assertTrue(time >= last - 100); // audio / video interleaving
+            last = Math.max(last, time);
+            count++;
+        }
+        assertEquals(shared.getMessageCount() * 3, count);
+        assertTrue(last > 55000);
+    }
+
+    @Test
+    public void testLoopForeverRebasesTimestamps() {
+        final MemoryReader reader = new MemoryReader(MemoryReader.load(FILE_PATH));
+        reader.setLoopCount(0);
+        final int duration = reader.getLoopDuration();
+        assertTrue(duration > 19000 && duration < 21000);
+        int lastVideo = -1;
+        for(int i = 0; i < reader.getMessageCount() * 5; i++) {
+            assertTrue(reader.hasNext());
+            final RtmpMessage message = reader.next();
+            if(message.getHeader().isVideo()) {
+                assertTrue(message.getHeader().getTime() >= lastVideo);
+                lastVideo = message.getHeader().getTime();
+            }
+        }
+        assertTrue(reader.hasNext());
+        assertTrue(lastVideo > duration * 4);
+        // seek into the third pass
+        final long time = reader.seek(duration * 2 + 10500);
+        assertTrue(time > duration * 2 + 5000 && time <= duration * 2 + 10500);
+        assertEquals(time, reader.next().getHeader().getTime());
+    }
+
+    @Test
+    public void testAggregateIsSliceOfTags() {
+        final MemoryReader reader = MemoryReader.load(FILE_PATH, true);
+        final FlvReader file = new FlvReader(FILE_PATH);
+        reader.setAggregateDuration(1000);
+        file.setAggregateDuration(1000);
+        for(int i = 0; i < 5; i++) {
+            final RtmpMessage expected = file.next();
+            final RtmpMessage actual = reader.next();
+            assertEquals(MessageType.AGGREGATE, actual.getHeader().getMessageType());
+            assertEquals(expected.getHeader().getTime(), actual.getHeader().getTime());
+            assertEquals(expected.getHeader().getSize(), actual.getHeader().getSize());
+            assertEquals(expected.encode(), actual.encode());
+        }
+        reader.setAggregateSizeLimit(1);
+        final RtmpMessage single = reader.next(); // at least one tag
+        assertEquals(file.next().getHeader().getTime() >= 0, single.getHeader().getSize() > 0);
+        file.close();
+    }
+
+    @Test
+    public void testTimestampsOfTwoPowerTwentyThreeAndAbove() {
+        final String fileName = "target/temp/memory-reader-late.flv";
+        final FlvWriter writer = new FlvWriter(fileName);
+        final int base = (1 << 23) - 1000; // 24 bit medium turns negative after 2^23
+        for(int i = 0; i < 30; i++) {
+            final Video video = new Video(Utils.fromHex(i % 5 == 0 ? "17000000" : "27000000"));
+            video.getHeader().setTime(base + i * 100);
+            writer.write(video);
+        }
+        writer.close();
+        final MemoryReader reader = MemoryReader.load(fileName);
+        for(int i = 0; i < 30; i++) {
+            assertEquals(base + i * 100, reader.next().getHeader().getTime());
+        }
+        assertEquals(base + 1500, reader.seek(base + 1700));
+        assertEquals(base + 1500, reader.next().getHeader().getTime());
+        assertTrue(base + 1500 > 1 << 23);
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.flazr.rtmp;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * stands in for the network in tests, writes go through a real pipeline and
+ * end up here instead of a socket, they complete at once or when told to
+ */
+public class MockChannel extends AbstractChannel {
+
+    private static class Sink extends AbstractChannelSink {
+
+        @Override
+        public void eventSunk(final ChannelPipeline pipeline, final ChannelEvent e) {
+            if(e instanceof MessageEvent) {
+                ((MockChannel) e.getChannel()).written((MessageEvent) e);
+            }
+        }
+
+    }
+
+    private final ChannelConfig config = new DefaultChannelConfig();
+    private final List<Object> written = Collections.synchronizedList(new ArrayList<Object>());
+    private final List<ChannelFuture> pending = Collections.synchronizedList(new ArrayList<ChannelFuture>());
+    private volatile boolean writable = true;
+    private volatile boolean completeLater;
+    private volatile int writeCount;
+
+    public MockChannel() {
+        this(Channels.pipeline());
+    }
+
+    /**
+     * @param pipeline e.g. with an encoder, what reaches the end of it is recorded
+     */
+    public MockChannel(final ChannelPipeline pipeline) {
+        super(null, null, pipeline, new Sink());
+    }
+
+    private void written(final MessageEvent e) {
+        writeCount++;
+        written.add(e.getMessage());
+        if(completeLater) {
+            pending.add(e.getFuture());
+        } else {
+            e.getFuture().setSuccess();
+        }
+    }
+
+    /**
+     * @param completeLater if true writes stay pending until {@link #completePending()}
+     */
+    public void setCompleteLater(final boolean completeLater) {
+        this.completeLater = completeLater;
+    }
+
+    public void completePending() {
+        final List<ChannelFuture> futures;
+        synchronized(pending) {
+            futures = new ArrayList<ChannelFuture>(pending);
+            pending.clear();
+        }
+        for(final ChannelFuture future : futures) {
+            future.setSuccess();
+        }
+    }
+
+    public void setWritable(final boolean writable) {
+        this.writable = writable;
+    }
+
+    /**
+     * @return everything written so far, as it left the pipeline
+     */
+    public List<Object> getWritten() {
+        synchronized(written) {
+            return new ArrayList<Object>(written);
+        }
+    }
+
+    public void clearWritten() {
+        written.clear();
+    }
+
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+}
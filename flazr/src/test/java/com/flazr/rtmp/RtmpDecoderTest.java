@@ -0,0 +1,157 @@
+package com.flazr.rtmp;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.message.Abort;
+import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.Command;
+import com.flazr.rtmp.message.DiscardedMedia;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Video;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RtmpDecoderTest {
+
+    /** the header and first 128 byte chunk of a video message */
+    private static ChannelBuffer firstChunk(int channelId, int size) {
+        final RtmpHeader header = new RtmpHeader(MessageType.VIDEO, 0, size);
+        header.setChannelId(channelId);
+        header.setStreamId(1);
+        final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        header.encode(out);
+        out.writeBytes(new byte[Math.min(128, size)]);
+        return out;
+    }
+
+    private static class InspectableDecoder extends RtmpDecoder {
+
+        InspectableDecoder(int maxMessageSize, int reassemblyBudget) {
+            super(maxMessageSize, reassemblyBudget);
+        }
+
+        int getBufferedBytes() {
+            return actualReadableBytes();
+        }
+
+    }
+
+    private static ChannelBuffer abort(int channelId) {
+        return new RtmpEncoder().encode(new Abort(channelId));
+    }
+
+    @Test
+    public void testMaxMessageSize() {
+        final long rejected = RtmpDecoder.getRejectedCount();
+        final InspectableDecoder decoder = new InspectableDecoder(1000, 100000);
+        final DecoderEmbedder<RtmpMessage> embedder = new DecoderEmbedder<RtmpMessage>(decoder);
+        embedder.offer(firstChunk(7, 1000));
+        try {
+            embedder.offer(firstChunk(8, 1001));
+            fail("oversized message accepted");
+        } catch(CodecEmbedderException e) {
+            assertTrue(e.getCause().getMessage().contains("1001"));
+        }
+        assertEquals(rejected + 1, RtmpDecoder.getRejectedCount());
+        embedder.offer(firstChunk(9, 100)); // ignored until the channel closes
+        assertNull(embedder.poll());
+        assertEquals(0, decoder.getBufferedBytes()); // discarded, not piling up
+        embedder.finish();
+    }
+
+    @Test
+    public void testReassemblyBudget() {
+        final RtmpDecoder decoder = new RtmpDecoder(1000000, 128 * 10);
+        final DecoderEmbedder<RtmpMessage> embedder = new DecoderEmbedder<RtmpMessage>(decoder);
+        for(int i = 0; i < 10; i++) {
+            embedder.offer(firstChunk(10 + i, 1000000));
+        }
+        assertEquals(128 * 10, decoder.getReassemblyBytes());
+        try {
+            embedder.offer(firstChunk(20, 1000000));
+            fail("budget exceeded");
+        } catch(CodecEmbedderException e) {
+            assertTrue(e.getCause().getMessage().contains("budget"));
+        }
+        assertEquals(0, decoder.getReassemblyBytes());
+        embedder.finish();
+    }
+
+    @Test
+    public void testAbortReleasesIncompleteMessage() {
+        final long total = RtmpDecoder.getTotalReassemblyBytes();
+        final RtmpDecoder decoder = new RtmpDecoder();
+        final DecoderEmbedder<RtmpMessage> embedder = new DecoderEmbedder<RtmpMessage>(decoder);
+        embedder.offer(firstChunk(7, 100000));
+        assertEquals(128, decoder.getReassemblyBytes());
+        assertEquals(total + 128, RtmpDecoder.getTotalReassemblyBytes());
+        embedder.offer(abort(7));
+        assertEquals(MessageType.ABORT, embedder.poll().getHeader().getMessageType());
+        assertEquals(0, decoder.getReassemblyBytes());
+        assertEquals(total, RtmpDecoder.getTotalReassemblyBytes());
+        // a new message can start on the aborted chunk stream
+        embedder.offer(firstChunk(7, 100));
+        final RtmpMessage message = embedder.poll();
+        assertEquals(MessageType.VIDEO, message.getHeader().getMessageType());
+        assertEquals(100, message.getHeader().getSize());
+        embedder.finish();
+    }
+
+    @Test
+    public void testDiscardMedia() {
+        final RtmpEncoder encoder = new RtmpEncoder();
+        final ChannelBuffer in = ChannelBuffers.dynamicBuffer();
+        in.writeBytes(encoder.encode(new Video(40, ChannelBuffers.wrappedBuffer(new byte[1000]))));
+        in.writeBytes(encoder.encode(Command.createStream()));
+        in.writeBytes(encoder.encode(new Video(80, ChannelBuffers.wrappedBuffer(new byte[300]))));
+        final RtmpDecoder decoder = new RtmpDecoder();
+        decoder.setDiscardMedia(true);
+        assertTrue(decoder.isDiscardMedia());
+        final DecoderEmbedder<RtmpMessage> embedder = new DecoderEmbedder<RtmpMessage>(decoder);
+        // one byte at a time to exercise skipping across replays
+        while(in.readable()) {
+            embedder.offer(in.readBytes(1));
+        }
+        RtmpMessage message = embedder.poll();
+        assertTrue(message instanceof DiscardedMedia);
+        assertEquals(MessageType.VIDEO, message.getHeader().getMessageType());
+        assertEquals(40, message.getHeader().getTime());
+        assertEquals(1000, message.getHeader().getSize());
+        message = embedder.poll();
+        assertTrue(message instanceof Command);
+        assertEquals("createStream", ((Command) message).getName());
+        message = embedder.poll();
+        assertTrue(message instanceof DiscardedMedia);
+        assertEquals(80, message.getHeader().getTime());
+        assertEquals(300, message.getHeader().getSize());
+        assertNull(embedder.poll());
+        assertEquals(0, decoder.getReassemblyBytes());
+        embedder.finish();
+    }
+
+    @Test
+    public void testDiscardedAggregateEndTime() {
+        // 125 byte tags, so most tag headers straddle the 128 byte chunks
+        final ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        for(int i = 0; i < 5; i++) {
+            payload.writeBytes(new FlvAtom(MessageType.VIDEO, 1000 + i * 40,
+                    ChannelBuffers.wrappedBuffer(new byte[110])).write());
+        }
+        final RtmpDecoder decoder = new RtmpDecoder();
+        decoder.setDiscardMedia(true);
+        final DecoderEmbedder<RtmpMessage> embedder = new DecoderEmbedder<RtmpMessage>(decoder);
+        final ChannelBuffer in = new RtmpEncoder().encode(new Aggregate(1000, payload));
+        while(in.readable()) {
+            embedder.offer(in.readBytes(1));
+        }
+        final DiscardedMedia message = (DiscardedMedia) embedder.poll();
+        assertEquals(MessageType.AGGREGATE, message.getHeader().getMessageType());
+        assertEquals(1000, message.getHeader().getTime());
+        assertEquals(1160, message.getEndTime());
+        embedder.finish();
+    }
+
+}
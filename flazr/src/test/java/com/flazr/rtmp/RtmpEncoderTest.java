@@ -0,0 +1,106 @@
+package com.flazr.rtmp;
+
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.ChunkSize;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Video;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RtmpEncoderTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(RtmpEncoderTest.class);
+
+    private static final int SECONDS = 20;
+
+    private static RtmpMessage audio(int time, int size) {
+        final RtmpMessage message = new Audio(time, ChannelBuffers.wrappedBuffer(new byte[size]));
+        message.getHeader().setStreamId(1);
+        return message;
+    }
+
+    private static RtmpMessage video(int time, int size) {
+        final RtmpMessage message = new Video(time, ChannelBuffers.wrappedBuffer(new byte[size]));
+        message.getHeader().setStreamId(1);
+        return message;
+    }
+
+    /** aac at 44.1 khz (1024 samples a frame) and 30 fps h.264 with a keyframe every 2 seconds */
+    private static List<RtmpMessage> aacAndH264() {
+        final Random random = new Random(42);
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        int audioFrame = 0;
+        for(int videoFrame = 0; videoFrame < SECONDS * 30; videoFrame++) {
+            final int videoTime = videoFrame * 1000 / 30;
+            while(audioFrame * 1024 * 1000 / 44100 <= videoTime) {
+                messages.add(audio(audioFrame * 1024 * 1000 / 44100, 360 + random.nextInt(40)));
+                audioFrame++;
+            }
+            final int videoSize = videoFrame % 60 == 0 ? 60000 : 4000 + random.nextInt(4000);
+            messages.add(video(videoTime, videoSize));
+        }
+        return messages;
+    }
+
+    private static List<RtmpHeader> encodeAndDecode(RtmpEncoder encoder, List<RtmpMessage> messages) {
+        final DecoderEmbedder<RtmpMessage> decoder = new DecoderEmbedder<RtmpMessage>(new RtmpDecoder());
+        final List<RtmpHeader> decoded = new ArrayList<RtmpHeader>();
+        decoder.offer(encoder.encode(new ChunkSize(4096)));
+        for(RtmpMessage message : messages) {
+            decoder.offer(encoder.encode(message));
+            RtmpMessage received;
+            while((received = decoder.poll()) != null) {
+                if(received.getHeader().isMedia()) {
+                    decoded.add(received.getHeader());
+                }
+            }
+        }
+        return decoded;
+    }
+
+    @Test
+    public void testSteadyAudioUsesTinyHeaders() {
+        final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+        for(int i = 0; i < 100; i++) {
+            messages.add(audio(i * 20, 160));
+        }
+        final RtmpEncoder encoder = new RtmpEncoder();
+        final List<RtmpHeader> decoded = encodeAndDecode(encoder, messages);
+        // the first needs a large header and the second a delta
+        assertEquals(98, encoder.getHeaderTypeCount(RtmpHeader.Type.TINY));
+        assertEquals(100, decoded.size());
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i * 20, decoded.get(i).getTime());
+            assertEquals(MessageType.AUDIO, decoded.get(i).getMessageType());
+            assertEquals(160, decoded.get(i).getSize());
+        }
+    }
+
+    @Test
+    public void testHeaderBytesForAacAndH264() {
+        final List<RtmpMessage> messages = aacAndH264();
+        final RtmpEncoder encoder = new RtmpEncoder();
+        final List<RtmpHeader> decoded = encodeAndDecode(encoder, messages);
+        assertEquals(messages.size(), decoded.size());
+        for(int i = 0; i < messages.size(); i++) {
+            final RtmpHeader expected = messages.get(i).getHeader();
+            final RtmpHeader actual = decoded.get(i);
+            assertEquals(expected.getMessageType(), actual.getMessageType());
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getSize(), actual.getSize());
+        }
+        final long perSecond = encoder.getHeaderBytes() / SECONDS;
+        logger.info("aac + h.264 header bytes per second: {}, {}", perSecond, encoder.getHeaderStats());
+        assertTrue(encoder.getHeaderTypeCount(RtmpHeader.Type.TINY) > 0);
+        assertEquals(2, encoder.getHeaderTypeCount(RtmpHeader.Type.LARGE) - 1); // plus chunk size
+        assertTrue(perSecond < 1000);
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.flazr.rtmp;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.message.Audio;
+import com.flazr.rtmp.message.Metadata;
+import com.flazr.rtmp.message.MetadataAmf0;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.junit.Test;
+
+public class RtmpPublisherTest {
+
+    private static final int FRAMES = 50;
+
+    private static class AudioReader implements RtmpReader {
+
+        private int cursor;
+
+        @Override public Metadata getMetadata() {
+            return new MetadataAmf0("onMetaData");
+        }
+
+        @Override public RtmpMessage[] getStartMessages() {
+            return new RtmpMessage[0];
+        }
+
+        @Override public void setAggregateDuration(int targetDuration) {
+        }
+
+        @Override public void setAggregateSizeLimit(int maxBytes) {
+        }
+
+        @Override public long getTimePosition() {
+            return cursor * 100;
+        }
+
+        @Override public long seek(long timePosition) {
+            cursor = (int) (timePosition / 100);
+            return getTimePosition();
+        }
+
+        @Override public void close() {
+        }
+
+        @Override public boolean hasNext() {
+            return cursor < FRAMES;
+        }
+
+        @Override public RtmpMessage next() {
+            final Audio audio = new Audio(new byte[10]);
+            audio.getHeader().setTime(cursor++ * 100);
+            return audio;
+        }
+
+    }
+
+    @Test
+    public void testFastStartSendsBufferUnpaced() throws Exception {
+        final int oldFastStart = RtmpConfig.SERVER_FAST_START_SECONDS;
+        RtmpConfig.SERVER_FAST_START_SECONDS = -1; // as much as the client buffer
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final RtmpPublisher publisher = new RtmpPublisher(new AudioReader(), 1, 3000, false, false) {
+            @Override protected RtmpMessage[] getStopMessages(long timePosition) {
+                stopped.countDown();
+                return new RtmpMessage[0];
+            }
+        };
+        try {
+            final ChannelPipeline pipeline = Channels.pipeline();
+            pipeline.addLast("handler", new SimpleChannelUpstreamHandler() {
+                @Override public void messageReceived(ChannelHandlerContext ctx, MessageEvent me) {
+                    publisher.handle(me);
+                }
+                @Override public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+                    // not connected, writes fail but still complete
+                }
+            });
+            final Channel channel = new DefaultLocalClientChannelFactory().newChannel(pipeline);
+            publisher.start(channel, 0, new RtmpMessage[0]);
+            final long start = System.currentTimeMillis();
+            while(publisher.getStartupFillTime() == -1 && System.currentTimeMillis() - start < 2000) {
+                Thread.sleep(10);
+            }
+            assertTrue(publisher.getTimeToFirstFrame() >= 0);
+            assertTrue(publisher.getStartupFillTime() >= 0);
+            assertTrue(publisher.getStartupFillTime() < 1000); // 3 seconds of media
+            assertFalse(stopped.await(100, TimeUnit.MILLISECONDS)); // paced after the burst
+            assertTrue(publisher.getThroughput() > 0);
+            assertTrue(publisher.getThroughput() <= 10 * 1000); // 10 bytes in at least 1 ms
+            assertEquals(RtmpConfig.SERVER_AGGREGATE_MIN_SIZE, publisher.getAggregateSizeLimit());
+            // 10 bytes per 100 ms of media, the whole stream fits in one aggregate
+            assertTrue(publisher.getAggregateDuration() > FRAMES * 100);
+        } finally {
+            publisher.close();
+            RtmpConfig.SERVER_FAST_START_SECONDS = oldFastStart;
+        }
+    }
+
+}
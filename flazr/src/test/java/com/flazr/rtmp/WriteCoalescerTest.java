@@ -0,0 +1,152 @@
+package com.flazr.rtmp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class WriteCoalescerTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCoalescerTest.class);
+
+    private static final int SUBSCRIBERS = 20;
+    private static final int TICKS = 500;
+    private static final int BYTES_PER_TICK = 4000;
+
+    /** a subscriber socket that puts BYTES_PER_TICK on the wire every tick */
+    private static class Link extends WriteCoalescer {
+
+        private final Channel channel = new DefaultLocalClientChannelFactory().newChannel(Channels.pipeline());
+        private final LinkedList<ChannelBuffer> buffers = new LinkedList<ChannelBuffer>();
+        private final LinkedList<ChannelFuture> futures = new LinkedList<ChannelFuture>();
+        private final ChannelBuffer wire = ChannelBuffers.dynamicBuffer();
+        private int completed;
+        private int nextSequence;
+
+        public Link() {
+            super(16384);
+        }
+
+        @Override
+        protected void write(ChannelHandlerContext ctx, ChannelFuture future, ChannelBuffer out) {
+            buffers.add(out);
+            futures.add(future);
+        }
+
+        public void send(int size) {
+            final ChannelBuffer buffer = ChannelBuffers.buffer(size);
+            while(buffer.writable()) {
+                buffer.writeByte((byte) nextSequence++);
+            }
+            final ChannelFuture future = Channels.future(channel);
+            future.addListener(new ChannelFutureListener() {
+                @Override public void operationComplete(ChannelFuture cf) {
+                    assertTrue(cf.isSuccess());
+                    completed++;
+                }
+            });
+            writeRequested(null, new DownstreamMessageEvent(channel, future, buffer, null));
+        }
+
+        public void tick() {
+            int bytes = BYTES_PER_TICK;
+            while(bytes > 0 && !buffers.isEmpty()) {
+                final ChannelBuffer head = buffers.getFirst();
+                final int size = Math.min(bytes, head.readableBytes());
+                wire.writeBytes(head, size);
+                bytes -= size;
+                if(!head.readable()) {
+                    buffers.removeFirst();
+                    futures.removeFirst().setSuccess();
+                }
+            }
+        }
+
+    }
+
+    private static List<Link> fanOut(boolean turns) {
+        final List<Link> links = new ArrayList<Link>();
+        for(int i = 0; i < SUBSCRIBERS; i++) {
+            links.add(new Link());
+        }
+        for(int tick = 0; tick < TICKS; tick++) {
+            for(Link link : links) {
+                if(turns) {
+                    link.beginTurn();
+                }
+                link.send(200); // audio
+                link.send(3000); // video
+                link.send(200); // audio
+                if(turns) {
+                    link.endTurn();
+                }
+            }
+            for(Link link : links) {
+                link.tick();
+            }
+        }
+        for(int i = 0; i < 100; i++) {
+            for(Link link : links) {
+                link.tick();
+            }
+        }
+        return links;
+    }
+
+    private static void assertDelivered(Link link) {
+        assertEquals(TICKS * 3, link.getMessageCount());
+        assertEquals(TICKS * 3, link.completed);
+        assertEquals(TICKS * 3400, link.wire.readableBytes());
+        for(int i = 0; i < TICKS * 3400; i++) {
+            assertEquals((byte) i, link.wire.getByte(i));
+        }
+    }
+
+    private static long writes(List<Link> links) {
+        long writes = 0;
+        for(Link link : links) {
+            assertDelivered(link);
+            writes += link.getWriteCount();
+        }
+        return writes;
+    }
+
+    @Test
+    public void testFanOutWriteCounts() {
+        final long messages = SUBSCRIBERS * TICKS * 3;
+        final long busy = writes(fanOut(false));
+        final long batched = writes(fanOut(true));
+        // with 20 ms ticks, writes per second is writes / (TICKS / 50)
+        logger.info("fan-out to {} subscribers, {} messages: {} socket writes while busy, {} with turns",
+                new Object[]{SUBSCRIBERS, messages, busy, batched});
+        assertTrue(busy < messages);
+        assertTrue(batched <= messages / 3);
+    }
+
+    @Test
+    public void testIdleLinkWritesImmediately() {
+        final Link link = new Link();
+        link.send(100);
+        assertEquals(1, link.getWriteCount());
+        link.send(100); // first still in flight
+        assertEquals(1, link.getWriteCount());
+        link.tick();
+        assertEquals(2, link.getWriteCount());
+        link.tick();
+        assertEquals(2, link.completed);
+        assertEquals(200, link.wire.readableBytes());
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.flazr.rtmp.client;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.message.Aggregate;
+import com.flazr.rtmp.message.DiscardedMedia;
+import com.flazr.rtmp.message.MessageType;
+import com.flazr.rtmp.message.Video;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class LoadStatsTest {
+
+    private static RtmpMessage video(int time) {
+        return new Video(time, ChannelBuffers.wrappedBuffer(new byte[1000]));
+    }
+
+    /** one second of video in 40 ms frames starting at the given time */
+    private static Aggregate aggregate(int time) {
+        final ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        for(int i = 0; i < 26; i++) {
+            payload.writeBytes(new FlvAtom(MessageType.VIDEO, time + i * 40,
+                    ChannelBuffers.wrappedBuffer(new byte[100])).write());
+        }
+        return new Aggregate(time, payload);
+    }
+
+    @Test
+    public void testSessionWithoutStall() {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        for(int i = 0; i < 10; i++) {
+            session.media(video(i * 1000)); // far ahead of real time
+        }
+        session.closed();
+        session.closed();
+        assertEquals(0, session.getStalls());
+        assertEquals(1, stats.getConnected());
+        assertEquals(1, stats.getClosed());
+        assertEquals(10000, stats.getBytes());
+        assertEquals(1, stats.getFirstVideoTime().getCount());
+        assertEquals(0, stats.getFirstAudioTime().getCount());
+        assertEquals(0, stats.getStallCount().getMax());
+    }
+
+    @Test
+    public void testSessionStallsWhenMediaArrivesLate() throws Exception {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(100);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        session.media(video(0));
+        session.media(video(100)); // buffer full, playback starts
+        Thread.sleep(300); // only 100 ms of media buffered
+        session.media(video(200));
+        assertEquals(1, session.getStalls());
+        assertTrue(session.getStalledTime() >= 150);
+        session.closed();
+        assertEquals(1, stats.getStallCount().getMax());
+        assertTrue(stats.getReport().contains("stalls"));
+    }
+
+    @Test
+    public void testJitterBelowThresholdIsNotAStall() throws Exception {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        session.media(video(0)); // playback starts at once
+        Thread.sleep(LoadStats.STALL_THRESHOLD / 2);
+        session.media(video(10));
+        assertEquals(0, session.getStalls());
+    }
+
+    @Test
+    public void testSessionWithoutMediaNotCountedForQuality() {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        session.closed();
+        assertEquals(1, stats.getClosed());
+        assertEquals(0, stats.getStallCount().getCount());
+    }
+
+    @Test
+    public void testFailedConnectionNotCountedForQuality() {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        stats.connectFailed();
+        session.closed();
+        assertEquals(1, stats.getAttempted());
+        assertEquals(1, stats.getFailed());
+        assertEquals(0, stats.getConnected());
+        assertEquals(0, stats.getStallCount().getCount());
+    }
+
+    @Test
+    public void testAggregateTimedByLastSubTag() throws Exception {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        final Aggregate first = aggregate(0);
+        assertEquals(1000, first.getEndTime());
+        session.media(first); // playback starts with a second buffered
+        Thread.sleep(300); // a stall if only the header time counted
+        session.media(aggregate(1040));
+        assertEquals(0, session.getStalls());
+    }
+
+    @Test
+    public void testDiscardedAggregateTimedByLastSubTag() throws Exception {
+        LoadStats stats = new LoadStats();
+        LoadStats.Session session = stats.newSession(0);
+        session.opened();
+        session.socketConnected();
+        session.handshakeDone();
+        final RtmpHeader header = new RtmpHeader(MessageType.AGGREGATE, 0, 3640);
+        session.media(new DiscardedMedia(header, 1000));
+        Thread.sleep(300);
+        session.media(new DiscardedMedia(new RtmpHeader(MessageType.AGGREGATE, 1040, 3640), 2040));
+        assertEquals(0, session.getStalls());
+        session.closed();
+        assertEquals(7280, stats.getBytes());
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.flazr.rtmp.server;
+
+import com.flazr.io.MediaGenerator;
+import com.flazr.rtmp.MemoryReader;
+import com.flazr.rtmp.RtmpReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HotContentCacheTest {
+
+    private static final String FILE_PATH = "target/temp";
+
+    /** runs loads when told to, stands in for the background thread */
+    private static class ManualExecutor implements Executor {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        public int runAll() {
+            final int count = tasks.size();
+            for(final Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+            return count;
+        }
+
+    }
+
+    @BeforeClass
+    public static void writeFiles() {
+        new File(FILE_PATH).mkdirs();
+        for(int i = 1; i <= 5; i++) {
+            new MediaGenerator(5, 500).writeFlv(FILE_PATH + "/hot" + i + ".flv");
+        }
+    }
+
+    @Test
+    public void testLoadedInBackgroundAfterPlays() {
+        final ManualExecutor loader = new ManualExecutor();
+        final HotContentCache cache = new HotContentCache(64 * 1024 * 1024, 2, loader);
+        final String path = FILE_PATH + "/hot1.flv";
+        assertNull(cache.getReader(path, false));
+        assertNull(cache.getReader(path, false)); // hot now, but served from disk while loading
+        assertNull(cache.getReader(path, false));
+        assertEquals(0, cache.getFileCount());
+        assertEquals(1, loader.runAll()); // loaded once
+        final RtmpReader first = cache.getReader(path, false);
+        assertTrue(first instanceof MemoryReader);
+        assertEquals(1, cache.getFileCount());
+        final RtmpReader second = cache.getReader(path, false);
+        assertTrue(second instanceof MemoryReader);
+        assertNotSame(first, second);
+        assertTrue(cache.getSize() > 0);
+        assertNull(cache.getReader(FILE_PATH + "/missing.flv", false));
+        assertEquals(0, loader.runAll());
+    }
+
+    @Test
+    public void testEviction() {
+        final ManualExecutor loader = new ManualExecutor();
+        final long fileSize = new File(FILE_PATH + "/hot1.flv").length();
+        final HotContentCache cache = new HotContentCache(fileSize * 4, 1, loader);
+        for(int i = 1; i <= 4; i++) {
+            cache.getReader(FILE_PATH + "/hot" + i + ".flv", false);
+        }
+        loader.runAll();
+        assertEquals(4, cache.getFileCount());
+        assertNotNull(cache.getReader(FILE_PATH + "/hot1.flv", false)); // most recently played
+        cache.getReader(FILE_PATH + "/hot5.flv", false);
+        loader.runAll();
+        assertEquals(4, cache.getFileCount());
+        assertTrue(cache.getSize() <= fileSize * 4);
+        // hot1 was kept, a hit loads nothing
+        final long size = cache.getSize();
+        assertNotNull(cache.getReader(FILE_PATH + "/hot1.flv", false));
+        assertNotNull(cache.getReader(FILE_PATH + "/hot5.flv", false));
+        assertEquals(size, cache.getSize());
+        assertEquals(0, loader.runAll());
+    }
+
+}
@@ -1,6 +1,164 @@
 package com.flazr.rtmp.server;
 
+import static org.junit.Assert.*;
+
+import com.flazr.util.Metrics;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.junit.Test;
+
 public class ServerApplicationTest {
 
+    private static final String[] NAMES = {"one", "two", "three"};
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 2000;
+
+    private static Channel newChannel(final DefaultLocalClientChannelFactory factory) {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("handler", new SimpleChannelUpstreamHandler());
+        return factory.newChannel(pipeline);
+    }
+
+    @Test
+    public void testPlayDoesNotCreateStream() {
+        ServerApplication app = new ServerApplication("test");
+        assertNull(app.retainStream("missing"));
+        assertEquals(0, app.getStreamCount());
+    }
+
+    @Test
+    public void testStreamEvictedWhenIdle() {
+        ServerApplication app = new ServerApplication("test");
+        ServerStream published = app.acquireStream("one");
+        ServerStream played = app.retainStream("one");
+        assertSame(published, played);
+        app.releaseStream(published);
+        assertEquals(1, app.getStreamCount());
+        app.releaseStream(played);
+        assertEquals(0, app.getStreamCount());
+        assertNotSame(published, app.acquireStream("one"));
+    }
+
+    @Test
+    public void testReacquireWhileOldStreamCloses() {
+        final ServerApplication app = new ServerApplication("reacquire");
+        final String key = Metrics.key("rtmp_stream_messages", "app", "reacquire", "stream", "one");
+        final ServerStream old = app.acquireStream("one");
+        old.getMessages().increment();
+        assertTrue(old.release()); // last reference gone, close still pending
+        final ServerStream fresh = app.acquireStream("one");
+        assertNotSame(old, fresh);
+        assertSame(fresh.getMessages(), Metrics.getInstance().getCounters().get(key));
+        assertEquals(0, fresh.getMessages().get());
+        old.close();
+        assertSame(fresh.getMessages(), Metrics.getInstance().getCounters().get(key));
+        app.releaseStream(fresh);
+        assertFalse(Metrics.getInstance().getCounters().containsKey(key));
+    }
+
+    @Test
+    public void testApplicationMetricsDroppedWhenIdle() {
+        final String key = Metrics.key("rtmp_connections", "app", "idletest");
+        final ServerApplication app = ServerApplication.acquire("idletest");
+        assertSame(app.getConnections(), Metrics.getInstance().getCounters().get(key));
+        ServerApplication.release(app);
+        assertFalse(Metrics.getInstance().getCounters().containsKey(key));
+    }
+
+    @Test
+    public void testConcurrentPublishPlayUnpublish() throws Exception {
+        final ServerApplication app = new ServerApplication("test");
+        final DefaultLocalClientChannelFactory factory = new DefaultLocalClientChannelFactory();
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger published = new AtomicInteger();
+        for(int t = 0; t < THREADS; t++) {
+            final Channel channel = newChannel(factory);
+            final Random random = new Random(t);
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        barrier.await();
+                        for(int i = 0; i < ROUNDS; i++) {
+                            final String name = NAMES[random.nextInt(NAMES.length)];
+                            if(random.nextBoolean()) { // publish then unpublish
+                                final ServerStream stream = app.acquireStream(name);
+                                assertTrue(stream.getReferenceCount() > 0);
+                                if(stream.setPublisher(channel, ServerStream.PublishType.LIVE)) {
+                                    published.incrementAndGet();
+                                    assertSame(channel, stream.getPublisher());
+                                    assertTrue(stream.removePublisher(channel));
+                                }
+                                app.releaseStream(stream);
+                            } else { // play then stop
+                                final ServerStream stream = app.retainStream(name);
+                                if(stream != null) {
+                                    assertTrue(stream.getReferenceCount() > 0);
+                                    stream.getSubscribers().add(channel);
+                                    stream.getSubscribers().remove(channel);
+                                    app.releaseStream(stream);
+                                }
+                            }
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        if(failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(published.get() > 0);
+        assertEquals(0, app.getStreamCount());
+    }
+
+    @Test
+    public void testConcurrentPublishersSeeSameStream() throws Exception {
+        final ServerApplication app = new ServerApplication("test");
+        final DefaultLocalClientChannelFactory factory = new DefaultLocalClientChannelFactory();
+        final ServerStream[] streams = new ServerStream[THREADS];
+        final boolean[] accepted = new boolean[THREADS];
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final Thread[] threads = new Thread[THREADS];
+        for(int t = 0; t < THREADS; t++) {
+            final int index = t;
+            final Channel channel = newChannel(factory);
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        barrier.await();
+                    } catch(Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    streams[index] = app.acquireStream("shared");
+                    accepted[index] = streams[index].setPublisher(channel, ServerStream.PublishType.LIVE);
+                }
+            };
+            threads[t].start();
+        }
+        int acceptedCount = 0;
+        for(int t = 0; t < THREADS; t++) {
+            threads[t].join();
+            assertSame(streams[0], streams[t]);
+            if(accepted[t]) {
+                acceptedCount++;
+            }
+        }
+        assertEquals(1, acceptedCount);
+        assertEquals(THREADS, streams[0].getReferenceCount());
+    }
 
 }
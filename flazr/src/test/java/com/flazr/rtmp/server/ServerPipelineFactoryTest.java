@@ -0,0 +1,33 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.RtmpHeader;
+import com.flazr.rtmp.message.Video;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.util.ObjectSizeEstimator;
+import org.junit.Test;
+
+public class ServerPipelineFactoryTest {
+
+    @Test
+    public void testEstimatorSeesMessageInsideQueuedEvent() {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("handler", new SimpleChannelUpstreamHandler());
+        final Channel channel = new DefaultLocalClientChannelFactory().newChannel(pipeline);
+        final Video video = new Video(new byte[100000]);
+        // what MemoryAwareThreadPoolExecutor actually passes to the estimator
+        final ChannelEventRunnable runnable = new ChannelEventRunnable(
+                pipeline.getContext("handler"), new UpstreamMessageEvent(channel, video, null));
+        final ObjectSizeEstimator estimator = new ServerPipelineFactory.MessageSizeEstimator();
+        assertEquals(RtmpHeader.MAX_ENCODED_SIZE + 100000, estimator.estimateSize(runnable));
+        assertEquals(RtmpHeader.MAX_ENCODED_SIZE + 100000, estimator.estimateSize(video));
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.rtmp.message.Audio;
+import com.flazr.util.Utils;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class StatsServerTest {
+
+    @BeforeClass
+    public static void configure() {
+        // no conf/flazr.properties there, so the server registries come up with defaults
+        System.setProperty("flazr.home", "target/temp");
+    }
+
+    private static String get(final int port, final String path, final int expectedStatus) throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        assertEquals(expectedStatus, connection.getResponseCode());
+        final InputStream in = expectedStatus == 200 ? connection.getInputStream() : connection.getErrorStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testMetricsAndStreamStats() throws Exception {
+        final StatsServer server = new StatsServer(0, 1);
+        final ServerApplication app = ServerApplication.acquire("statstest");
+        final ServerStream stream = app.acquireStream("live1");
+        try {
+            for(int i = 0; i < 3; i++) {
+                stream.write(new Audio(i * 23, Utils.fromHex("af01"), new byte[100]));
+            }
+            stream.addConfigMessage(new Audio(Utils.fromHex("af00"), Utils.fromHex("1210")));
+            final String metrics = get(server.getPort(), "/metrics", 200);
+            assertTrue(metrics, metrics.contains("# TYPE rtmp_stream_messages counter\n"));
+            assertTrue(metrics, metrics.contains("rtmp_stream_messages{app=\"statstest\",stream=\"live1\"} 3\n"));
+            assertTrue(metrics, metrics.contains("rtmp_stream_fanout{app=\"statstest\",stream=\"live1\",quantile=\"0.99\"} 0\n"));
+            assertTrue(metrics, metrics.contains("rtmp_stream_fanout_count{app=\"statstest\",stream=\"live1\"} 3\n"));
+            assertTrue(metrics, metrics.contains("rtmp_applications "));
+            final String json = get(server.getPort(), "/stats/streams?app=StatsTest", 200);
+            assertTrue(json, json.startsWith("{\"channels\":"));
+            assertTrue(json, json.contains("\"applications\":[{\"name\":\"statstest\""));
+            assertTrue(json, json.contains("\"streams\":[{\"name\":\"live1\",\"type\":null,\"publisher\":null,\"subscribers\":0"));
+            assertTrue(json, json.contains("\"messages\":3,\"bytes\":306"));
+            assertTrue(json, json.contains("\"config\":[\"AUDIO 4 bytes\"]"));
+            assertFalse(json, json.contains("\"connections\":["));
+            assertTrue(get(server.getPort(), "/stats", 200).contains("\"connections\":[]"));
+            get(server.getPort(), "/missing", 404);
+        } finally {
+            app.releaseStream(stream);
+            ServerApplication.release(app);
+            server.close();
+        }
+        assertFalse(StatsHandler.getMetricsText().contains("stream=\"live1\""));
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.flazr.rtmp.server;
+
+import static org.junit.Assert.*;
+
+import com.flazr.io.flv.FlvAtom;
+import com.flazr.rtmp.RtmpMessage;
+import com.flazr.rtmp.RtmpReader;
+import com.flazr.rtmp.message.Video;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.junit.Test;
+
+public class TimeshiftBufferTest {
+
+    private static Channel newChannel() {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("handler", new SimpleChannelUpstreamHandler());
+        return new DefaultLocalClientChannelFactory().newChannel(pipeline);
+    }
+
+    private static void writeFrames(final TimeshiftBuffer buffer, final int count) {
+        for(int i = 0; i < count; i++) {
+            final byte[] bytes = new byte[100];
+            bytes[0] = (byte) (i % 10 == 0 ? 0x17 : 0x27);
+            final Video video = new Video(bytes);
+            video.getHeader().setTime(i * 100);
+            buffer.write(video);
+        }
+    }
+
+    @Test
+    public void testSeekIntoSpilledDataAndCatchUpWithLive() {
+        final TimeshiftBuffer buffer = new TimeshiftBuffer("test", 60, 4096, 1024 * 1024);
+        writeFrames(buffer, 200);
+        assertTrue(buffer.getDiskBytes() > 0);
+        final ServerStream stream = new ServerStream("test");
+        final Channel channel = newChannel();
+        final RtmpReader reader = buffer.newReader(channel, stream);
+        assertEquals(5000, reader.seek(5050));
+        RtmpMessage message = reader.next();
+        assertEquals(5000, message.getHeader().getTime());
+        assertTrue(((FlvAtom) message).isKeyFrame());
+        int count = 1;
+        int lastTime = 5000;
+        while(reader.hasNext()) {
+            message = reader.next();
+            assertEquals(lastTime + 100, message.getHeader().getTime());
+            lastTime = message.getHeader().getTime();
+            count++;
+        }
+        assertEquals(150, count);
+        assertTrue(stream.getSubscribers().contains(channel));
+        buffer.close();
+    }
+
+    @Test
+    public void testLimitsEvictOldest() {
+        final TimeshiftBuffer buffer = new TimeshiftBuffer("test", 5, 4096, 8192);
+        writeFrames(buffer, 200);
+        assertTrue(buffer.getDiskBytes() <= 8192);
+        assertTrue(buffer.getFirstTime() >= 19900 - 6000);
+        final RtmpReader reader = buffer.newReader(newChannel(), new ServerStream("test"));
+        assertEquals(buffer.getFirstTime(), reader.seek(0));
+        assertEquals(buffer.getLastTime(), reader.seek(30000));
+        assertFalse(reader.hasNext());
+        buffer.close();
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.flazr.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testBucketBoundaries() {
+        for(long value : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+            final int bucket = Histogram.bucket(value);
+            assertTrue(Histogram.lowestValue(bucket) <= value);
+            assertTrue(Histogram.highestValue(bucket) >= value);
+        }
+        for(int bucket = 1; bucket < 900; bucket++) {
+            assertEquals(Histogram.highestValue(bucket - 1) + 1, Histogram.lowestValue(bucket));
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        final Histogram histogram = new Histogram();
+        for(int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+        for(int percentile : new int[] {50, 90, 99}) {
+            final long expected = percentile * 1000;
+            final long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(actual + " for p" + percentile, actual >= expected && actual <= expected * 17 / 16);
+        }
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+        assertEquals(0, new Histogram().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final Counter counter = new Counter();
+        final Histogram histogram = new Histogram();
+        final Thread[] threads = new Thread[8];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    final Random random = new Random();
+                    for(int j = 0; j < 100000; j++) {
+                        counter.increment();
+                        histogram.record(random.nextInt(1000));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.get());
+        assertEquals(800000, histogram.getCount());
+        long total = 0;
+        for(long count : histogram.getCounts()) {
+            total += count;
+        }
+        assertEquals(800000, total);
+    }
+
+    @Test
+    public void testRegistryKeysAndRemoval() {
+        final Metrics metrics = new Metrics();
+        final Counter counter = metrics.counter("messages", "app", "vod", "stream", "a");
+        assertSame(counter, metrics.counter("messages", "app", "vod", "stream", "a"));
+        metrics.counter("messages", "app", "vod", "stream", "b");
+        final Histogram histogram = metrics.histogram("fanout", "app", "vod", "stream", "a");
+        metrics.counter("messages", "app", "vod");
+        assertTrue(metrics.getCounters().containsKey("messages{app=\"vod\",stream=\"a\"}"));
+        metrics.unregister(counter, "messages", "app", "vod", "stream", "a");
+        metrics.unregister(histogram, "fanout", "app", "vod", "stream", "a");
+        assertEquals(2, metrics.getCounters().size());
+        assertTrue(metrics.getHistograms().isEmpty());
+        assertNotSame(counter, metrics.counter("messages", "app", "vod", "stream", "a"));
+        assertEquals("x{name=\"a\\\"b\"}", Metrics.key("x", "name", "a\"b"));
+        assertEquals("x{name=\"a\\nb\\\\\"}", Metrics.key("x", "name", "a\nb\\"));
+    }
+
+    @Test
+    public void testUnregisterOnlyRemovesOwnInstance() {
+        final Metrics metrics = new Metrics();
+        final Counter old = new Counter();
+        final Counter replacement = new Counter();
+        metrics.register(old, "messages", "stream", "a");
+        metrics.register(replacement, "messages", "stream", "a");
+        metrics.unregister(old, "messages", "stream", "a");
+        assertSame(replacement, metrics.getCounters().get("messages{stream=\"a\"}"));
+        metrics.unregister(replacement, "messages", "stream", "a");
+        assertTrue(metrics.getCounters().isEmpty());
+    }
+
+}